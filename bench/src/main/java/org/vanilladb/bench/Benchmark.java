@@ -31,6 +31,33 @@ public abstract class Benchmark {
 		conn.callStoredProc(ControlTransactionType.STOP_PROFILING.getProcedureId());
 	}
 	
+	public void resetLockStatisticsProcedure(SutConnection conn) throws SQLException {
+		conn.callStoredProc(ControlTransactionType.LOCK_STATISTICS.getProcedureId(), true);
+	}
+	
+	public String getLockStatisticsProcedure(SutConnection conn) throws SQLException {
+		return conn.callStoredProc(ControlTransactionType.LOCK_STATISTICS.getProcedureId()).outputMsg();
+	}
+	
+	public void resetBufferStatisticsProcedure(SutConnection conn) throws SQLException {
+		conn.callStoredProc(ControlTransactionType.BUFFER_STATISTICS.getProcedureId(), true);
+	}
+	
+	public String getBufferStatisticsProcedure(SutConnection conn) throws SQLException {
+		return conn.callStoredProc(ControlTransactionType.BUFFER_STATISTICS.getProcedureId()).outputMsg();
+	}
+	
+	public long[] getBufferCountersProcedure(SutConnection conn) throws SQLException {
+		String msg = conn.callStoredProc(ControlTransactionType.BUFFER_STATISTICS.getProcedureId(),
+				false, true).outputMsg();
+		// The message looks like "[report=1, 2, 3] "
+		String[] values = msg.substring(msg.indexOf('=') + 1, msg.lastIndexOf(']')).split(", ");
+		long[] counters = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			counters[i] = Long.parseLong(values[i].trim());
+		return counters;
+	}
+	
 	public int getNumOfRTEs() {
 		return VanillaBenchParameters.NUM_RTES;
 	}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.bench;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.buffer.BufferMgr;
+import org.vanilladb.core.storage.buffer.PageFormatter;
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * Measures the throughput of pinning and unpinning the buffers of blocks that
+ * are all in the buffer pool, with 1 to 64 threads. Every pin is a hit, so
+ * this shows the cost of the hit path alone.
+ * 
+ * <pre>
+ * java org.vanilladb.bench.BufferPinBenchmark [dbName] [numOfBlocks] [seconds]
+ * </pre>
+ */
+public class BufferPinBenchmark {
+	private static final String FILE_NAME = "pinbench.tbl";
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	public static void main(String[] args) throws Exception {
+		String dbName = args.length > 0 ? args[0] : "pinbench";
+		int numOfBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+		VanillaDb.initTaskMgr();
+		VanillaDb.initFileAndLogMgr(dbName);
+		BlockId[] blocks = loadBlocks(numOfBlocks);
+
+		System.out.println("threads\tpins/s");
+		for (int threads : THREAD_COUNTS) {
+			// Warm up for a second before measuring
+			run(blocks, threads, 1000);
+			long pins = run(blocks, threads, seconds * 1000);
+			System.out.println(threads + "\t" + (pins / seconds));
+		}
+		System.exit(0);
+	}
+
+	private static BlockId[] loadBlocks(int numOfBlocks) {
+		PageFormatter fmtr = new PageFormatter() {
+			@Override
+			public void format(Buffer buf) {
+				// keep the page empty
+			}
+		};
+		BufferMgr bufferMgr = new BufferMgr(-1);
+		BlockId[] blocks = new BlockId[numOfBlocks];
+		for (int i = 0; i < numOfBlocks; i++) {
+			Buffer buff = bufferMgr.pinNew(FILE_NAME, fmtr);
+			blocks[i] = buff.block();
+			bufferMgr.unpin(buff);
+		}
+		return blocks;
+	}
+
+	private static long run(final BlockId[] blocks, int threads,
+			final long millis) throws Exception {
+		final CyclicBarrier start = new CyclicBarrier(threads + 1);
+		final AtomicLong totalPins = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					BufferMgr bufferMgr = new BufferMgr(-1);
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long pins = 0;
+					try {
+						start.await();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					long end = System.currentTimeMillis() + millis;
+					while (System.currentTimeMillis() < end) {
+						// Check the time every 1024 pins
+						for (int j = 0; j < 1024; j++) {
+							BlockId blk = blocks[random.nextInt(blocks.length)];
+							bufferMgr.unpin(bufferMgr.pin(blk));
+						}
+						pins += 1024;
+					}
+					totalPins.addAndGet(pins);
+				}
+			};
+			workers[i].start();
+		}
+		start.await();
+		for (Thread worker : workers)
+			worker.join();
+		return totalPins.get();
+	}
+}
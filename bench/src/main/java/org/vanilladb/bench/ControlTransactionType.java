@@ -2,7 +2,8 @@ package org.vanilladb.bench;
 
 public enum ControlTransactionType {
 
-	START_PROFILING(1001), STOP_PROFILING(1002);
+	START_PROFILING(1001), STOP_PROFILING(1002), LOCK_STATISTICS(1003),
+	BUFFER_STATISTICS(1004);
 	
 	private int pid;
 	
@@ -16,6 +17,10 @@ public enum ControlTransactionType {
 			return START_PROFILING;
 		case 1002:
 			return STOP_PROFILING;
+		case 1003:
+			return LOCK_STATISTICS;
+		case 1004:
+			return BUFFER_STATISTICS;
 		}
 		return null;
 	}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vanilladb.bench.benchmarks.tpcc.TpccParameters;
+import org.vanilladb.bench.benchmarks.tpcc.TpccTransactionType;
+import org.vanilladb.bench.benchmarks.tpcc.rte.NewOrderParamGen;
+import org.vanilladb.bench.benchmarks.tpcc.rte.PaymentParamGen;
+import org.vanilladb.bench.benchmarks.tpcc.rte.TpccTxParamGenerator;
+import org.vanilladb.bench.server.procedure.BasicStoredProcFactory;
+import org.vanilladb.bench.server.procedure.tpcc.TpccStoredProcFactory;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedure;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedureFactory;
+import org.vanilladb.core.storage.tx.recovery.RecoveryMgr;
+
+/**
+ * Measures how long the server takes to restart after a crash in the middle
+ * of TPC-C. A child process runs the server, loading the testbed if the
+ * database is new, runs New-Order and Payment transactions with the given
+ * number of threads for the given seconds, and halts while they are running.
+ * This process then restarts the server on the same database, which recovers
+ * it, and reports the time.
+ *
+ * <pre>
+ * java org.vanilladb.bench.RecoveryBenchmark [dbName] [seconds] [threads]
+ * </pre>
+ */
+public class RecoveryBenchmark {
+	private static final String CRASH = "crash";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals(CRASH)) {
+			crash(args[1], Long.parseLong(args[2]), Integer.parseInt(args[3]));
+			return;
+		}
+
+		String dbName = args.length > 0 ? args[0] : "recoverybench";
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		// Run the workload in another JVM with the same settings
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(RecoveryBenchmark.class.getName());
+		cmd.add(CRASH);
+		cmd.add(dbName);
+		cmd.add(Long.toString(seconds));
+		cmd.add(Integer.toString(threads));
+		int exit = new ProcessBuilder(cmd).inheritIO().start().waitFor();
+		if (exit != 0)
+			throw new RuntimeException("the crashed server exited with " + exit);
+
+		long start = System.nanoTime();
+		VanillaDb.init(dbName, newFactory());
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println("recovery workers: " + RecoveryMgr.RECOVERY_WORKERS);
+		System.out.println("restart ms: " + millis);
+		System.exit(0);
+	}
+
+	private static void crash(String dbName, long seconds, int threads) throws Exception {
+		final StoredProcedureFactory factory = newFactory();
+		VanillaDb.init(dbName, factory);
+		if (VanillaDb.fileMgr().isNew()) {
+			call(factory, TpccTransactionType.SCHEMA_BUILDER);
+			call(factory, TpccTransactionType.TESTBED_LOADER);
+		}
+
+		final AtomicLong commits = new AtomicLong();
+		for (int i = 0; i < threads; i++) {
+			final int homeWid = i % TpccParameters.NUM_WAREHOUSES + 1;
+			Thread worker = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					TpccTxParamGenerator newOrder = new NewOrderParamGen(homeWid);
+					TpccTxParamGenerator payment = new PaymentParamGen(homeWid);
+					while (true) {
+						// Only these two have procedures on the server
+						TpccTxParamGenerator pg = random.nextInt(TpccParameters.RANGE_PAYMENT)
+								< TpccParameters.RANGE_NEW_ORDER ? newOrder : payment;
+						if (call(factory, pg.getTxnType(), pg.generateParameter()))
+							commits.incrementAndGet();
+					}
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		Thread.sleep(seconds * 1000);
+		System.out.println("crashing after " + commits.get() + " commits");
+		Runtime.getRuntime().halt(0);
+	}
+
+	private static StoredProcedureFactory newFactory() {
+		return new BasicStoredProcFactory(new TpccStoredProcFactory());
+	}
+
+	private static boolean call(StoredProcedureFactory factory, TpccTransactionType type, Object... pars) {
+		StoredProcedure<?> sp = factory.getStoredProcedure(type.getProcedureId());
+		sp.prepare(pars);
+		return sp.execute().isCommitted();
+	}
+}
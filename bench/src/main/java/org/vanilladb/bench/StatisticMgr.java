@@ -85,6 +85,10 @@ public class StatisticMgr {
 	private TreeMap<Long, ArrayList<Long>> latencyHistory = new TreeMap<Long, ArrayList<Long>>();
 	private List<BenchTransactionType> allTxTypes;
 	private String fileNamePostfix = "";
+	private String lockStatisticsReport;
+	private String bufferStatisticsReport;
+	// Each sample is the time in milliseconds followed by the buffer counters
+	private List<long[]> bufferSamples = new ArrayList<long[]>();
 	private long recordStartTime = -1;
 	private ZipThread zipThread;
 	private Map<BenchTransactionType, TxnStatistic> txnStatistics = new HashMap<BenchTransactionType, TxnStatistic>();
@@ -139,6 +143,25 @@ public class StatisticMgr {
 			recordStartTime = System.nanoTime();
 	}
 
+	public synchronized void setLockStatisticsReport(String report) {
+		lockStatisticsReport = report;
+	}
+
+	public synchronized void setBufferStatisticsReport(String report) {
+		bufferStatisticsReport = report;
+	}
+
+	/**
+	 * Records the buffer counters of the server at the specified time since
+	 * the recording started.
+	 */
+	public synchronized void addBufferCountersSample(long elapsedMs, long[] counters) {
+		long[] sample = new long[counters.length + 1];
+		sample[0] = elapsedMs;
+		System.arraycopy(counters, 0, sample, 1, counters.length);
+		bufferSamples.add(sample);
+	}
+
 	public synchronized void processTxnResult(TxnResultSet trs) {
 		if (recordStartTime == -1)
 			recordStartTime = trs.getTxnEndTime();
@@ -160,6 +183,12 @@ public class StatisticMgr {
 			// Output the result
 			outputDetailReport(fileName);
 			outputTimelineReport(fileName);
+			if (lockStatisticsReport != null)
+				outputLockStatisticsReport(fileName);
+			if (bufferStatisticsReport != null)
+				outputBufferStatisticsReport(fileName);
+			if (bufferSamples.size() > 1)
+				outputBufferTimelineReport(fileName);
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -206,6 +235,52 @@ public class StatisticMgr {
 		}
 	}
 
+	private void outputLockStatisticsReport(String fileName) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(
+				new FileWriter(new File(outputDir, fileName + "-locks.txt")))) {
+			writer.write(lockStatisticsReport);
+			writer.newLine();
+		}
+	}
+
+	private void outputBufferStatisticsReport(String fileName) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(
+				new FileWriter(new File(outputDir, fileName + "-buffers.txt")))) {
+			writer.write(bufferStatisticsReport);
+			writer.newLine();
+		}
+	}
+
+	/**
+	 * Writes the changes of the buffer counters between two samples. The
+	 * counters are in the order of BufferStatistics.COUNTER_NAMES: hits,
+	 * misses, evictions, dirty evictions, pin waits, pin wait time, repins,
+	 * victim searches and frames swept.
+	 */
+	private void outputBufferTimelineReport(String fileName) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(
+				new FileWriter(new File(outputDir, fileName + "-buffers.csv")))) {
+			writer.write(
+					"time(sec), hits, misses, hit_ratio, evictions, dirty_evictions, pin_waits, avg_pin_wait(us), repins, avg_sweep_length");
+			writer.newLine();
+
+			for (int i = 1; i < bufferSamples.size(); i++) {
+				long[] prev = bufferSamples.get(i - 1), curr = bufferSamples.get(i);
+				long[] d = new long[curr.length];
+				for (int j = 1; j < curr.length; j++)
+					d[j] = curr[j] - prev[j];
+				long hits = d[1], misses = d[2], pinWaits = d[5], searches = d[8];
+				writer.write(String.format("%d, %d, %d, %f, %d, %d, %d, %f, %d, %f",
+						curr[0] / 1000, hits, misses,
+						hits + misses == 0 ? Double.NaN : (double) hits / (hits + misses),
+						d[3], d[4], pinWaits,
+						pinWaits == 0 ? Double.NaN : (double) d[6] / pinWaits,
+						d[7], searches == 0 ? Double.NaN : (double) d[9] / searches));
+				writer.newLine();
+			}
+		}
+	}
+
 	private void outputTimelineReport(String fileName) throws IOException {
 		try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outputDir, fileName + ".csv")))) {
 			writer.write(
@@ -97,6 +97,20 @@ public class VanillaBench {
 				benchmarker.startProfilingProcedure(getConnection());
 			}
 
+			if (VanillaBenchParameters.LOCK_STATISTICS_ON_SERVER) {
+				if (logger.isLoggable(Level.INFO))
+					logger.info("resetting the lock statistics on the server-side");
+
+				benchmarker.resetLockStatisticsProcedure(getConnection());
+			}
+
+			if (VanillaBenchParameters.BUFFER_STATISTICS_ON_SERVER) {
+				if (logger.isLoggable(Level.INFO))
+					logger.info("resetting the buffer statistics on the server-side");
+
+				benchmarker.resetBufferStatisticsProcedure(getConnection());
+			}
+
 			if (logger.isLoggable(Level.INFO))
 				logger.info("start recording results...");
 
@@ -104,6 +118,12 @@ public class VanillaBench {
 			for (int i = 0; i < emulators.length; i++)
 				emulators[i].startRecordStatistic();
 
+			BufferStatisticsSampler sampler = null;
+			if (VanillaBenchParameters.BUFFER_STATISTICS_ON_SERVER) {
+				sampler = new BufferStatisticsSampler(getConnection(), statMgr);
+				sampler.start();
+			}
+
 			// waiting
 			Thread.sleep(VanillaBenchParameters.BENCHMARK_INTERVAL);
 
@@ -121,6 +141,25 @@ public class VanillaBench {
 				benchmarker.stopProfilingProcedure(getConnection());
 			}
 
+			if (VanillaBenchParameters.LOCK_STATISTICS_ON_SERVER) {
+				if (logger.isLoggable(Level.INFO))
+					logger.info("collecting the lock statistics on the server-side");
+
+				statMgr.setLockStatisticsReport(
+						benchmarker.getLockStatisticsProcedure(getConnection()));
+			}
+
+			if (sampler != null) {
+				sampler.interrupt();
+				sampler.join();
+
+				if (logger.isLoggable(Level.INFO))
+					logger.info("collecting the buffer statistics on the server-side");
+
+				statMgr.setBufferStatisticsReport(
+						benchmarker.getBufferStatisticsProcedure(getConnection()));
+			}
+
 			// TODO: Do we need to 'join' ?
 			// for (int i = 0; i < emulators.length; i++)
 			// emulators[i].join();
@@ -140,6 +179,37 @@ public class VanillaBench {
 			logger.info("benchmark process finished.");
 	}
 	
+	/**
+	 * Samples the buffer counters of the server once per timeline slot, so
+	 * that the report shows how they change over the benchmark.
+	 */
+	private class BufferStatisticsSampler extends Thread {
+		private SutConnection conn;
+		private StatisticMgr statMgr;
+
+		BufferStatisticsSampler(SutConnection conn, StatisticMgr statMgr) {
+			this.conn = conn;
+			this.statMgr = statMgr;
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			try {
+				while (!isInterrupted()) {
+					statMgr.addBufferCountersSample(System.currentTimeMillis() - start,
+							benchmarker.getBufferCountersProcedure(conn));
+					Thread.sleep(VanillaBenchParameters.REPORT_TIMELINE_GRANULARITY);
+				}
+			} catch (InterruptedException e) {
+				// The benchmark period is over
+			} catch (SQLException e) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("fail to sample the buffer statistics: " + e.getMessage());
+			}
+		}
+	}
+	
 	private SutDriver newDriver() {
 		// Create a driver for connection
 		switch (VanillaBenchParameters.CONNECTION_MODE) {
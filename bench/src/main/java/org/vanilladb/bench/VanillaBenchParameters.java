@@ -41,6 +41,8 @@ public class VanillaBenchParameters {
 	public static final BenchType BENCH_TYPE;
 	
 	public static final boolean PROFILING_ON_SERVER;
+	public static final boolean LOCK_STATISTICS_ON_SERVER;
+	public static final boolean BUFFER_STATISTICS_ON_SERVER;
 	
 	public static final File REPORT_OUTPUT_DIRECTORY;
 	public static final int REPORT_TIMELINE_GRANULARITY;
@@ -96,6 +98,12 @@ public class VanillaBenchParameters {
 		PROFILING_ON_SERVER = BenchProperties.getLoader().getPropertyAsBoolean(
 				VanillaBenchParameters.class.getName() + ".PROFILING_ON_SERVER", false);
 		
+		LOCK_STATISTICS_ON_SERVER = BenchProperties.getLoader().getPropertyAsBoolean(
+				VanillaBenchParameters.class.getName() + ".LOCK_STATISTICS_ON_SERVER", false);
+		
+		BUFFER_STATISTICS_ON_SERVER = BenchProperties.getLoader().getPropertyAsBoolean(
+				VanillaBenchParameters.class.getName() + ".BUFFER_STATISTICS_ON_SERVER", false);
+		
 		// Report Output Directory
 		String outputDirPath = BenchProperties.getLoader()
 				.getPropertyAsString(
@@ -17,6 +17,10 @@ public class TpccParameters {
 	public static final int FREQUENCY_DELIVERY;
 	public static final int FREQUENCY_STOCK_LEVEL;
 	
+	// Whether New-Order reads d_next_o_id in a reconnaissance pass to find
+	// its order id, instead of using a hard-coded one
+	public static final boolean ENABLE_RECONNAISSANCE;
+	
 	static {
 		NUM_WAREHOUSES = BenchProperties.getLoader().getPropertyAsInteger(
 				TpccParameters.class.getName() + ".NUM_WAREHOUSES", 1);
@@ -37,6 +41,9 @@ public class TpccParameters {
 				TpccParameters.class.getName() + ".FREQUENCY_DELIVERY", 4);
 		FREQUENCY_STOCK_LEVEL = BenchProperties.getLoader().getPropertyAsInteger(
 				TpccParameters.class.getName() + ".FREQUENCY_STOCK_LEVEL", 4);
+		
+		ENABLE_RECONNAISSANCE = BenchProperties.getLoader().getPropertyAsBoolean(
+				TpccParameters.class.getName() + ".ENABLE_RECONNAISSANCE", false);
 	}
 
 	// Range for uniformly selecting transaction type
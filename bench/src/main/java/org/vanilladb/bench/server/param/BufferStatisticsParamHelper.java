@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.bench.server.param;
+
+import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.sql.storedprocedure.SpResultRecord;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedureParamHelper;
+
+public class BufferStatisticsParamHelper extends StoredProcedureParamHelper {
+
+	private boolean isReset;
+	private boolean isCountersOnly;
+	private String report = "";
+
+	public boolean isReset() {
+		return isReset;
+	}
+
+	public boolean isCountersOnly() {
+		return isCountersOnly;
+	}
+
+	public void setReport(String report) {
+		this.report = report;
+	}
+
+	@Override
+	public void prepareParameters(Object... pars) {
+		// Both resetting the statistics and returning only the counters are
+		// optional
+		isReset = pars.length > 0 && (Boolean) pars[0];
+		isCountersOnly = pars.length > 1 && (Boolean) pars[1];
+		setReadOnly(true);
+	}
+
+	@Override
+	public Schema getResultSetSchema() {
+		Schema sch = new Schema();
+		sch.addField("report", Type.VARCHAR(report.length()));
+		return sch;
+	}
+
+	@Override
+	public SpResultRecord newResultSetRecord() {
+		SpResultRecord rec = new SpResultRecord();
+		rec.setVal("report", new VarcharConstant(report));
+		return rec;
+	}
+
+}
@@ -21,6 +21,10 @@ public class BasicStoredProcFactory implements StoredProcedureFactory {
 				return new StartProfilingProc();
 			case STOP_PROFILING:
 				return new StopProfilingProc();
+			case LOCK_STATISTICS:
+				return new LockStatisticsProc();
+			case BUFFER_STATISTICS:
+				return new BufferStatisticsProc();
 			}
 		}
 		
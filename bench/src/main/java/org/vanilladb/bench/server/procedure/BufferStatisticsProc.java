@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.bench.server.procedure;
+
+import org.vanilladb.bench.server.param.BufferStatisticsParamHelper;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedure;
+import org.vanilladb.core.storage.buffer.BufferStatistics;
+
+/**
+ * Returns the statistics of the buffer pools on the server, either as a
+ * report or as the counters summed over all pools, and resets them afterwards
+ * if requested.
+ */
+public class BufferStatisticsProc extends StoredProcedure<BufferStatisticsParamHelper> {
+
+	public BufferStatisticsProc() {
+		super(new BufferStatisticsParamHelper());
+	}
+
+	@Override
+	protected void prepareKeys() {
+		// Do nothing
+	}
+
+	@Override
+	protected void executeSql() {
+		BufferStatisticsParamHelper paramHelper = getParamHelper();
+		if (paramHelper.isCountersOnly()) {
+			StringBuilder sb = new StringBuilder();
+			for (long counter : BufferStatistics.countersAll()) {
+				if (sb.length() > 0)
+					sb.append(", ");
+				sb.append(counter);
+			}
+			paramHelper.setReport(sb.toString());
+		} else
+			paramHelper.setReport(BufferStatistics.reportAll());
+		if (paramHelper.isReset())
+			BufferStatistics.resetAll();
+	}
+
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.bench.server.procedure;
+
+import org.vanilladb.bench.server.param.LockStatisticsParamHelper;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedure;
+import org.vanilladb.core.storage.tx.concurrency.LockStatistics;
+
+/**
+ * Returns the contention statistics of the lock tables on the server, and
+ * resets them afterwards if requested.
+ */
+public class LockStatisticsProc extends StoredProcedure<LockStatisticsParamHelper> {
+
+	public LockStatisticsProc() {
+		super(new LockStatisticsParamHelper());
+	}
+
+	@Override
+	protected void prepareKeys() {
+		// Do nothing
+	}
+
+	@Override
+	protected void executeSql() {
+		LockStatisticsParamHelper paramHelper = getParamHelper();
+		paramHelper.setReport(LockStatistics.reportAll());
+		if (paramHelper.isReset())
+			LockStatistics.resetAll();
+	}
+
+}
@@ -60,6 +60,10 @@ public class MicroTestbedLoaderProc extends StoredProcedure<TestbedLoaderParamHe
 		// TODO: remove this hack code in the future
 		RecoveryMgr.enableLogging(true);
 
+		// The loading data have no log records, and checkpoints no longer
+		// flush all buffers, so flush them before the log is deleted
+		getTransaction().bufferMgr().flushAll();
+
 		// Create a checkpoint
 		CheckpointTask cpt = new CheckpointTask();
 		cpt.createCheckpoint();
@@ -74,9 +74,34 @@ public class NewOrderProc extends StoredProcedure<NewOrderProcParamHelper> {
 	Constant widCon, didCon, cidCon, oidCon;
 	
 	private int hardCodedOid;
+	// the next order id found by the reconnaissance
+	private int reconOid = -1;
 	
 	private Map<String, Constant> keyEntryMap;
 	
+	@Override
+	protected boolean isReconnaissanceRequired() {
+		return TpccParameters.ENABLE_RECONNAISSANCE;
+	}
+	
+	@Override
+	protected Object executeReconnaissance(Transaction tx) {
+		NewOrderProcParamHelper paramHelper = getParamHelper();
+		
+		// SELECT d_next_o_id FROM district WHERE d_w_id = wid AND d_id = did
+		String sql = "SELECT d_next_o_id FROM district WHERE d_w_id = " +
+				paramHelper.getWid() + " AND d_id = " + paramHelper.getDid();
+		Scan s = StoredProcedureHelper.executeQuery(sql, tx);
+		s.beforeFirst();
+		if (!s.next())
+			throw new RuntimeException("Executing '" + sql + "' fails");
+		reconOid = (Integer) s.getVal("d_next_o_id").asJavaVal();
+		s.close();
+		
+		// The order id determines the keys of the inserted records
+		return reconOid;
+	}
+	
 	@Override
 	protected void prepareKeys() {
 		NewOrderProcParamHelper paramHelper = getParamHelper();
@@ -86,8 +111,11 @@ public class NewOrderProc extends StoredProcedure<NewOrderProcParamHelper> {
 		didCon = new IntegerConstant(paramHelper.getDid());
 		cidCon = new IntegerConstant(paramHelper.getCid());
 		
-		// hard code the next order id
-		hardCodedOid = getNextOrderId(paramHelper.getWid(), paramHelper.getDid());
+		if (isReconnaissanceRequired())
+			hardCodedOid = reconOid;
+		else
+			// hard code the next order id
+			hardCodedOid = getNextOrderId(paramHelper.getWid(), paramHelper.getDid());
 		oidCon = new IntegerConstant(hardCodedOid);
 		
 		// ========== Keys for step 1 ==========
@@ -199,7 +227,7 @@ public class NewOrderProc extends StoredProcedure<NewOrderProcParamHelper> {
 		s.beforeFirst();
 		if (!s.next())
 			throw new RuntimeException("Executing '" + sql + "' fails");
-		// Use a hard-coded OrderID
+		// Use a hard-coded OrderID, or the one validated by the reconnaissance
 //		nextOid = (Integer) s.getVal("d_next_o_id").asJavaVal();
 		nextOid = hardCodedOid;
 		paramHelper.setdTax((Double) s.getVal("d_tax").asJavaVal());
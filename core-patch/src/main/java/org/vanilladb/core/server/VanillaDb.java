@@ -31,6 +31,8 @@ import org.vanilladb.core.query.planner.opt.HeuristicQueryPlanner;
 import org.vanilladb.core.server.task.TaskMgr;
 import org.vanilladb.core.sql.storedprocedure.SampleStoredProcedureFactory;
 import org.vanilladb.core.sql.storedprocedure.StoredProcedureFactory;
+import org.vanilladb.core.storage.buffer.BufferCleanerTask;
+import org.vanilladb.core.storage.buffer.BufferWarmUpTask;
 import org.vanilladb.core.storage.file.FileMgr;
 import org.vanilladb.core.storage.log.LogMgr;
 import org.vanilladb.core.storage.metadata.CatalogMgr;
@@ -79,6 +81,9 @@ public class VanillaDb {
 	 */
 	private static boolean inited;
 
+	// Whether the buffer pools are warmed up at startup
+	private static boolean doBufferWarmUp;
+
 	/**
 	 * Initializes the system. This method is called during system startup.
 	 * 
@@ -122,8 +127,9 @@ public class VanillaDb {
 				IndexUpdatePlanner.class, UpdatePlanner.class);
 		
 		// initialize storage engine
-		initFileAndLogMgr(dirName);
+		// the log manager runs its writer as a task
 		initTaskMgr();
+		initFileAndLogMgr(dirName);
 		initTxMgr();
 
 		// the first transaction for initializing the system
@@ -151,7 +157,9 @@ public class VanillaDb {
 		// initialize the statistics manager to build the histogram
 		initStatMgr(initTx);
 		
-		// create a checkpoint
+		// create a checkpoint, after flushing the catalog, which has to be on
+		// disk before the recovery redoes the log
+		initTx.bufferMgr().flushAll();
 		txMgr.createCheckpoint(initTx);
 
 		// commit the initializing transaction
@@ -163,6 +171,18 @@ public class VanillaDb {
 		if (doCheckpointing)
 			initCheckpointingTask();
 
+		// initializing buffer cleaning task
+		boolean doBufferCleaning = CoreProperties.getLoader().getPropertyAsBoolean(
+				VanillaDb.class.getName() + ".DO_BUFFER_CLEANING", false);
+		if (doBufferCleaning)
+			initBufferCleanerTask();
+
+		// initializing buffer warming up task
+		doBufferWarmUp = CoreProperties.getLoader().getPropertyAsBoolean(
+				VanillaDb.class.getName() + ".DO_BUFFER_WARM_UP", false);
+		if (doBufferWarmUp)
+			initBufferWarmUpTask();
+
 		// finish initialization
 		inited = true;
 	}
@@ -176,6 +196,16 @@ public class VanillaDb {
 		return inited;
 	}
 
+	/**
+	 * Returns whether the buffer pools are warmed up at startup, which also
+	 * saves the snapshot of the pools at each checkpoint.
+	 * 
+	 * @return true if the buffer warm-up is enabled
+	 */
+	public static boolean isBufferWarmUpEnabled() {
+		return doBufferWarmUp;
+	}
+
 	/*
 	 * The following initialization methods are useful for testing the
 	 * lower-level components of the system without having to initialize
@@ -193,7 +223,8 @@ public class VanillaDb {
 	}
 
 	/**
-	 * Initializes the file and log managers.
+	 * Initializes the file and log managers. The task manager must be
+	 * initialized first, since the log manager runs its writer as a task.
 	 * 
 	 * @param dirName
 	 *            the name of the database directory
@@ -248,6 +279,27 @@ public class VanillaDb {
 		taskMgr.runTask(new CheckpointTask());
 	}
 
+	/**
+	 * Initialize a background task writing the dirty buffers.
+	 */
+	public static void initBufferCleanerTask() {
+		taskMgr.runTask(new BufferCleanerTask());
+	}
+
+	/**
+	 * Initialize a background task reloading the blocks in the buffer
+	 * snapshot, which is saved again at each checkpoint and at shutdown.
+	 */
+	public static void initBufferWarmUpTask() {
+		taskMgr.runTask(new BufferWarmUpTask());
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				BufferWarmUpTask.saveSnapshot();
+			}
+		}));
+	}
+
 	public static FileMgr fileMgr() {
 		return fileMgr;
 	}
@@ -28,7 +28,10 @@ import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.PrimaryKey;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.concurrency.LockAbortException;
+import org.vanilladb.core.storage.tx.concurrency.VersionStore;
 import org.vanilladb.core.storage.tx.concurrency.conservative.ConservativeConcurrencyMgr;
+import org.vanilladb.core.storage.tx.concurrency.conservative.ConservativeScheduler;
+import org.vanilladb.core.util.CoreProperties;
 
 /**
  * An abstract class that denotes the stored procedure supported in VanillaDb.
@@ -37,10 +40,37 @@ public abstract class StoredProcedure<H extends StoredProcedureParamHelper> {
 	private static Logger logger = Logger.getLogger(StoredProcedure.class
 			.getName());
 	
+	/**
+	 * Whether transactions are admitted by {@link ConservativeScheduler}
+	 * instead of booking their keys one after another under a global lock.
+	 * This is experimental and off by default. It has only been measured on
+	 * a single core, where the hand-off to the scheduler costs more than the
+	 * global lock saves; whether it wins on many cores is not shown yet.
+	 */
+	public static final boolean PARALLEL_ADMISSION;
+	
+	/**
+	 * The number of times a procedure with reconnaissance is restarted
+	 * because its footprint changed, before it is aborted.
+	 */
+	public static final int MAX_RECONNAISSANCE_RESTARTS;
+	
+	static {
+		PARALLEL_ADMISSION = CoreProperties.getLoader().getPropertyAsBoolean(
+				StoredProcedure.class.getName() + ".PARALLEL_ADMISSION", false);
+		MAX_RECONNAISSANCE_RESTARTS = CoreProperties.getLoader().getPropertyAsInteger(
+				StoredProcedure.class.getName() + ".MAX_RECONNAISSANCE_RESTARTS", 10);
+		
+		// The epochs are formed by the scheduler, which is not used otherwise
+		if (!PARALLEL_ADMISSION && ConservativeScheduler.EPOCH_LENGTH > 0
+				&& logger.isLoggable(Level.WARNING))
+			logger.warning("ConservativeScheduler.EPOCH_LENGTH is ignored, "
+					+ "since PARALLEL_ADMISSION is off");
+	}
+	
 	private static final ReentrantLock SERIAL_CONTROL_LOCK = new ReentrantLock();
 	
-	private Transaction scheduleTransactionSerially(boolean isReadOnly,
-			Set<PrimaryKey> readSet, Set<PrimaryKey> writeSet) {
+	private Transaction scheduleTransactionSerially(boolean isReadOnly) {
 		SERIAL_CONTROL_LOCK.lock();
 		try {
 			Transaction tx = VanillaDb.txMgr().newTransaction(
@@ -49,8 +79,7 @@ public abstract class StoredProcedure<H extends StoredProcedureParamHelper> {
 			ConservativeConcurrencyMgr ccMgr = (ConservativeConcurrencyMgr) tx.concurrencyMgr();
 			
 			// Reserve lock so that deterministic ordering is ensured
-			ccMgr.bookReadKeys(readSet);
-			ccMgr.bookWriteKeys(writeSet);
+			ccMgr.bookKeys(readSet, writeSet, readTableSet, writeTableSet);
 			
 			return tx;
 		} finally {
@@ -58,11 +87,29 @@ public abstract class StoredProcedure<H extends StoredProcedureParamHelper> {
 		}
 	}
 	
+	/**
+	 * Creates a read-only transaction which reads a snapshot instead of
+	 * booking its keys, so that it never waits for or blocks the writers.
+	 */
+	private Transaction beginSnapshotTransaction() {
+		Transaction tx = VanillaDb.txMgr().newTransaction(
+				Connection.TRANSACTION_SERIALIZABLE, true);
+		((ConservativeConcurrencyMgr) tx.concurrencyMgr()).beginSnapshot();
+		return tx;
+	}
+	
 	protected Set<PrimaryKey> readSet = new HashSet<PrimaryKey>();
 	protected Set<PrimaryKey> writeSet = new HashSet<PrimaryKey>();
 	
+	// The tables read or written entirely, which require
+	// ConservativeConcurrencyMgr.MULTI_GRANULARITY_LOCKING. A procedure
+	// reading a range of keys books the table to avoid phantoms.
+	protected Set<String> readTableSet = new HashSet<String>();
+	protected Set<String> writeTableSet = new HashSet<String>();
+	
 	private H paramHelper;
 	private Transaction tx;
+	private Object footprint;
 	
 	public StoredProcedure(H helper) {
 		if (helper == null)
@@ -74,27 +121,141 @@ public abstract class StoredProcedure<H extends StoredProcedureParamHelper> {
 	// Child classes of stored procedure should provide prepareKeys implementation
 	protected abstract void prepareKeys();
 	
+	/**
+	 * Returns whether the read/write sets of this procedure depend on the
+	 * data, so that {@link #executeReconnaissance(Transaction)} must run
+	 * before {@link #prepareKeys()}.
+	 * 
+	 * @return true if a reconnaissance pass is required
+	 */
+	protected boolean isReconnaissanceRequired() {
+		return false;
+	}
+	
+	/**
+	 * Reads the data that determines the read/write sets of this procedure
+	 * and keeps what {@link #prepareKeys()} needs. The first pass runs in a
+	 * read-only transaction without any booked lock, so the result may be
+	 * stale. The pass is repeated once the locks are acquired, and the
+	 * procedure is restarted if the returned footprint differs.
+	 * 
+	 * @param tx
+	 *            the transaction to read the data with
+	 * @return an object which equals to the result of another pass if and
+	 *         only if both passes lead to the same read/write sets
+	 */
+	protected Object executeReconnaissance(Transaction tx) {
+		return null;
+	}
+	
+	/**
+	 * Returns whether this procedure looks up an index when it is read-only.
+	 * Index entries are not versioned, so such a procedure books its keys
+	 * instead of reading a snapshot, which may miss the records inserted or
+	 * deleted after the snapshot. A procedure which only scans tables can
+	 * override this to read a snapshot when
+	 * {@link VersionStore#ENABLE_SNAPSHOT_READ} is on.
+	 * 
+	 * @return true if the procedure reads through an index
+	 */
+	protected boolean readsThroughIndex() {
+		return true;
+	}
+	
 	public void prepare(Object... pars) {
 		// prepare parameters
 		paramHelper.prepareParameters(pars);
 		
+		scheduleTransaction();
+	}
+	
+	private void scheduleTransaction() {
+		// Discover the data-dependent keys
+		if (isReconnaissanceRequired())
+			footprint = reconnoiter();
+		
 		// Collect read/write sets
 		prepareKeys();
 		
 		// create a transaction
 		boolean isReadOnly = paramHelper.isReadOnly();
-		tx = scheduleTransactionSerially(isReadOnly, readSet, writeSet);
+		if (isReadOnly && VersionStore.ENABLE_SNAPSHOT_READ && !readsThroughIndex())
+			tx = beginSnapshotTransaction();
+		else if (PARALLEL_ADMISSION)
+			tx = ConservativeScheduler.getScheduler().schedule(isReadOnly,
+					readSet, writeSet, readTableSet, writeTableSet);
+		else
+			tx = scheduleTransactionSerially(isReadOnly);
+	}
+	
+	private Object reconnoiter() {
+		// A snapshot keeps the reconnaissance from reading dirty data. It may
+		// be inconsistent through an index, but the footprint is validated
+		// under the locks anyway.
+		Transaction reconTx = VersionStore.ENABLE_SNAPSHOT_READ
+				? beginSnapshotTransaction()
+				: VanillaDb.txMgr().newTransaction(
+						Connection.TRANSACTION_SERIALIZABLE, true);
+		try {
+			Object result = executeReconnaissance(reconTx);
+			reconTx.commit();
+			return result;
+		} catch (RuntimeException e) {
+			reconTx.rollback();
+			throw e;
+		}
+	}
+	
+	private void acquireLocks() {
+		ConservativeConcurrencyMgr ccMgr = (ConservativeConcurrencyMgr) tx.concurrencyMgr();
+		
+		// Acquire locks before execution
+		ccMgr.acquireBookedLocks();
 		
+		// Locks can be released before the commit record is flushed
+		if (ConservativeConcurrencyMgr.EARLY_LOCK_RELEASE)
+			tx.recoveryMgr().deferCommitFlush();
+	}
+	
+	/**
+	 * Repeats the reconnaissance under the acquired locks. If the footprint
+	 * has changed since the transaction was booked, the transaction is rolled
+	 * back and booked again with the new read/write sets.
+	 */
+	private void validateFootprint() {
+		int restarts = 0;
+		while (true) {
+			Object current = executeReconnaissance(tx);
+			if (footprint == null ? current == null : footprint.equals(current))
+				return;
+			
+			if (restarts++ >= MAX_RECONNAISSANCE_RESTARTS)
+				abort("the footprint keeps changing after " + restarts + " restarts");
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("restarting tx." + tx.getTransactionNumber()
+						+ " since its footprint changed");
+			// Nothing may roll the finished transaction back again if the
+			// rescheduling below throws
+			tx.rollback();
+			tx = null;
+			readSet.clear();
+			writeSet.clear();
+			readTableSet.clear();
+			writeTableSet.clear();
+			scheduleTransaction();
+			acquireLocks();
+		}
 	}
 	
 	public SpResultSet execute() {
 		boolean isCommitted = false;
 		
 		try {
-			ConservativeConcurrencyMgr ccMgr = (ConservativeConcurrencyMgr) tx.concurrencyMgr();
+			acquireLocks();
 			
-			// Acquire locks before execution
-			ccMgr.acquireBookedLocks();
+			if (isReconnaissanceRequired())
+				validateFootprint();
 			
 			executeSql();
 			
@@ -105,18 +266,18 @@ public abstract class StoredProcedure<H extends StoredProcedureParamHelper> {
 		} catch (LockAbortException lockAbortEx) {
 			if (logger.isLoggable(Level.WARNING))
 				logger.warning(lockAbortEx.getMessage());
-			tx.rollback();
+			rollback();
 		} catch (ManuallyAbortException me) {
 			if (logger.isLoggable(Level.WARNING))
 				logger.warning("Manually aborted by the procedure: " + me.getMessage());
-			tx.rollback();
+			rollback();
 		} catch (BadSemanticException be) {
 			if (logger.isLoggable(Level.SEVERE))
 				logger.warning("Semantic error: " + be.getMessage());
-			tx.rollback();
+			rollback();
 		} catch (Exception e) {
 			e.printStackTrace();
-			tx.rollback();
+			rollback();
 		}
 
 		return new SpResultSet(
@@ -128,6 +289,12 @@ public abstract class StoredProcedure<H extends StoredProcedureParamHelper> {
 	
 	protected abstract void executeSql();
 	
+	private void rollback() {
+		// The transaction is null if it was restarted but not rescheduled
+		if (tx != null)
+			tx.rollback();
+	}
+	
 	protected H getParamHelper() {
 		return paramHelper;
 	}
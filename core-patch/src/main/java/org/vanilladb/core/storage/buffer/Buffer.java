@@ -18,15 +18,15 @@ package org.vanilladb.core.storage.buffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Type;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.file.io.IoBuffer;
 import org.vanilladb.core.storage.log.LogSeqNum;
 
 /**
@@ -47,30 +47,56 @@ public class Buffer {
 	
 	private static final int LAST_LSN_OFFSET = 0;
 	private static final int DATA_START_OFFSET = LogSeqNum.SIZE;
+	private static final int CLAIMED = Integer.MIN_VALUE;
 	
-	private Page contents = new Page();
+	private final Page contents;
 	private BlockId blk = null;
-	private AtomicInteger pins = new AtomicInteger(0);
-	private AtomicBoolean isRecentlyPinned = new AtomicBoolean(false);
+	// The pin count, with the sign bit set while the buffer is claimed for
+	// replacement. The block is changed only while the buffer is claimed, so a
+	// thread that pins the buffer without any lock sees the latest block.
+	private AtomicInteger state = new AtomicInteger(0);
+	// Whether the block was read ahead and has not been pinned since
+	private AtomicBoolean readAhead = new AtomicBoolean(false);
+	private final int frame;
+	// The number of dirty buffers in the pool of this buffer
+	private final AtomicInteger numOfDirty;
 	private boolean isNew = false;
 	private boolean isModified = false;
 	// TODO: We use (-1, -1) for the default value. Will this be a problem ?
 	private LogSeqNum lastLsn = LogSeqNum.DEFAULT_VALUE;
+	// The LSN of the log record of the first modification since the buffer
+	// was written, which is the earliest one whose change may not be on disk,
+	// or null if that modification had no log record
+	private LogSeqNum recLsn;
 	
-	// Locks
-	private final ReadWriteLock contentLock = new ReentrantReadWriteLock();
+	// Locks. The readers of the contents read optimistically, and validate
+	// the stamp afterward instead of locking, unless a writer holds the lock.
+	private final StampedLock contentLock = new StampedLock();
 	private final Lock swapLock = new ReentrantLock();
 	private final Lock flushLock = new ReentrantLock();
 	
 	/**
-	 * Creates a new buffer, wrapping a new {@link Page page}. This constructor
+	 * Creates a new buffer, wrapping a {@link Page page} on the specified
+	 * memory. This constructor
 	 * is called exclusively by the class {@link BasicBufferMgr}. It depends on
 	 * the {@link org.vanilladb.core.storage.log.LogMgr LogMgr} object that it
 	 * gets from the class {@link VanillaDb}. That object is created during
 	 * system initialization. Thus this constructor cannot be called until
 	 * {@link VanillaDb#initFileAndLogMgr(String)} or is called first.
+	 * 
+	 * @param frame
+	 *            the number of the frame this buffer occupies in its pool
+	 * @param numOfDirty
+	 *            the number of dirty buffers in the pool, which this buffer
+	 *            keeps up to date
+	 * @param memory
+	 *            the memory of the page, which is the slot of the frame in the
+	 *            arena of the pool
 	 */
-	Buffer() {
+	Buffer(int frame, AtomicInteger numOfDirty, IoBuffer memory) {
+		this.frame = frame;
+		this.numOfDirty = numOfDirty;
+		this.contents = new Page(memory);
 	}
 
 	/**
@@ -86,26 +112,41 @@ public class Buffer {
 	 * @return the constant value at that offset
 	 */
 	public Constant getVal(int offset, Type type) {
-		contentLock.readLock().lock();
+		if (offset < 0 || offset >= BUFFER_SIZE)
+			throw new IndexOutOfBoundsException("" + offset);
+
+		// Optimization: Read without locking, and retry with the read lock if
+		// a writer came in. The bytes read with a writer may be garbage, so
+		// an exception is also ignored unless the stamp is still valid.
+		long stamp = contentLock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Constant val = contents.getVal(DATA_START_OFFSET + offset, type);
+				if (contentLock.validate(stamp))
+					return val;
+			} catch (RuntimeException e) {
+				if (contentLock.validate(stamp))
+					throw e;
+			}
+		}
+
+		stamp = contentLock.readLock();
 		try {
-			if (offset < 0 || offset >= BUFFER_SIZE)
-				throw new IndexOutOfBoundsException("" + offset);
-				
 			return contents.getVal(DATA_START_OFFSET + offset, type);
 		} finally {
-			contentLock.readLock().unlock();
+			contentLock.unlockRead(stamp);
 		}
 	}
 	
 	void setVal(int offset, Constant val) {
-		contentLock.writeLock().lock();
+		long stamp = contentLock.writeLock();
 		try {
 			if (offset < 0 || offset >= BUFFER_SIZE)
 				throw new IndexOutOfBoundsException("" + offset);
 			
 			contents.setVal(DATA_START_OFFSET + offset, val);
 		} finally {
-			contentLock.writeLock().unlock();
+			contentLock.unlockWrite(stamp);
 		}
 	}
 
@@ -126,11 +167,16 @@ public class Buffer {
 	 *            the LSN of the corresponding log record
 	 */
 	public void setVal(int offset, Constant val, long txNum, LogSeqNum lsn) {
-		contentLock.writeLock().lock();
+		long stamp = contentLock.writeLock();
 		try {
 			if (offset < 0 || offset >= BUFFER_SIZE)
 				throw new IndexOutOfBoundsException("" + offset);
 			
+			if (!isModified) {
+				if (!isNew)
+					numOfDirty.incrementAndGet();
+				recLsn = lsn;
+			}
 			isModified = true;
 			if (lsn != null && lsn.compareTo(lastLsn) > 0)
 				lastLsn = lsn;
@@ -139,7 +185,7 @@ public class Buffer {
 			lastLsn.writeToPage(contents, LAST_LSN_OFFSET);
 			contents.setVal(DATA_START_OFFSET + offset, val);
 		} finally {
-			contentLock.writeLock().unlock();
+			contentLock.unlockWrite(stamp);
 		}
 	}
 	
@@ -152,14 +198,43 @@ public class Buffer {
 	 */
 	public LogSeqNum lastLsn(){
 		// Use contentLock because lastLsn will be modified from setVal.
-		contentLock.readLock().lock();
+		long stamp = contentLock.tryOptimisticRead();
+		LogSeqNum lsn = lastLsn;
+		if (contentLock.validate(stamp))
+			return lsn;
+
+		stamp = contentLock.readLock();
 		try {
 			return lastLsn;
 		} finally {
-			contentLock.readLock().unlock();
+			contentLock.unlockRead(stamp);
 		}
 	}
 
+	/**
+	 * Returns the recovery LSN (recLSN) of this buffer, which is the LSN of the
+	 * log record of its first modification since it was written. All the
+	 * changes of the buffer that may not be on disk are made by that record or
+	 * the later ones. If that modification had no log record, the changes
+	 * cannot be redone, so the buffer is flushed instead. The caller must
+	 * hold the swap lock.
+	 * 
+	 * @return the recLSN, or null if all the changes are on disk
+	 */
+	LogSeqNum recLsn() {
+		long stamp = contentLock.readLock();
+		try {
+			// A new block has been written with its formatted contents when
+			// it was appended
+			if (!isModified || recLsn != null)
+				return isModified ? recLsn : null;
+		} finally {
+			contentLock.unlockRead(stamp);
+		}
+		flush();
+		return null;
+	}
+
 	/**
 	 * Returns a block ID refers to the disk block that the buffer is pinned to. <br><br>
 	 * 
@@ -202,11 +277,11 @@ public class Buffer {
 	}
 
 	protected void close() {
-		contentLock.writeLock().lock();
+		long stamp = contentLock.writeLock();
 		try {
 			contents.close();
 		} finally {
-			contentLock.writeLock().unlock();
+			contentLock.unlockWrite(stamp);
 		}
 	}
 
@@ -216,40 +291,100 @@ public class Buffer {
 	 * to writing the page to disk.
 	 */
 	void flush() {
-		contentLock.writeLock().lock();
+		// The flushLock comes first, since its holders may write the contents
 		flushLock.lock();
+		long stamp = contentLock.writeLock();
 		try {
 			if (isNew || isModified) {
 				VanillaDb.logMgr().flush(lastLsn);
 				contents.write(blk);
 				isModified = false;
 				isNew = false;
+				recLsn = null;
+				numOfDirty.decrementAndGet();
 			}
 		} finally {
+			contentLock.unlockWrite(stamp);
 			flushLock.unlock();
-			contentLock.writeLock().unlock();
 		}
 	}
 
 	/**
-	 * Increases the buffer's pin count.
+	 * Increases the buffer's pin count unless the buffer is claimed for
+	 * replacement. This never blocks, but the caller has to check whether the
+	 * buffer still holds the expected block after it is pinned.
+	 * 
+	 * @return the new pin count, or -1 if the buffer is claimed
 	 */
-	void pin() {
-		// Optimization: This might be a danger optimization
-		// We have to make sure that txs have acquired swapLock before pin(),
-		// so that no two txs can call pin at the same time.
-		pins.incrementAndGet();
-		isRecentlyPinned.set(true);
+	int tryPin() {
+		while (true) {
+			int s = state.get();
+			if (s < 0)
+				return -1;
+			if (state.compareAndSet(s, s + 1))
+				return s + 1;
+		}
+	}
+
+	/**
+	 * Increases the buffer's pin count. The caller must hold the swap lock,
+	 * so the buffer is either not claimed or claimed by the caller, in which
+	 * case the claim is released.
+	 * 
+	 * @return the new pin count
+	 */
+	int pin() {
+		while (true) {
+			int s = state.get();
+			int pins = (s & ~CLAIMED) + 1;
+			if (state.compareAndSet(s, pins))
+				return pins;
+		}
 	}
 
 	/**
 	 * Decreases the buffer's pin count.
+	 * 
+	 * @return the new pin count
 	 */
-	void unpin() {
-		// Optimization: This might be a danger optimization
-		// We have to make sure that txs have acquired swapLock before unpin(),
-		// so that no two txs can call unpin at the same time.
-		pins.decrementAndGet();
+	int unpin() {
+		return state.decrementAndGet();
+	}
+
+	/**
+	 * Claims the buffer for replacement if it is not pinned. A claimed buffer
+	 * cannot be pinned through {@link #tryPin()} until the claim is released.
+	 * The caller must hold the swap lock.
+	 * 
+	 * @return true if the buffer is claimed
+	 */
+	boolean tryClaim() {
+		return state.compareAndSet(0, CLAIMED);
+	}
+
+	/**
+	 * Releases the claim of the buffer if it has not been released by
+	 * {@link #pin()}.
+	 */
+	void releaseClaim() {
+		state.compareAndSet(CLAIMED, 0);
+	}
+
+	/**
+	 * Marks the block of this buffer as read ahead of the transactions.
+	 */
+	void markReadAhead() {
+		readAhead.set(true);
+	}
+
+	/**
+	 * Clears the mark set by {@link #markReadAhead()}.
+	 * 
+	 * @return true if the block was read ahead and the mark is cleared by
+	 *         this call
+	 */
+	boolean clearReadAhead() {
+		return readAhead.get() && readAhead.compareAndSet(true, false);
 	}
 
 	/**
@@ -259,14 +394,16 @@ public class Buffer {
 	 * @return true if the buffer is pinned
 	 */
 	boolean isPinned() {
-		// Optimization: This might be a danger optimization
-		// We have to make sure that txs have acquired swapLock before isPinned(),
-		// so that no two txs can call isPinned at the same time.
-		return pins.get() > 0;
+		return (state.get() & ~CLAIMED) > 0;
 	}
 	
-	boolean checkRecentlyPinnedAndReset() {
-		return isRecentlyPinned.getAndSet(false);
+	/**
+	 * Returns the number of the frame this buffer occupies in its pool.
+	 * 
+	 * @return the frame number
+	 */
+	int frame() {
+		return frame;
 	}
 
 	/**
@@ -275,14 +412,31 @@ public class Buffer {
 	 * @return true if the buffer is dirty
 	 */
 	boolean isModified() {
-		contentLock.writeLock().lock();
+		// Read like lastLsn(), since the flag is set by setVal
+		long stamp = contentLock.tryOptimisticRead();
+		boolean modified = isModified;
+		if (contentLock.validate(stamp))
+			return modified;
+
+		stamp = contentLock.readLock();
 		try {
 			return isModified;
 		} finally {
-			contentLock.writeLock().unlock();
+			contentLock.unlockRead(stamp);
 		}
 	}
 
+	/**
+	 * Returns true if the buffer may be dirty, without taking any lock. The
+	 * answer may be out of date, so it is only a hint for skipping the clean
+	 * buffers cheaply.
+	 * 
+	 * @return false if the buffer is probably clean
+	 */
+	boolean mayBeDirty() {
+		return isNew || isModified;
+	}
+
 	/**
 	 * Reads the contents of the specified block into the buffer's page. If the
 	 * buffer was dirty, then the contents of the previous page are first
@@ -292,17 +446,15 @@ public class Buffer {
 	 *            a block ID
 	 */
 	void assignToBlock(BlockId blk) {
-		// Optimization: This might be a danger optimization
-		// This method is called because no tx pin this buffer,
+		// This method is called on a claimed buffer, which no tx pins,
 		// which means no tx will modify or read the content.
-		if (pins.get() > 0) {
+		if (isPinned()) {
 			throw new RuntimeException("The buffer is pinned by other transactions");
 		}
 		
 		flush();
 		this.blk = blk;
 		contents.read(blk);
-		pins.set(0);
 		lastLsn = LogSeqNum.readFromPage(contents, LAST_LSN_OFFSET);
 	}
 
@@ -317,19 +469,19 @@ public class Buffer {
 	 *            a page formatter, used to initialize the page
 	 */
 	void assignToNew(String fileName, PageFormatter fmtr) {
-		// Optimization: This might be a danger optimization
-		// This method is called because no tx pin this buffer,
+		// This method is called on a claimed buffer, which no tx pins,
 		// which means no tx will modify or read the content.
-		if (pins.get() > 0) {
+		if (isPinned()) {
 			throw new RuntimeException("The buffer is pinned by other transactions");
 		}
 		
 		flush();
 		fmtr.format(this);
 		blk = contents.append(fileName);
-		pins.set(0);
 		isNew = true;
+		numOfDirty.incrementAndGet();
 		lastLsn = LogSeqNum.DEFAULT_VALUE;
+		recLsn = null;
 	}
 	
 	/**
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * The task writes the dirty buffers ahead of the replacement policy of each
+ * {@link BufferPools buffer pool}, so that a pin seldom has to write a dirty
+ * victim before reading its own block.
+ * <p>
+ * The rate of writing adapts to the ratio of dirty buffers in each pool. Below
+ * {@link #LOW_DIRTY_RATIO}, the task writes nothing. Between
+ * {@link #LOW_DIRTY_RATIO} and {@link #HIGH_DIRTY_RATIO}, it writes up to
+ * {@link #MAX_BUFFERS_PER_ROUND} buffers each {@link #PERIOD}, proportional to
+ * how far the ratio is above the low mark. Above {@link #HIGH_DIRTY_RATIO}, it
+ * writes the full amount without sleeping as long as there are buffers to
+ * write.
+ */
+public class BufferCleanerTask extends Task {
+	private static Logger logger = Logger.getLogger(BufferCleanerTask.class
+			.getName());
+
+	/**
+	 * The time in milliseconds between two rounds of writing.
+	 */
+	public static final long PERIOD;
+
+	/**
+	 * The ratio of dirty buffers below which no buffer is written.
+	 */
+	public static final double LOW_DIRTY_RATIO;
+
+	/**
+	 * The ratio of dirty buffers above which the buffers are written without
+	 * pause.
+	 */
+	public static final double HIGH_DIRTY_RATIO;
+
+	/**
+	 * The maximum number of buffers written in a round.
+	 */
+	public static final int MAX_BUFFERS_PER_ROUND;
+
+	static {
+		PERIOD = CoreProperties.getLoader().getPropertyAsLong(
+				BufferCleanerTask.class.getName() + ".PERIOD", 100);
+		LOW_DIRTY_RATIO = CoreProperties.getLoader().getPropertyAsDouble(
+				BufferCleanerTask.class.getName() + ".LOW_DIRTY_RATIO", 0.1);
+		HIGH_DIRTY_RATIO = Math.max(CoreProperties.getLoader().getPropertyAsDouble(
+				BufferCleanerTask.class.getName() + ".HIGH_DIRTY_RATIO", 0.5),
+				LOW_DIRTY_RATIO);
+		MAX_BUFFERS_PER_ROUND = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				BufferCleanerTask.class.getName() + ".MAX_BUFFERS_PER_ROUND", 128), 1);
+	}
+
+	private BufferPoolMgr[] pools;
+
+	public BufferCleanerTask() {
+		pools = BufferMgr.bufferPools.all();
+	}
+
+	/**
+	 * Writes the dirty buffers likely to be replaced next in each pool for a
+	 * round.
+	 * 
+	 * @return true if a pool is still too dirty, and the next round should
+	 *         start without sleeping
+	 */
+	public boolean clean() {
+		boolean tooDirty = false;
+		for (BufferPoolMgr pool : pools)
+			tooDirty |= clean(pool);
+		return tooDirty;
+	}
+
+	private boolean clean(BufferPoolMgr pool) {
+		double dirtyRatio = (double) pool.dirty() / pool.size();
+		if (dirtyRatio <= LOW_DIRTY_RATIO)
+			return false;
+
+		int max = MAX_BUFFERS_PER_ROUND;
+		if (dirtyRatio < HIGH_DIRTY_RATIO)
+			max = (int) Math.ceil(max * (dirtyRatio - LOW_DIRTY_RATIO)
+					/ (HIGH_DIRTY_RATIO - LOW_DIRTY_RATIO));
+		int cleaned = pool.clean(max);
+
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("wrote " + cleaned + " buffers of pool " + pool.name()
+					+ ", dirty ratio: " + dirtyRatio);
+		return dirtyRatio >= HIGH_DIRTY_RATIO && cleaned > 0;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				if (!clean())
+					Thread.sleep(PERIOD);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
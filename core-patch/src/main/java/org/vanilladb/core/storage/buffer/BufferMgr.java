@@ -15,18 +15,18 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.buffer;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.TransactionLifecycleListener;
 import org.vanilladb.core.util.CoreProperties;
@@ -37,10 +37,11 @@ import org.vanilladb.core.util.CoreProperties;
  * difference is that the methods {@link #pin(BlockId)} and
  * {@link #pinNew(String, PageFormatter)} will never return false and null
  * respectively. If no buffers are currently available, then the calling thread
- * will be placed on a waiting list. The waiting threads are removed from the
- * list when a buffer becomes available. If a thread has been waiting for a
- * buffer for an excessive amount of time (currently, 10 seconds) then repins
- * all currently holding blocks by the calling transaction. Buffer manager
+ * will be placed on a {@link BufferWaitQueue FIFO waiting queue}, and each
+ * buffer becoming available wakes the first waiting thread. A waiter checks
+ * for a deadlock periodically: if every buffer of the pool is pinned by the
+ * waiting transactions, no one else can free a buffer, so the youngest of
+ * them is aborted to release its buffers. Buffer manager
  * implements {@link TransactionLifecycleListener} for the purpose of unpinning buffers
  * when transaction commit/rollback/recovery.
  * 
@@ -53,13 +54,11 @@ public class BufferMgr implements TransactionLifecycleListener {
 	private static Logger logger = Logger.getLogger(BufferMgr.class.getName());
 	
 	protected static final int BUFFER_POOL_SIZE;
-	private static final long MAX_TIME;
-	private static final long EPSILON;
-	private static final AtomicBoolean hasWaitingTx = new AtomicBoolean();
+	private static final long DEADLOCK_CHECK_INTERVAL;
 
 	static {
-		MAX_TIME = CoreProperties.getLoader().getPropertyAsLong(BufferMgr.class.getName() + ".MAX_TIME", 10000);
-		EPSILON = CoreProperties.getLoader().getPropertyAsLong(BufferMgr.class.getName() + ".EPSILON", 50);
+		DEADLOCK_CHECK_INTERVAL = CoreProperties.getLoader().getPropertyAsLong(
+				BufferMgr.class.getName() + ".DEADLOCK_CHECK_INTERVAL", 100);
 		BUFFER_POOL_SIZE = CoreProperties.getLoader()
 				.getPropertyAsInteger(BufferMgr.class.getName() + ".BUFFER_POOL_SIZE", 1024);
 	}
@@ -73,13 +72,17 @@ public class BufferMgr implements TransactionLifecycleListener {
 		}
 	}
 
-	protected static BufferPoolMgr bufferPool = new BufferPoolMgr(BUFFER_POOL_SIZE);
-	protected static List<Thread> waitingThreads = new LinkedList<Thread>();
+	protected static BufferPools bufferPools = new BufferPools(BUFFER_POOL_SIZE);
+	// The buffers pinned by each transaction waiting for a buffer
+	private static final Map<BufferMgr, Collection<Buffer>> waitingTxs = new ConcurrentHashMap<BufferMgr, Collection<Buffer>>();
+	private static ReadAheadMgr readAheadMgr = ReadAheadMgr.ENABLED ? new ReadAheadMgr() : null;
 	
 	// Record the buffers that is being pinned by the transaction
 	private Map<BlockId, PinningBuffer> pinningBuffers = new HashMap<BlockId, PinningBuffer>();
 	// Record all the buffers that the transaction ever pins in order to flush them later
 	private Set<Buffer> buffersToFlush = new HashSet<Buffer>();
+	// Record the last scan of each file for reading ahead
+	private Map<String, ReadAheadMgr.Stream> readAheadStreams;
 	private long txNum;
 	
 	public BufferMgr(long txNum) {
@@ -103,8 +106,8 @@ public class BufferMgr implements TransactionLifecycleListener {
 
 	/**
 	 * Pins a buffer to the specified block, potentially waiting until a buffer
-	 * becomes available. If no buffer becomes available within a fixed time
-	 * period, then repins all currently holding blocks.
+	 * becomes available. If the transaction is chosen to break a deadlock
+	 * among the waiting transactions, it is aborted.
 	 * 
 	 * @param blk
 	 *            a block ID
@@ -118,66 +121,30 @@ public class BufferMgr implements TransactionLifecycleListener {
 			return pinnedBuff.buffer;
 		}
 		
-		// This transaction has pinned too many buffers
-		if (pinningBuffers.size() == BUFFER_POOL_SIZE)
+		// This transaction has pinned all buffers of the pool
+		BufferPoolMgr bufferPool = bufferPools.poolOf(blk.fileName());
+		if (pinsAllBuffersOf(bufferPool))
 			throw new BufferAbortException();
 		
-		// Pinning process
-		try {
-			Buffer buff;
-			long timestamp = System.currentTimeMillis();
-			boolean waitOnce = false;
-
-			// Try to pin a buffer or the pinned buffer for the given BlockId
-			buff = bufferPool.pin(blk);
-
-			// If there is no such buffer or no available buffer,
-			// wait for it
-			if (buff == null) {
-				waitOnce = true;
-				synchronized (bufferPool) {
-					hasWaitingTx.set(true);
-					waitingThreads.add(Thread.currentThread());
-
-					while (buff == null && !waitingTooLong(timestamp)) {
-						bufferPool.wait(MAX_TIME);
-						if (waitingThreads.get(0).equals(Thread.currentThread()))
-							buff = bufferPool.pin(blk);
-					}
-
-					waitingThreads.remove(Thread.currentThread());
-					hasWaitingTx.set(!waitingThreads.isEmpty());
-				}
-			}
+		// Try to pin a buffer or the pinned buffer for the given BlockId
+		Buffer buff = bufferPool.pin(blk);
 
-			// If it still has no buffer after a long wait,
-			// release and re-pin all buffers it has
-			if (buff == null) {
-				repin();
-				buff = pin(blk);
-			} else {
-				pinningBuffers.put(buff.block(), new PinningBuffer(buff));
-				buffersToFlush.add(buff);
-			}
+		// If there is no available buffer, wait for it
+		if (buff == null)
+			buff = waitAndPin(bufferPool, blk, null, null);
 
-			// Optimization: A tx, which have waited once to pin a buffer,
-			// is responsible for notifying other waiting txs.
-			if (waitOnce) {
-				synchronized (bufferPool) {
-					bufferPool.notifyAll();
-				}
-			}
+		pinningBuffers.put(buff.block(), new PinningBuffer(buff));
+		buffersToFlush.add(buff);
 
-			return buff;
-		} catch (InterruptedException e) {
-			throw new BufferAbortException();
-		}
+		if (readAheadMgr != null)
+			readAhead(bufferPool, blk);
+		return buff;
 	}
 
 	/**
 	 * Pins a buffer to a new block in the specified file, potentially waiting
-	 * until a buffer becomes available. If no buffer becomes available within a
-	 * fixed time period, then repins all currently holding blocks.
+	 * until a buffer becomes available. If the transaction is chosen to break a
+	 * deadlock among the waiting transactions, it is aborted.
 	 * 
 	 * @param fileName
 	 *            the name of the file
@@ -186,56 +153,20 @@ public class BufferMgr implements TransactionLifecycleListener {
 	 * @return the buffer pinned to that block
 	 */
 	public Buffer pinNew(String fileName, PageFormatter fmtr) {
-		if (pinningBuffers.size() == BUFFER_POOL_SIZE)
+		BufferPoolMgr bufferPool = bufferPools.poolOf(fileName);
+		if (pinsAllBuffersOf(bufferPool))
 			throw new BufferAbortException();
-		try {
-			Buffer buff;
-			long timestamp = System.currentTimeMillis();
-			boolean waitOnce = false;
 
-			// Try to pin a buffer or the pinned buffer for the given BlockId
-			buff = bufferPool.pinNew(fileName, fmtr);
+		// Try to pin a buffer for a new block
+		Buffer buff = bufferPool.pinNew(fileName, fmtr);
 
-			// If there is no such buffer or no available buffer,
-			// wait for it
-			if (buff == null) {
-				waitOnce = true;
-				synchronized (bufferPool) {
-					waitingThreads.add(Thread.currentThread());
-
-					while (buff == null && !waitingTooLong(timestamp)) {
-						bufferPool.wait(MAX_TIME);
-						if (waitingThreads.get(0).equals(Thread.currentThread()))
-							buff = bufferPool.pinNew(fileName, fmtr);
-					}
-
-					waitingThreads.remove(Thread.currentThread());
-				}
-			}
-
-			// If it still has no buffer after a long wait,
-			// release and re-pin all buffers it has
-			if (buff == null) {
-				repin();
-				buff = pinNew(fileName, fmtr);
-			} else {
-				pinningBuffers.put(buff.block(), new PinningBuffer(buff));
-				buffersToFlush.add(buff);
-			}
-
-			// Optimization: A tx, which have waited once to pin a buffer,
-			// is responsible for notifying other waiting txs.
-			if (waitOnce) {
-				synchronized (bufferPool) {
-					bufferPool.notifyAll();
-				}
-			}
-
-			return buff;
-		} catch (InterruptedException e) {
-			throw new BufferAbortException();
-		}
+		// If there is no available buffer, wait for it
+		if (buff == null)
+			buff = waitAndPin(bufferPool, null, fileName, fmtr);
 
+		pinningBuffers.put(buff.block(), new PinningBuffer(buff));
+		buffersToFlush.add(buff);
+		return buff;
 	}
 
 	/**
@@ -253,16 +184,8 @@ public class BufferMgr implements TransactionLifecycleListener {
 			pinnedBuff.pinCount--;
 			
 			if (pinnedBuff.pinCount == 0) {
-				bufferPool.unpin(buff);
+				bufferPools.poolOf(blk.fileName()).unpin(buff);
 				pinningBuffers.remove(blk);
-				
-				// Optimization: If there are no txs waiting for pinning buffers,
-				// skip notifying.
-				if (hasWaitingTx.get()) {
-					synchronized (bufferPool) {
-						bufferPool.notifyAll();
-					}
-				}
 			}
 		}
 	}
@@ -271,7 +194,26 @@ public class BufferMgr implements TransactionLifecycleListener {
 	 * Flushes all dirty buffers.
 	 */
 	public void flushAll() {
-		bufferPool.flushAll();
+		for (BufferPoolMgr bufferPool : bufferPools.all())
+			bufferPool.flushAll();
+	}
+
+	/**
+	 * Returns the minimum recLSN of the dirty buffers in all pools, which is
+	 * where the redo of a recovery has to start from. Unlike
+	 * {@link #flushAll()}, this flushes only the dirty buffers whose changes
+	 * have no log records.
+	 * 
+	 * @return the minimum recLSN, or null if no buffer has one
+	 */
+	public LogSeqNum minRecLsn() {
+		LogSeqNum minLsn = null;
+		for (BufferPoolMgr bufferPool : bufferPools.all()) {
+			LogSeqNum lsn = bufferPool.minRecLsn();
+			if (lsn != null && (minLsn == null || lsn.compareTo(minLsn) < 0))
+				minLsn = lsn;
+		}
+		return minLsn;
 	}
 
 	/**
@@ -289,61 +231,120 @@ public class BufferMgr implements TransactionLifecycleListener {
 	 * @return the number of available buffers`
 	 */
 	public int available() {
-		return bufferPool.available();
+		return bufferPools.available();
 	}
 
 	private void unpinAll(Transaction tx) {
 		// Copy the set of pinned buffers to avoid ConcurrentModificationException
 		Set<PinningBuffer> pinnedBuffs = new HashSet<PinningBuffer>(pinningBuffers.values());
-		if (pinnedBuffs != null) {
-			for (PinningBuffer pinnedBuff : pinnedBuffs)
-				bufferPool.unpin(pinnedBuff.buffer);
-		}
-
-		synchronized (bufferPool) {
-			bufferPool.notifyAll();
+		for (PinningBuffer pinnedBuff : pinnedBuffs) {
+			Buffer buff = pinnedBuff.buffer;
+			bufferPools.poolOf(buff.block().fileName()).unpin(buff);
 		}
 	}
 
 	/**
-	 * Unpins all currently pinned buffers of the calling transaction and repins
-	 * them.
+	 * Returns whether this transaction pins every buffer of the specified
+	 * pool, so that it would wait for itself.
 	 */
-	private void repin() {
-		if (logger.isLoggable(Level.WARNING))
-			logger.warning("Tx." + txNum + " is re-pinning all buffers");
+	private boolean pinsAllBuffersOf(BufferPoolMgr bufferPool) {
+		int poolSize = bufferPool.size();
+		if (pinningBuffers.size() < poolSize)
+			return false;
 		
-		try {
-			// Copy the set of pinned buffers to avoid ConcurrentModificationException
-			List<BlockId> blksToBeRepinned = new LinkedList<BlockId>();
-			Map<BlockId, Integer> pinCounts = new HashMap<BlockId, Integer>();
-			List<Buffer> buffersToBeUnpinned = new LinkedList<Buffer>();
-			
-			// Record the buffers to be un-pinned and the blocks to be re-pinned
-			for (Entry<BlockId, PinningBuffer> entry : pinningBuffers.entrySet()) {
-				blksToBeRepinned.add(entry.getKey());
-				pinCounts.put(entry.getKey(), entry.getValue().pinCount);
-				buffersToBeUnpinned.add(entry.getValue().buffer);
-			}
-			
-			// Un-pin all buffers it has
-			for (Buffer buf : buffersToBeUnpinned)
-				unpin(buf);
+		int pinned = 0;
+		for (PinningBuffer pinnedBuff : pinningBuffers.values())
+			if (bufferPools.poolOf(pinnedBuff.buffer.block().fileName()) == bufferPool)
+				pinned++;
+		return pinned >= poolSize;
+	}
 
-			// Wait other threads pinning blocks
-			synchronized (bufferPool) {
-				bufferPool.wait(MAX_TIME);
-			}
+	private void readAhead(BufferPoolMgr bufferPool, BlockId blk) {
+		if (readAheadStreams == null)
+			readAheadStreams = new HashMap<String, ReadAheadMgr.Stream>();
+		String fileName = blk.fileName();
+		ReadAheadMgr.Stream stream = readAheadMgr.onPin(
+				readAheadStreams.get(fileName), bufferPool, blk);
+		if (stream != null)
+			readAheadStreams.put(fileName, stream);
+	}
 
-			// Re-pin all blocks
-			for (BlockId blk : blksToBeRepinned)
-				pin(blk);
+	/**
+	 * Waits in the queue of the pool until the specified block, or a new block
+	 * of the specified file if the block is null, is pinned.
+	 */
+	private Buffer waitAndPin(BufferPoolMgr bufferPool, BlockId blk,
+			String fileName, PageFormatter fmtr) {
+		BufferWaitQueue waitQueue = bufferPool.waitQueue();
+		BufferStatistics stats = bufferPool.statistics();
+		long waitStart = System.nanoTime();
+		long interval = DEADLOCK_CHECK_INTERVAL * 1000000;
+		// A transaction holding no buffer cannot be a part of a deadlock
+		if (!pinningBuffers.isEmpty()) {
+			Collection<Buffer> pinned = new ArrayList<Buffer>(pinningBuffers.size());
+			for (PinningBuffer pinnedBuff : pinningBuffers.values())
+				pinned.add(pinnedBuff.buffer);
+			waitingTxs.put(this, pinned);
+		}
+		BufferWaitQueue.Waiter waiter = waitQueue.enter();
+		try {
+			// Retry after entering the queue, since a buffer freed before
+			// that wakes no one
+			boolean isTimedOut = false;
+			while (true) {
+				Buffer buff = (blk != null) ? bufferPool.pin(blk) : bufferPool.pinNew(fileName, fmtr);
+				if (buff != null)
+					return buff;
+				
+				if (isTimedOut && isDeadlockVictim()) {
+					if (logger.isLoggable(Level.WARNING))
+						logger.warning("Tx." + txNum + " is in a deadlock waiting for a buffer, aborting");
+					throw new BufferAbortException();
+				}
+				
+				isTimedOut = !waitQueue.await(waiter, System.nanoTime() + interval);
+				if (!isTimedOut && BufferStatistics.ENABLED)
+					stats.recordRepin();
+			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			throw new BufferAbortException();
+		} finally {
+			waitQueue.leave(waiter);
+			waitingTxs.remove(this);
+			if (BufferStatistics.ENABLED)
+				stats.recordPinWait(System.nanoTime() - waitStart);
 		}
 	}
 
-	private boolean waitingTooLong(long startTime) {
-		return System.currentTimeMillis() - startTime + EPSILON > MAX_TIME;
+	/**
+	 * Returns whether this transaction should abort to break a deadlock. That
+	 * is the case if every buffer of some pool is pinned by the waiting
+	 * transactions, so none of them can be freed, and this transaction is the
+	 * youngest one among those pinning the buffers of such pools. The pool
+	 * does not have to be the one this transaction waits for, since a cycle
+	 * may go through several pools.
+	 */
+	private boolean isDeadlockVictim() {
+		if (!waitingTxs.containsKey(this))
+			return false;
+		long victim = -1;
+		for (BufferPoolMgr bufferPool : bufferPools.all()) {
+			Set<Buffer> pinnedByWaiters = new HashSet<Buffer>();
+			long youngest = -1;
+			for (Map.Entry<BufferMgr, Collection<Buffer>> entry : waitingTxs.entrySet()) {
+				boolean pinsPool = false;
+				for (Buffer buff : entry.getValue()) {
+					if (bufferPools.poolOf(buff.block().fileName()) == bufferPool) {
+						pinnedByWaiters.add(buff);
+						pinsPool = true;
+					}
+				}
+				if (pinsPool)
+					youngest = Math.max(youngest, entry.getKey().txNum);
+			}
+			if (pinnedByWaiters.size() == bufferPool.size())
+				victim = Math.max(victim, youngest);
+		}
+		return victim == txNum;
 	}
 }
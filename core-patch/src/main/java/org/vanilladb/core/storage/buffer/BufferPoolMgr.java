@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.buffer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -23,15 +25,49 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.file.io.IoAllocator;
+import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.util.CoreProperties;
 
 /**
- * Manages the pinning and unpinning of buffers to blocks.
+ * Manages the pinning and unpinning of buffers to blocks. The buffers to be
+ * replaced are chosen by a {@link ReplacementPolicy}.
  */
 class BufferPoolMgr {
+
+	/**
+	 * The replacement policy of the default pool, and of the pools that do
+	 * not set their own.
+	 */
+	static final Class<?> REPLACEMENT_POLICY;
+
+	static {
+		REPLACEMENT_POLICY = CoreProperties.getLoader().getPropertyAsClass(
+				BufferPoolMgr.class.getName() + ".REPLACEMENT_POLICY",
+				ClockPolicy.class, ReplacementPolicy.class);
+	}
+
+	private String name;
 	private Buffer[] bufferPool;
 	private Map<BlockId, Buffer> blockMap;
-	private volatile int lastReplacedBuff;
+	private ReplacementPolicy policy;
+	private ReplacementPolicy.Frames frames = new PoolFrames(false);
+	// The frames seen by the policy choosing a victim, which count the frames
+	// examined
+	private ReplacementPolicy.Frames victimFrames = new PoolFrames(true);
+	private BufferStatistics stats;
 	private AtomicInteger numAvailable;
+	private AtomicInteger numOfDirty = new AtomicInteger();
+	// Where the cleaner sweeps from if the policy cannot tell the next victims
+	private int cleanerHand;
+	private BufferWaitQueue waitQueue = new BufferWaitQueue();
+	// The number of blocks read ahead of a sequential scan, adjusted to how
+	// many blocks read ahead are pinned before they are replaced
+	private volatile int readAheadWindow = ReadAheadMgr.INITIAL_WINDOW;
+	private AtomicInteger numOfReadAheadUsed = new AtomicInteger();
+	private AtomicInteger numOfReadAheadWasted = new AtomicInteger();
 
 	// Optimization: Lock striping
 	private static final int stripSize = 1009;
@@ -46,16 +82,32 @@ class BufferPoolMgr {
 	 * initialization. Thus this constructor cannot be called until
 	 * {@link VanillaDb#initFileAndLogMgr(String)} or is called first.
 	 * 
+	 * @param name
+	 *            the name of the pool
 	 * @param numBuffs
 	 *            the number of buffer slots to allocate. Must be at least 2.
+	 * @param policyClass
+	 *            the class of the replacement policy
 	 */
-	BufferPoolMgr(int numBuffs) {
+	BufferPoolMgr(String name, int numBuffs, Class<?> policyClass) {
+		this.name = name;
+		this.stats = new BufferStatistics(name);
 		bufferPool = new Buffer[numBuffs];
 		blockMap = new ConcurrentHashMap<BlockId, Buffer>(numBuffs);
 		numAvailable = new AtomicInteger(numBuffs);
-		lastReplacedBuff = 0;
+		// The pages of all frames share one arena, in which the page of a frame
+		// is at the slot numbered by the frame
+		IoBuffer[] arena = IoAllocator.newIoBuffers(numBuffs, Page.BLOCK_SIZE);
 		for (int i = 0; i < numBuffs; i++)
-			bufferPool[i] = new Buffer();
+			bufferPool[i] = new Buffer(i, numOfDirty, arena[i]);
+
+		try {
+			policy = (ReplacementPolicy) policyClass.newInstance();
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new RuntimeException("cannot create the replacement policy "
+					+ policyClass.getName(), e);
+		}
+		policy.init(numBuffs);
 
 		for (int i = 0; i < stripSize; ++i) {
 			fileLocks[i] = new ReentrantLock();
@@ -93,6 +145,80 @@ class BufferPoolMgr {
 		}
 	}
 
+	/**
+	 * Returns the minimum recLSN of the dirty buffers, from which the redo of
+	 * a recovery has to start to restore them. The dirty buffers without a
+	 * recLSN, whose changes were made without log records, cannot be restored
+	 * that way and are flushed instead. The buffers are examined one by one
+	 * while the transactions keep running.
+	 * 
+	 * @return the minimum recLSN, or null if no buffer has one
+	 */
+	LogSeqNum minRecLsn() {
+		LogSeqNum minLsn = null;
+		for (Buffer buff : bufferPool) {
+			if (!buff.mayBeDirty())
+				continue;
+			LogSeqNum lsn;
+			try {
+				buff.getSwapLock().lock();
+				lsn = buff.recLsn();
+			} finally {
+				buff.getSwapLock().unlock();
+			}
+			if (lsn != null && (minLsn == null || lsn.compareTo(minLsn) < 0))
+				minLsn = lsn;
+		}
+		return minLsn;
+	}
+
+	/**
+	 * Writes the dirty buffers that are likely to be replaced next, so that
+	 * the victims found by later pins are usually clean. A buffer is written
+	 * only if it is not pinned and no one is swapping it; the log records of
+	 * its modifications are flushed first by {@link Buffer#flush()}. This is
+	 * called by a single cleaner.
+	 * 
+	 * @param max
+	 *            the maximum number of buffers to write
+	 * @return the number of buffers written
+	 */
+	int clean(int max) {
+		int numOfBuffs = bufferPool.length;
+		int[] candidates = policy.nextVictims(frames, Math.min(max * 4, numOfBuffs));
+		int cleaned = 0;
+		if (candidates != null) {
+			for (int i = 0; i < candidates.length && cleaned < max; i++)
+				if (cleanFrame(candidates[i]))
+					cleaned++;
+		} else {
+			for (int i = 0; i < numOfBuffs && cleaned < max; i++) {
+				if (cleanFrame(cleanerHand))
+					cleaned++;
+				cleanerHand = (cleanerHand + 1) % numOfBuffs;
+			}
+		}
+		return cleaned;
+	}
+
+	private boolean cleanFrame(int frame) {
+		Buffer buff = bufferPool[frame];
+		if (buff.isPinned() || !buff.mayBeDirty())
+			return false;
+
+		// Skip the buffer if someone is pinning or swapping it
+		if (!buff.getSwapLock().tryLock())
+			return false;
+		try {
+			if (buff.isPinned() || !buff.mayBeDirty())
+				return false;
+			buff.flush();
+			return true;
+		} finally {
+			buff.getSwapLock().unlock();
+		}
+	}
+
 	/**
 	 * Pins a buffer to the specified block. If there is already a buffer
 	 * assigned to that block then that buffer is used; otherwise, an unpinned
@@ -104,6 +230,35 @@ class BufferPoolMgr {
 	 * @return the pinned buffer
 	 */
 	Buffer pin(BlockId blk) {
+		// Optimization: Pin the buffer holding the block without any lock, and
+		// validate the block after it is pinned, since the buffer may have been
+		// replaced after it was found
+		Buffer buff = findExistingBuffer(blk);
+		if (buff != null) {
+			int pins = buff.tryPin();
+			if (pins > 0) {
+				if (pins == 1)
+					numAvailable.decrementAndGet();
+				if (blk.equals(buff.block())) {
+					if (buff.clearReadAhead())
+						countReadAhead(true);
+					policy.onAccess(buff.frame());
+					if (BufferStatistics.ENABLED)
+						stats.recordHit(blk);
+					return buff;
+				}
+				unpin(buff);
+			}
+		}
+		return pinSlowly(blk);
+	}
+
+	/**
+	 * Pins a buffer to the specified block with the locks, which loads the
+	 * block if it is not in the pool, or waits for the buffer holding it to be
+	 * swapped.
+	 */
+	private Buffer pinSlowly(BlockId blk) {
 		// The blockLock prevents race condition.
 		// Only one tx can trigger the swapping action for the same block.
 		ReentrantLock blockLock = prepareBlockLock(blk);
@@ -116,40 +271,38 @@ class BufferPoolMgr {
 			if (buff == null) {
 
 				// Choose Unpinned Buffer
-				int lastReplacedBuff = this.lastReplacedBuff;
-				int currBlk = (lastReplacedBuff + 1) % bufferPool.length;
-				// Note: this check will fail if there is only one buffer
-				while (currBlk != lastReplacedBuff) {
-					buff = bufferPool[currBlk];
-					
-					// Get the lock of buffer if it is free
-					if (buff.getSwapLock().tryLock()) {
-						try {
-							// Check if there is no one use it
-							if (!buff.isPinned() && !buff.checkRecentlyPinnedAndReset()) {
-								this.lastReplacedBuff = currBlk;
-								
-								// Swap
-								BlockId oldBlk = buff.block();
-								if (oldBlk != null)
-									blockMap.remove(oldBlk);
-								buff.assignToBlock(blk);
-								blockMap.put(blk, buff);
-								if (!buff.isPinned())
-									numAvailable.decrementAndGet();
-								
-								// Pin this buffer
-								buff.pin();
-								return buff;
-							}
-						} finally {
-							// Release the lock of buffer
-							buff.getSwapLock().unlock();
-						}
+				int frame = chooseVictim();
+				if (frame < 0)
+					return null;
+				buff = bufferPool[frame];
+
+				// The lock of buffer is held since the policy claimed it
+				try {
+					// Swap
+					BlockId oldBlk = buff.block();
+					if (oldBlk != null) {
+						blockMap.remove(oldBlk);
+						if (BufferStatistics.ENABLED)
+							stats.recordEviction(oldBlk, buff.mayBeDirty());
 					}
-					currBlk = (currBlk + 1) % bufferPool.length;
+					if (buff.clearReadAhead())
+						countReadAhead(false);
+					buff.assignToBlock(blk);
+					blockMap.put(blk, buff);
+					policy.onReplace(frame, oldBlk, blk);
+					if (BufferStatistics.ENABLED)
+						stats.recordMiss(blk);
+
+					// Pin this buffer, which releases the claim
+					buff.pin();
+					numAvailable.decrementAndGet();
+					policy.onAccess(frame);
+					return buff;
+				} finally {
+					// Release the lock of buffer
+					buff.releaseClaim();
+					buff.getSwapLock().unlock();
 				}
-				return null;
 				
 			// If it exists
 			} else {
@@ -164,12 +317,16 @@ class BufferPoolMgr {
 				try {
 					// Check its block id before pinning since it might be swapped
 					if (buff.block().equals(blk)) {
-						if (!buff.isPinned())
+						if (buff.pin() == 1)
 							numAvailable.decrementAndGet();
-						buff.pin();
+						if (buff.clearReadAhead())
+							countReadAhead(true);
+						policy.onAccess(buff.frame());
+						if (BufferStatistics.ENABLED)
+							stats.recordHit(blk);
 						return buff;
 					}
-					return pin(blk);
+					return pinSlowly(blk);
 					
 				} finally {
 					// Release the lock of buffer
@@ -185,6 +342,124 @@ class BufferPoolMgr {
 		}
 	}
 
+	/**
+	 * Reads the specified block into the pool without pinning it, unless it
+	 * is already in the pool or being pinned. The policy is told about an
+	 * access to the block, since otherwise a block read ahead would be the
+	 * first to be replaced, often before the scan reaches it.
+	 * 
+	 * @param blk
+	 *            a block ID
+	 * @return false if there is no available buffer
+	 */
+	boolean readAhead(BlockId blk) {
+		return load(blk, true);
+	}
+
+	/**
+	 * Reads the specified block into the pool without pinning it, like
+	 * {@link #readAhead(BlockId)}, but the block is not counted as read ahead.
+	 * 
+	 * @param blk
+	 *            a block ID
+	 * @return false if there is no available buffer
+	 */
+	boolean warmUp(BlockId blk) {
+		return load(blk, false);
+	}
+
+	private boolean load(BlockId blk, boolean readAhead) {
+		// Never wait for the transactions pinning the same block
+		ReentrantLock blockLock = prepareBlockLock(blk);
+		if (!blockLock.tryLock())
+			return true;
+		try {
+			if (findExistingBuffer(blk) != null)
+				return true;
+
+			int frame = chooseVictim();
+			if (frame < 0)
+				return false;
+			Buffer buff = bufferPool[frame];
+
+			// The lock of buffer is held since the policy claimed it
+			try {
+				BlockId oldBlk = buff.block();
+				if (oldBlk != null) {
+					blockMap.remove(oldBlk);
+					if (BufferStatistics.ENABLED)
+						stats.recordEviction(oldBlk, buff.mayBeDirty());
+				}
+				if (buff.clearReadAhead())
+					countReadAhead(false);
+				buff.assignToBlock(blk);
+				blockMap.put(blk, buff);
+				policy.onReplace(frame, oldBlk, blk);
+				policy.onAccess(frame);
+				if (readAhead)
+					buff.markReadAhead();
+				return true;
+			} finally {
+				buff.releaseClaim();
+				buff.getSwapLock().unlock();
+			}
+		} finally {
+			blockLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the blocks in this pool, the hottest first according to the
+	 * replacement policy, or in the order of the frames if the policy cannot
+	 * tell. The blocks being replaced at the same time may be missed.
+	 * 
+	 * @return the blocks in this pool
+	 */
+	List<BlockId> residentBlocks() {
+		int[] order = policy.framesByHotness(frames);
+		List<BlockId> blks = new ArrayList<BlockId>(blockMap.size());
+		int n = order == null ? bufferPool.length : order.length;
+		for (int i = 0; i < n; i++) {
+			BlockId blk = bufferPool[order == null ? i : order[i]].block();
+			if (blk != null)
+				blks.add(blk);
+		}
+		return blks;
+	}
+
+	/**
+	 * Returns the number of blocks to be read ahead of a sequential scan.
+	 * 
+	 * @return the read-ahead window
+	 */
+	int readAheadWindow() {
+		return readAheadWindow;
+	}
+
+	/**
+	 * Counts a block read ahead as used or wasted, and adjusts the window
+	 * after every {@link ReadAheadMgr#ADJUST_INTERVAL} blocks.
+	 */
+	private void countReadAhead(boolean used) {
+		if (used)
+			numOfReadAheadUsed.incrementAndGet();
+		else
+			numOfReadAheadWasted.incrementAndGet();
+		if (numOfReadAheadUsed.get() + numOfReadAheadWasted.get() < ReadAheadMgr.ADJUST_INTERVAL)
+			return;
+
+		synchronized (numOfReadAheadUsed) {
+			int numUsed = numOfReadAheadUsed.get();
+			int numWasted = numOfReadAheadWasted.get();
+			if (numUsed + numWasted < ReadAheadMgr.ADJUST_INTERVAL)
+				return;
+			numOfReadAheadUsed.addAndGet(-numUsed);
+			numOfReadAheadWasted.addAndGet(-numWasted);
+			readAheadWindow = ReadAheadMgr.adjustWindow(readAheadWindow,
+					numUsed, numWasted);
+		}
+	}
+
 	/**
 	 * Allocates a new block in the specified file, and pins a buffer to it.
 	 * Returns null (without allocating the block) if there are no available
@@ -202,62 +477,60 @@ class BufferPoolMgr {
 		fileLock.lock();
 		try {
 			// Choose Unpinned Buffer
-			int lastReplacedBuff = this.lastReplacedBuff;
-			int currBlk = (lastReplacedBuff + 1) % bufferPool.length;
-			while (currBlk != lastReplacedBuff) {
-				Buffer buff = bufferPool[currBlk];
-				
-				// Get the lock of buffer if it is free
-				if (buff.getSwapLock().tryLock()) {
-					try {
-						if (!buff.isPinned() && !buff.checkRecentlyPinnedAndReset()) {
-							this.lastReplacedBuff = currBlk;
-							
-							// Swap
-							BlockId oldBlk = buff.block();
-							if (oldBlk != null)
-								blockMap.remove(oldBlk);
-							buff.assignToNew(fileName, fmtr);
-							blockMap.put(buff.block(), buff);
-							if (!buff.isPinned())
-								numAvailable.decrementAndGet();
-							
-							// Pin this buffer
-							buff.pin();
-							return buff;
-						}
-					} finally {
-						// Release the lock of buffer
-						buff.getSwapLock().unlock();
-					}
+			int frame = chooseVictim();
+			if (frame < 0)
+				return null;
+			Buffer buff = bufferPool[frame];
+
+			// The lock of buffer is held since the policy claimed it
+			try {
+				// Swap
+				BlockId oldBlk = buff.block();
+				if (oldBlk != null) {
+					blockMap.remove(oldBlk);
+					if (BufferStatistics.ENABLED)
+						stats.recordEviction(oldBlk, buff.mayBeDirty());
 				}
-				currBlk = (currBlk + 1) % bufferPool.length;
+				if (buff.clearReadAhead())
+					countReadAhead(false);
+				buff.assignToNew(fileName, fmtr);
+				blockMap.put(buff.block(), buff);
+				policy.onReplace(frame, oldBlk, buff.block());
+
+				// Pin this buffer, which releases the claim
+				buff.pin();
+				numAvailable.decrementAndGet();
+				policy.onAccess(frame);
+				return buff;
+			} finally {
+				// Release the lock of buffer
+				buff.releaseClaim();
+				buff.getSwapLock().unlock();
 			}
-			return null;
 		} finally {
 			fileLock.unlock();
 		}
 	}
 
 	/**
-	 * Unpins the specified buffers.
+	 * Unpins the specified buffers, and wakes a thread waiting for a free
+	 * buffer of this pool for each buffer that becomes unpinned.
 	 * 
 	 * @param buffs
 	 *            the buffers to be unpinned
+	 * @return the number of buffers that become unpinned
 	 */
-	void unpin(Buffer... buffs) {
+	int unpin(Buffer... buffs) {
+		// A pinned buffer cannot be claimed, so no lock is needed
+		int freed = 0;
 		for (Buffer buff : buffs) {
-			try {
-				// Get the lock of buffer
-				buff.getSwapLock().lock();
-				buff.unpin();
-				if (!buff.isPinned())
-					numAvailable.incrementAndGet();
-			} finally {
-				// Release the lock of buffer
-				buff.getSwapLock().unlock();
+			if (buff.unpin() == 0) {
+				numAvailable.incrementAndGet();
+				freed++;
 			}
 		}
+		waitQueue.wake(freed);
+		return freed;
 	}
 
 	/**
@@ -269,7 +542,91 @@ class BufferPoolMgr {
 		return numAvailable.get();
 	}
 
+	/**
+	 * Returns the number of dirty buffers.
+	 * 
+	 * @return the number of dirty buffers
+	 */
+	int dirty() {
+		return numOfDirty.get();
+	}
+
+	/**
+	 * Returns the name of this pool.
+	 * 
+	 * @return the pool name
+	 */
+	String name() {
+		return name;
+	}
+
+	/**
+	 * Returns the queue of the threads waiting for a free buffer of this pool.
+	 * 
+	 * @return the wait queue
+	 */
+	BufferWaitQueue waitQueue() {
+		return waitQueue;
+	}
+
+	/**
+	 * Returns the number of buffers in this pool.
+	 * 
+	 * @return the pool size
+	 */
+	int size() {
+		return bufferPool.length;
+	}
+
+	/**
+	 * Returns the statistics of this pool.
+	 * 
+	 * @return the statistics
+	 */
+	BufferStatistics statistics() {
+		return stats;
+	}
+
+	private int chooseVictim() {
+		if (BufferStatistics.ENABLED)
+			stats.recordVictimSearch();
+		return policy.chooseVictim(victimFrames);
+	}
+
 	private Buffer findExistingBuffer(BlockId blk) {
 		return blockMap.get(blk);
 	}
+
+	/**
+	 * The frames of this pool seen by the replacement policy.
+	 */
+	private class PoolFrames implements ReplacementPolicy.Frames {
+		private boolean countsSwept;
+
+		PoolFrames(boolean countsSwept) {
+			this.countsSwept = countsSwept;
+		}
+
+		@Override
+		public boolean isPinned(int frame) {
+			if (countsSwept && BufferStatistics.ENABLED)
+				stats.recordFrameSwept();
+			return bufferPool[frame].isPinned();
+		}
+
+		@Override
+		public boolean tryClaim(int frame) {
+			Buffer buff = bufferPool[frame];
+
+			// Get the lock of buffer if it is free
+			if (buff.getSwapLock().tryLock()) {
+				// Claim it if there is no one use it, which also stops the
+				// pins without the lock
+				if (buff.tryClaim())
+					return true;
+				buff.getSwapLock().unlock();
+			}
+			return false;
+		}
+	}
 }
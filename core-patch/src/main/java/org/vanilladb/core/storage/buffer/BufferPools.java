@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * The buffer pools of the system. The blocks of a file are cached by the
+ * first named pool that has a pattern matching the name of the file, or by
+ * the default pool if there is none. Each named pool has its own size and
+ * replacement policy, so the files in different pools never replace the
+ * blocks of each other. For example, the following settings keep the
+ * directories of the B-tree indices in a pool of their own, and the temporary
+ * tables in a small pool:
+ * 
+ * <pre>
+ * BufferPools.POOLS=index,temp
+ * BufferPools.index.SIZE=4096
+ * BufferPools.index.FILES=*_dir.idx
+ * BufferPools.temp.SIZE=256
+ * BufferPools.temp.FILES=_temp*
+ * </pre>
+ * 
+ * A pattern matches the whole file name, where '*' matches any characters.
+ * The named pools are allocated in addition to the default pool.
+ */
+class BufferPools {
+
+	/**
+	 * The names of the pools besides the default one.
+	 */
+	private static final String[] POOLS;
+
+	// The maximum number of file names whose pools are cached
+	private static final int MAX_CACHED_FILES = 10000;
+
+	static {
+		POOLS = CoreProperties.getLoader().getPropertyAsStringArray(
+				BufferPools.class.getName() + ".POOLS", new String[0]);
+	}
+
+	private BufferPoolMgr defaultPool;
+	private BufferPoolMgr[] namedPools;
+	private Pattern[][] filePatterns;
+	private BufferPoolMgr[] allPools;
+	private Map<String, BufferPoolMgr> poolOfFile = new ConcurrentHashMap<String, BufferPoolMgr>();
+
+	/**
+	 * Creates the default pool of the specified size and the named pools set
+	 * in the properties file.
+	 * 
+	 * @param defaultPoolSize
+	 *            the size of the default pool
+	 */
+	BufferPools(int defaultPoolSize) {
+		defaultPool = new BufferPoolMgr("default", defaultPoolSize,
+				BufferPoolMgr.REPLACEMENT_POLICY);
+		namedPools = new BufferPoolMgr[POOLS.length];
+		filePatterns = new Pattern[POOLS.length][];
+		allPools = new BufferPoolMgr[POOLS.length + 1];
+		allPools[0] = defaultPool;
+
+		for (int i = 0; i < POOLS.length; i++) {
+			String name = POOLS[i].trim();
+			String prefix = BufferPools.class.getName() + "." + name;
+			int size = CoreProperties.getLoader().getPropertyAsInteger(
+					prefix + ".SIZE", defaultPoolSize);
+			Class<?> policy = CoreProperties.getLoader().getPropertyAsClass(
+					prefix + ".REPLACEMENT_POLICY",
+					BufferPoolMgr.REPLACEMENT_POLICY, ReplacementPolicy.class);
+			String[] files = CoreProperties.getLoader().getPropertyAsStringArray(
+					prefix + ".FILES", new String[0]);
+
+			namedPools[i] = new BufferPoolMgr(name, size, policy);
+			allPools[i + 1] = namedPools[i];
+			filePatterns[i] = new Pattern[files.length];
+			for (int j = 0; j < files.length; j++)
+				filePatterns[i][j] = toPattern(files[j].trim());
+		}
+	}
+
+	/**
+	 * Returns the pool caching the blocks of the specified file.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @return the pool of the file
+	 */
+	BufferPoolMgr poolOf(String fileName) {
+		if (namedPools.length == 0)
+			return defaultPool;
+
+		BufferPoolMgr pool = poolOfFile.get(fileName);
+		if (pool == null) {
+			pool = match(fileName);
+			// The temporary files come and go, so the cache is simply
+			// dropped when it grows too large
+			if (poolOfFile.size() >= MAX_CACHED_FILES)
+				poolOfFile.clear();
+			poolOfFile.put(fileName, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns all pools, the default one first.
+	 * 
+	 * @return all pools
+	 */
+	BufferPoolMgr[] all() {
+		return allPools;
+	}
+
+	/**
+	 * Returns the total number of available (i.e. unpinned) buffers.
+	 * 
+	 * @return the number of available buffers
+	 */
+	int available() {
+		int available = 0;
+		for (BufferPoolMgr pool : allPools)
+			available += pool.available();
+		return available;
+	}
+
+	private BufferPoolMgr match(String fileName) {
+		for (int i = 0; i < namedPools.length; i++)
+			for (Pattern pattern : filePatterns[i])
+				if (pattern.matcher(fileName).matches())
+					return namedPools[i];
+		return defaultPool;
+	}
+
+	private static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		String[] parts = glob.split("\\*", -1);
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0)
+				regex.append(".*");
+			if (!parts[i].isEmpty())
+				regex.append(Pattern.quote(parts[i]));
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
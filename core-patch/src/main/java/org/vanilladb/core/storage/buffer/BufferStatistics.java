@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * The statistics of a buffer pool, for sizing the pools by measurement. For
+ * the pool and for each file, the statistics count the hits, the misses, the
+ * evictions, and the evictions that had to write a dirty victim. For the
+ * pool, they also count the waits for a free buffer with their time, the pins
+ * retried after waiting, and the frames the replacement policy examines to
+ * choose a victim.
+ * <p>
+ * The counters are {@link LongAdder}s, which are striped across the threads,
+ * so that counting a hit costs no contention. The statistics of every pool
+ * are registered as an MBean under
+ * {@code org.vanilladb.core:type=BufferStatistics}, and {@link #reportAll()}
+ * reports all of them at once.
+ */
+public class BufferStatistics implements BufferStatisticsMBean {
+	private static Logger logger = Logger.getLogger(BufferStatistics.class
+			.getName());
+
+	/**
+	 * Whether the buffer pools record their statistics.
+	 */
+	public static final boolean ENABLED;
+
+	static {
+		ENABLED = CoreProperties.getLoader().getPropertyAsBoolean(
+				BufferStatistics.class.getName() + ".ENABLED", false);
+	}
+
+	/**
+	 * The names of the counters returned by {@link #countersAll()}.
+	 */
+	public static final String[] COUNTER_NAMES = { "hits", "misses",
+			"evictions", "dirty_evictions", "pin_waits", "pin_wait_us",
+			"repins", "victim_searches", "frames_swept" };
+
+	// The temporary files are counted together, since each has its own name
+	private static final String TEMP_FILES = FileMgr.TMP_FILE_NAME_PREFIX + "*";
+
+	private static final int HITS = 0, MISSES = 1, EVICTIONS = 2,
+			DIRTY_EVICTIONS = 3;
+
+	private static List<BufferStatistics> registry = new CopyOnWriteArrayList<BufferStatistics>();
+
+	/**
+	 * Returns a report of the statistics of all buffer pools.
+	 *
+	 * @return the report
+	 */
+	public static String reportAll() {
+		if (!ENABLED)
+			return "buffer statistics are disabled";
+		StringBuilder sb = new StringBuilder();
+		for (BufferStatistics stats : registry)
+			sb.append(stats.getReport());
+		return sb.toString();
+	}
+
+	/**
+	 * Resets the statistics of all buffer pools.
+	 */
+	public static void resetAll() {
+		for (BufferStatistics stats : registry)
+			stats.reset();
+	}
+
+	/**
+	 * Returns the counters summed over all buffer pools, in the order of
+	 * {@link #COUNTER_NAMES}.
+	 *
+	 * @return the counters
+	 */
+	public static long[] countersAll() {
+		long[] counters = new long[COUNTER_NAMES.length];
+		for (BufferStatistics stats : registry) {
+			long[] c = stats.counters();
+			for (int i = 0; i < counters.length; i++)
+				counters[i] += c[i];
+		}
+		return counters;
+	}
+
+	/**
+	 * The counters of the blocks of a pool or of a file, indexed by HITS,
+	 * MISSES, EVICTIONS and DIRTY_EVICTIONS.
+	 */
+	private static class BlockCounters {
+		String name;
+		LongAdder[] counts = new LongAdder[4];
+
+		BlockCounters(String name) {
+			this.name = name;
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+		long get(int counter) {
+			return counts[counter].sum();
+		}
+
+		void reset() {
+			for (LongAdder count : counts)
+				count.reset();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: hits: %d, misses: %d, hit ratio: %.4f, evictions: %d, dirty evictions: %d",
+					name, get(HITS), get(MISSES), ratio(get(HITS), get(MISSES)),
+					get(EVICTIONS), get(DIRTY_EVICTIONS));
+		}
+	}
+
+	private String name;
+	private BlockCounters poolCounters;
+	private ConcurrentMap<String, BlockCounters> fileCounters = new ConcurrentHashMap<String, BlockCounters>();
+	private LongAdder pinWaits = new LongAdder(), pinWaitNanos = new LongAdder(),
+			repins = new LongAdder(), victimSearches = new LongAdder(),
+			framesSwept = new LongAdder();
+
+	/**
+	 * Creates the statistics of a buffer pool and registers them if the
+	 * statistics are enabled.
+	 *
+	 * @param name
+	 *            the name of the buffer pool
+	 */
+	BufferStatistics(String name) {
+		this.name = name;
+		poolCounters = new BlockCounters(name);
+		if (!ENABLED)
+			return;
+
+		registry.add(this);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("org.vanilladb.core:type=BufferStatistics,name=" + name));
+		} catch (JMException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("fail to register the buffer statistics of " + name
+						+ " to JMX: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * The following methods should be called only if ENABLED is true.
+	 */
+
+	void recordHit(BlockId blk) {
+		count(blk, HITS);
+	}
+
+	void recordMiss(BlockId blk) {
+		count(blk, MISSES);
+	}
+
+	void recordEviction(BlockId oldBlk, boolean dirty) {
+		count(oldBlk, EVICTIONS);
+		if (dirty)
+			count(oldBlk, DIRTY_EVICTIONS);
+	}
+
+	void recordPinWait(long nanos) {
+		pinWaits.increment();
+		pinWaitNanos.add(nanos);
+	}
+
+	void recordRepin() {
+		repins.increment();
+	}
+
+	void recordVictimSearch() {
+		victimSearches.increment();
+	}
+
+	void recordFrameSwept() {
+		framesSwept.increment();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getHits() {
+		return poolCounters.get(HITS);
+	}
+
+	@Override
+	public long getMisses() {
+		return poolCounters.get(MISSES);
+	}
+
+	@Override
+	public double getHitRatio() {
+		return ratio(getHits(), getMisses());
+	}
+
+	@Override
+	public long getEvictions() {
+		return poolCounters.get(EVICTIONS);
+	}
+
+	@Override
+	public long getDirtyEvictions() {
+		return poolCounters.get(DIRTY_EVICTIONS);
+	}
+
+	@Override
+	public long getPinWaits() {
+		return pinWaits.sum();
+	}
+
+	@Override
+	public double getAvgPinWaitMicros() {
+		long count = pinWaits.sum();
+		return count == 0 ? 0.0 : pinWaitNanos.sum() / 1000.0 / count;
+	}
+
+	@Override
+	public long getRepins() {
+		return repins.sum();
+	}
+
+	@Override
+	public double getAvgSweepLength() {
+		long count = victimSearches.sum();
+		return count == 0 ? 0.0 : (double) framesSwept.sum() / count;
+	}
+
+	@Override
+	public String[] getFileStatistics() {
+		List<BlockCounters> files = filesByMisses();
+		String[] stats = new String[files.size()];
+		for (int i = 0; i < stats.length; i++)
+			stats[i] = files.get(i).toString();
+		return stats;
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Buffer statistics of ").append(name).append(":\n");
+		sb.append(String.format("  hits: %d, misses: %d, hit ratio: %.4f%n",
+				getHits(), getMisses(), getHitRatio()));
+		sb.append(String.format("  evictions: %d, dirty evictions: %d%n",
+				getEvictions(), getDirtyEvictions()));
+		sb.append(String.format("  pin waits: %d, avg wait: %.2f us, repins: %d%n",
+				getPinWaits(), getAvgPinWaitMicros(), getRepins()));
+		sb.append(String.format("  victim searches: %d, avg sweep length: %.2f frames%n",
+				victimSearches.sum(), getAvgSweepLength()));
+		sb.append("  files:\n");
+		for (BlockCounters file : filesByMisses())
+			sb.append("    ").append(file).append("\n");
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		poolCounters.reset();
+		fileCounters.clear();
+		pinWaits.reset();
+		pinWaitNanos.reset();
+		repins.reset();
+		victimSearches.reset();
+		framesSwept.reset();
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+
+	private long[] counters() {
+		return new long[] { getHits(), getMisses(), getEvictions(),
+				getDirtyEvictions(), getPinWaits(), pinWaitNanos.sum() / 1000,
+				getRepins(), victimSearches.sum(), framesSwept.sum() };
+	}
+
+	private void count(BlockId blk, int counter) {
+		poolCounters.counts[counter].increment();
+
+		String fileName = blk.fileName();
+		if (fileName.startsWith(FileMgr.TMP_FILE_NAME_PREFIX))
+			fileName = TEMP_FILES;
+		BlockCounters file = fileCounters.get(fileName);
+		if (file == null) {
+			file = new BlockCounters(fileName);
+			BlockCounters existing = fileCounters.putIfAbsent(fileName, file);
+			if (existing != null)
+				file = existing;
+		}
+		file.counts[counter].increment();
+	}
+
+	private List<BlockCounters> filesByMisses() {
+		List<BlockCounters> files = new ArrayList<BlockCounters>(
+				fileCounters.values());
+		Collections.sort(files, new Comparator<BlockCounters>() {
+			@Override
+			public int compare(BlockCounters f1, BlockCounters f2) {
+				return Long.compare(f2.get(MISSES), f1.get(MISSES));
+			}
+		});
+		return files;
+	}
+
+	private static double ratio(long hits, long misses) {
+		return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+	}
+}
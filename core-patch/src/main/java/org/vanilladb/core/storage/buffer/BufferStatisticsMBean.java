@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+/**
+ * The JMX view of the statistics of a buffer pool.
+ */
+public interface BufferStatisticsMBean {
+
+	String getName();
+
+	long getHits();
+
+	long getMisses();
+
+	double getHitRatio();
+
+	long getEvictions();
+
+	/**
+	 * Returns the number of evictions that had to write the victim first.
+	 *
+	 * @return the number of dirty evictions
+	 */
+	long getDirtyEvictions();
+
+	long getPinWaits();
+
+	double getAvgPinWaitMicros();
+
+	/**
+	 * Returns the number of pins retried after waiting for a free buffer.
+	 *
+	 * @return the number of repins
+	 */
+	long getRepins();
+
+	/**
+	 * Returns the average number of frames the replacement policy examined
+	 * to choose a victim.
+	 *
+	 * @return the average sweep length
+	 */
+	double getAvgSweepLength();
+
+	/**
+	 * Returns the statistics of each file, the file with the most misses
+	 * first.
+	 *
+	 * @return the statistics of the files
+	 */
+	String[] getFileStatistics();
+
+	String getReport();
+
+	void reset();
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A FIFO queue of the threads waiting for a free buffer. Each freed buffer
+ * wakes only the first waiter that has not been woken yet, and a woken waiter
+ * keeps its place in the queue until it leaves, so a waiter that loses the
+ * buffer to another thread is still the next to be woken.
+ * <p>
+ * A thread enters the queue before retrying its pin, so a buffer freed
+ * between the failed pin and the wait is never missed:
+ * 
+ * <pre>
+ * Waiter w = queue.enter();
+ * try {
+ * 	while ((buff = pool.pin(blk)) == null)
+ * 		if (!queue.await(w, deadline))
+ * 			break;
+ * } finally {
+ * 	queue.leave(w);
+ * }
+ * </pre>
+ */
+class BufferWaitQueue {
+
+	/**
+	 * A thread in the queue.
+	 */
+	class Waiter {
+		private Condition woken = lock.newCondition();
+		private boolean isWoken;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+	// Lets the threads freeing buffers skip the lock if no one waits
+	private volatile int numOfWaiters;
+
+	/**
+	 * Puts the calling thread at the end of the queue.
+	 * 
+	 * @return the waiter of the calling thread
+	 */
+	Waiter enter() {
+		Waiter w = new Waiter();
+		lock.lock();
+		try {
+			waiters.addLast(w);
+			numOfWaiters = waiters.size();
+		} finally {
+			lock.unlock();
+		}
+		return w;
+	}
+
+	/**
+	 * Waits until the waiter is woken by a freed buffer or the deadline
+	 * passes. A wake-up that arrived since the last call returns immediately.
+	 * 
+	 * @param w
+	 *            the waiter of the calling thread
+	 * @param deadline
+	 *            the deadline in {@link System#nanoTime()}
+	 * @return false if the deadline passed without a wake-up
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted
+	 */
+	boolean await(Waiter w, long deadline) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = deadline - System.nanoTime();
+			while (!w.isWoken && nanos > 0)
+				nanos = w.woken.awaitNanos(nanos);
+			boolean woken = w.isWoken;
+			w.isWoken = false;
+			return woken;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the waiter from the queue. A wake-up it has not consumed is
+	 * passed to the next waiter.
+	 * 
+	 * @param w
+	 *            the waiter of the calling thread
+	 */
+	void leave(Waiter w) {
+		lock.lock();
+		try {
+			waiters.remove(w);
+			numOfWaiters = waiters.size();
+			if (w.isWoken)
+				wakeLocked(1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes one waiter for each freed buffer.
+	 * 
+	 * @param numOfFreed
+	 *            the number of buffers freed
+	 */
+	void wake(int numOfFreed) {
+		if (numOfFreed <= 0 || numOfWaiters == 0)
+			return;
+		lock.lock();
+		try {
+			wakeLocked(numOfFreed);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void wakeLocked(int count) {
+		Iterator<Waiter> iter = waiters.iterator();
+		while (count > 0 && iter.hasNext()) {
+			Waiter w = iter.next();
+			if (!w.isWoken) {
+				w.isWoken = true;
+				w.woken.signal();
+				count--;
+			}
+		}
+	}
+}
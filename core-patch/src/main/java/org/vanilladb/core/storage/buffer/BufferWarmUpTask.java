@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.FileMgr;
+
+/**
+ * The task reloads the blocks that were in the {@link BufferPools buffer
+ * pools} before the last shutdown, so that the transactions after a restart
+ * do not have to fill the pools one miss at a time.
+ * <p>
+ * The blocks in the pools are saved to a snapshot file, the hottest first, by
+ * {@link #saveSnapshot()} at each checkpoint and at shutdown. The task reads
+ * the snapshot when it is created, keeps the hottest blocks that fit in each
+ * pool, and loads them in the order of their files and block numbers, so
+ * that the blocks of a file are read sequentially.
+ * <p>
+ * The blocks read while the server initializes, such as by the statistics
+ * manager, are replaced as usual by the replacement policy. The transactions
+ * run at the same time; the blocks they pin are never replaced, and the
+ * blocks they access are marked by the policy like the blocks loaded.
+ */
+public class BufferWarmUpTask extends Task {
+	private static Logger logger = Logger.getLogger(BufferWarmUpTask.class
+			.getName());
+
+	/**
+	 * The name of the snapshot file in the database directory.
+	 */
+	public static final String SNAPSHOT_FILE_NAME = "buffer.snapshot";
+
+	// Snapshots are saved only after the warm-up is done, so that a snapshot
+	// of the pools half loaded never replaces the previous one
+	private static volatile boolean snapshotEnabled;
+
+	private List<BlockId> blks;
+
+	/**
+	 * Creates a task reloading the blocks in the snapshot, which is read
+	 * right away, before any newer snapshot is saved.
+	 */
+	public BufferWarmUpTask() {
+		blks = readSnapshot(snapshotFile());
+	}
+
+	@Override
+	public void run() {
+		long start = System.currentTimeMillis();
+		FileMgr fileMgr = VanillaDb.fileMgr();
+
+		// Keep the hottest blocks that fit in each pool
+		Map<BufferPoolMgr, Integer> rooms = new HashMap<BufferPoolMgr, Integer>();
+		for (BufferPoolMgr pool : BufferMgr.bufferPools.all())
+			rooms.put(pool, pool.size());
+		List<BlockId> chosen = new ArrayList<BlockId>();
+		for (BlockId blk : blks) {
+			BufferPoolMgr pool = BufferMgr.bufferPools.poolOf(blk.fileName());
+			int room = rooms.get(pool);
+			if (room > 0) {
+				chosen.add(blk);
+				rooms.put(pool, room - 1);
+			}
+		}
+		blks = null;
+		Collections.sort(chosen);
+
+		int loaded = 0;
+		String fileName = null;
+		long fileSize = 0;
+		for (BlockId blk : chosen) {
+			// The files may have been dropped or truncated since the snapshot
+			if (!blk.fileName().equals(fileName)) {
+				fileName = blk.fileName();
+				fileSize = fileMgr.exists(fileName) ? fileMgr.size(fileName) : 0;
+			}
+			if (blk.number() >= fileSize)
+				continue;
+
+			BufferPoolMgr pool = BufferMgr.bufferPools.poolOf(fileName);
+			if (rooms.get(pool) < 0)
+				continue;
+			if (pool.warmUp(blk))
+				loaded++;
+			else
+				rooms.put(pool, -1);
+		}
+
+		snapshotEnabled = true;
+		if (logger.isLoggable(Level.INFO))
+			logger.info("warmed up the buffer pools with " + loaded + " of "
+					+ chosen.size() + " blocks in "
+					+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Saves the blocks in the buffer pools to the snapshot file, the hottest
+	 * of each pool first. This does nothing unless the warm-up is done.
+	 */
+	public static synchronized void saveSnapshot() {
+		if (!snapshotEnabled)
+			return;
+
+		File file = snapshotFile();
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				// Each block is written as the id of its file and its number.
+				// A file name is written right after the first id of it.
+				Map<String, Integer> fileIds = new HashMap<String, Integer>();
+				for (BufferPoolMgr pool : BufferMgr.bufferPools.all())
+					for (BlockId blk : pool.residentBlocks()) {
+						String fileName = blk.fileName();
+						if (fileName.startsWith(FileMgr.TMP_FILE_NAME_PREFIX))
+							continue;
+						Integer id = fileIds.get(fileName);
+						if (id == null) {
+							id = fileIds.size();
+							fileIds.put(fileName, id);
+							out.writeInt(id);
+							out.writeUTF(fileName);
+						} else
+							out.writeInt(id);
+						out.writeLong(blk.number());
+					}
+			}
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// The snapshot only speeds up the next start
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("cannot save the buffer snapshot: " + e);
+		}
+	}
+
+	private static List<BlockId> readSnapshot(File file) {
+		List<BlockId> blks = new ArrayList<BlockId>();
+		if (!file.exists())
+			return blks;
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			List<String> fileNames = new ArrayList<String>();
+			while (true) {
+				int id;
+				try {
+					id = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (id == fileNames.size())
+					fileNames.add(in.readUTF());
+				blks.add(new BlockId(fileNames.get(id), in.readLong()));
+			}
+		} catch (IOException | RuntimeException e) {
+			// Use the blocks read so far
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("cannot read the buffer snapshot: " + e);
+		}
+		return blks;
+	}
+
+	private static File snapshotFile() {
+		return new File(VanillaDb.fileMgr().dbDirectory(), SNAPSHOT_FILE_NAME);
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * The single-bit clock (second chance) policy. A frame is marked as
+ * referenced when it is pinned, and the clock hand sweeps from the last
+ * replaced frame, clearing the marks of the unpinned frames it passes, until
+ * it finds an unpinned frame that is not marked.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+	private int numOfFrames;
+	private AtomicIntegerArray referenced;
+	private volatile int lastReplaced;
+
+	@Override
+	public void init(int numOfFrames) {
+		this.numOfFrames = numOfFrames;
+		referenced = new AtomicIntegerArray(numOfFrames);
+		lastReplaced = 0;
+	}
+
+	@Override
+	public void onAccess(int frame) {
+		referenced.set(frame, 1);
+	}
+
+	@Override
+	public void onReplace(int frame, BlockId oldBlk, BlockId newBlk) {
+		// do nothing
+	}
+
+	@Override
+	public int chooseVictim(Frames frames) {
+		// Sweep every frame twice, since the first round may only clear the
+		// marks, and the frame replaced last may be the only unpinned one
+		int curr = this.lastReplaced;
+		for (int i = 0; i < 2 * numOfFrames; i++) {
+			curr = (curr + 1) % numOfFrames;
+			if (!frames.isPinned(curr) && referenced.getAndSet(curr, 0) == 0
+					&& frames.tryClaim(curr)) {
+				this.lastReplaced = curr;
+				return curr;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the unpinned frames not marked ahead of the clock hand, which
+	 * will be replaced in this order unless they are accessed before the hand
+	 * reaches them.
+	 */
+	@Override
+	public int[] nextVictims(Frames frames, int max) {
+		int[] victims = new int[max];
+		int count = 0;
+		int curr = lastReplaced;
+		for (int i = 0; i < numOfFrames && count < max; i++) {
+			curr = (curr + 1) % numOfFrames;
+			if (referenced.get(curr) == 0 && !frames.isPinned(curr))
+				victims[count++] = curr;
+		}
+		return Arrays.copyOf(victims, count);
+	}
+
+	/**
+	 * Returns the marked frames before the others. Within each group, the
+	 * frames the hand has just passed come first, since the hand reaches them
+	 * last.
+	 */
+	@Override
+	public int[] framesByHotness(Frames frames) {
+		// Take the marks once, since they change while the frames are ordered
+		int[] marks = new int[numOfFrames];
+		for (int i = 0; i < numOfFrames; i++)
+			marks[i] = referenced.get(i);
+
+		int[] order = new int[numOfFrames];
+		int count = 0;
+		int lastReplaced = this.lastReplaced;
+		for (int mark = 1; mark >= 0; mark--) {
+			int curr = lastReplaced;
+			for (int i = 0; i < numOfFrames; i++) {
+				if (marks[curr] == mark)
+					order[count++] = curr;
+				curr = (curr + numOfFrames - 1) % numOfFrames;
+			}
+		}
+		return order;
+	}
+}
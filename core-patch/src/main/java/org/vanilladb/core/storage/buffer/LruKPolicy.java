@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * The LRU-K policy, which replaces the unpinned frame whose K-th most recent
+ * access is the oldest. A block accessed fewer than K times is replaced
+ * before any block accessed K times, so the blocks read once by a scan do
+ * not push the frequently used blocks out. The blocks accessed fewer than K
+ * times are replaced in LRU order.
+ * <p>
+ * The access histories of the recently replaced blocks are retained, so that
+ * a block loaded again continues its history. A victim is found by scanning
+ * all frames, so a miss costs time linear to the pool size.
+ */
+public class LruKPolicy extends ReplacementPolicy {
+
+	/**
+	 * The number of the most recent accesses kept for each block.
+	 */
+	public static final int K;
+
+	// The number of times a victim is searched when the claims fail
+	private static final int MAX_ATTEMPTS = 16;
+
+	static {
+		K = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				LruKPolicy.class.getName() + ".K", 2), 1);
+	}
+
+	private int numOfFrames;
+	// The last K access times of each frame, the most recent first. The
+	// concurrent accesses to a frame may interleave their updates, which
+	// only blurs the order of the accesses made at almost the same time.
+	private AtomicLongArray history;
+
+	// The histories of the replaced blocks, guarded by itself
+	private Map<BlockId, long[]> retained;
+
+	@Override
+	public void init(final int numOfFrames) {
+		this.numOfFrames = numOfFrames;
+		history = new AtomicLongArray(numOfFrames * K);
+		retained = new LinkedHashMap<BlockId, long[]>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BlockId, long[]> eldest) {
+				return size() > numOfFrames;
+			}
+		};
+	}
+
+	@Override
+	public void onAccess(int frame) {
+		int base = frame * K;
+		for (int i = K - 1; i > 0; i--)
+			history.set(base + i, history.get(base + i - 1));
+		history.set(base, System.nanoTime());
+	}
+
+	@Override
+	public void onReplace(int frame, BlockId oldBlk, BlockId newBlk) {
+		int base = frame * K;
+		long[] oldHistory = null;
+		if (oldBlk != null) {
+			oldHistory = new long[K];
+			for (int i = 0; i < K; i++)
+				oldHistory[i] = history.get(base + i);
+		}
+
+		long[] newHistory;
+		synchronized (retained) {
+			if (oldHistory != null)
+				retained.put(oldBlk, oldHistory);
+			newHistory = retained.remove(newBlk);
+		}
+
+		for (int i = 0; i < K; i++)
+			history.set(base + i, newHistory == null ? 0 : newHistory[i]);
+	}
+
+	@Override
+	public int chooseVictim(Frames frames) {
+		// The frames failed to be claimed, which are probably being replaced
+		// by other threads, since they are not pinned yet
+		int[] failed = new int[MAX_ATTEMPTS];
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			int victim = -1;
+			long victimKth = Long.MAX_VALUE, victimLast = Long.MAX_VALUE;
+			for (int frame = 0; frame < numOfFrames; frame++) {
+				if (frames.isPinned(frame) || contains(failed, attempt, frame))
+					continue;
+
+				// A frame accessed fewer than K times has 0 as its K-th access
+				long kth = history.get(frame * K + K - 1);
+				long last = history.get(frame * K);
+				if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+					victim = frame;
+					victimKth = kth;
+					victimLast = last;
+				}
+			}
+
+			if (victim < 0)
+				return -1;
+			if (frames.tryClaim(victim))
+				return victim;
+			failed[attempt] = victim;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the frames whose K-th most recent access is the latest first,
+	 * ordered by their last accesses when the K-th accesses are the same.
+	 */
+	@Override
+	public int[] framesByHotness(Frames frames) {
+		Integer[] order = new Integer[numOfFrames];
+		final long[] kth = new long[numOfFrames], last = new long[numOfFrames];
+		for (int frame = 0; frame < numOfFrames; frame++) {
+			order[frame] = frame;
+			kth[frame] = history.get(frame * K + K - 1);
+			last[frame] = history.get(frame * K);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer f1, Integer f2) {
+				if (kth[f1] != kth[f2])
+					return kth[f1] > kth[f2] ? -1 : 1;
+				return Long.compare(last[f2], last[f1]);
+			}
+		});
+
+		int[] frameOrder = new int[numOfFrames];
+		for (int i = 0; i < numOfFrames; i++)
+			frameOrder[i] = order[i];
+		return frameOrder;
+	}
+
+	private static boolean contains(int[] frames, int size, int frame) {
+		for (int i = 0; i < size; i++)
+			if (frames[i] == frame)
+				return true;
+		return false;
+	}
+}
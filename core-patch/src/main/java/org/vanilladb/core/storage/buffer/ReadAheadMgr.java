@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * Reads the blocks ahead of the sequential scans in the background. A
+ * {@link BufferMgr} reports every block its transaction pins, and once the
+ * transaction has pinned {@link #TRIGGER} consecutive blocks of a file, the
+ * next blocks of the file are read into the pool by a small pool of I/O
+ * threads before the transaction asks for them.
+ * <p>
+ * The number of blocks read ahead is kept by each buffer pool. It starts at
+ * {@link #INITIAL_WINDOW} and is adjusted between {@link #MIN_WINDOW} and
+ * {@link #MAX_WINDOW}: it doubles when almost all blocks read ahead are
+ * pinned before they are replaced, and halves when many are replaced unused.
+ * The requests are dropped if the I/O threads fall behind.
+ */
+class ReadAheadMgr {
+	private static Logger logger = Logger.getLogger(ReadAheadMgr.class.getName());
+
+	/**
+	 * Whether the blocks are read ahead of the sequential scans.
+	 */
+	static final boolean ENABLED;
+
+	/**
+	 * The number of consecutive blocks pinned before the next ones are read
+	 * ahead.
+	 */
+	static final int TRIGGER;
+
+	static final int INITIAL_WINDOW, MIN_WINDOW, MAX_WINDOW;
+
+	/**
+	 * The number of blocks read ahead between two adjustments of a window.
+	 */
+	static final int ADJUST_INTERVAL;
+
+	private static final int IO_THREADS;
+	private static final int MAX_PENDING_REQUESTS;
+
+	static {
+		ENABLED = CoreProperties.getLoader().getPropertyAsBoolean(
+				ReadAheadMgr.class.getName() + ".ENABLED", false);
+		TRIGGER = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".TRIGGER", 2), 1);
+		MIN_WINDOW = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".MIN_WINDOW", 4), 1);
+		MAX_WINDOW = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".MAX_WINDOW", 64), MIN_WINDOW);
+		INITIAL_WINDOW = Math.min(Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".INITIAL_WINDOW", 8), MIN_WINDOW), MAX_WINDOW);
+		ADJUST_INTERVAL = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".ADJUST_INTERVAL", 64), 1);
+		IO_THREADS = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".IO_THREADS", 2), 1);
+		MAX_PENDING_REQUESTS = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				ReadAheadMgr.class.getName() + ".MAX_PENDING_REQUESTS", 64), 1);
+	}
+
+	/**
+	 * The scan of a file by a transaction.
+	 */
+	static class Stream {
+		// Read by the I/O threads to skip the blocks already pinned
+		private volatile long lastBlkNum;
+		private int numOfConsecutive;
+		// The last block requested to be read ahead
+		private long readAheadUntil;
+
+		Stream(long blkNum) {
+			lastBlkNum = blkNum;
+			numOfConsecutive = 1;
+			readAheadUntil = blkNum;
+		}
+	}
+
+	/**
+	 * Returns the new window given the numbers of the blocks read ahead that
+	 * are used and wasted since the last adjustment.
+	 */
+	static int adjustWindow(int window, int numUsed, int numWasted) {
+		double usedRatio = (double) numUsed / (numUsed + numWasted);
+		if (usedRatio >= 0.9)
+			return Math.min(window * 2, MAX_WINDOW);
+		if (usedRatio < 0.5)
+			return Math.max(window / 2, MIN_WINDOW);
+		return window;
+	}
+
+	private ThreadPoolExecutor executor;
+
+	ReadAheadMgr() {
+		executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						MAX_PENDING_REQUESTS), new ThreadFactory() {
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ReadAhead-" + (count++));
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * Notes that a transaction has pinned the specified block, and reads the
+	 * next blocks ahead if the transaction is scanning the file.
+	 * 
+	 * @param stream
+	 *            the last scan of the file by the transaction, or null if none
+	 * @param pool
+	 *            the pool of the file
+	 * @param blk
+	 *            the block pinned
+	 * @return the updated scan of the file
+	 */
+	Stream onPin(Stream stream, BufferPoolMgr pool, BlockId blk) {
+		// The temporary files may be deleted while their blocks are being read
+		// ahead, which would create them again
+		if (blk.fileName().startsWith(FileMgr.TMP_FILE_NAME_PREFIX))
+			return null;
+
+		long blkNum = blk.number();
+		if (stream == null)
+			return new Stream(blkNum);
+
+		if (blkNum == stream.lastBlkNum + 1) {
+			stream.numOfConsecutive++;
+		} else if (blkNum != stream.lastBlkNum) {
+			stream.numOfConsecutive = 1;
+			stream.readAheadUntil = blkNum;
+		}
+		stream.lastBlkNum = blkNum;
+
+		if (stream.numOfConsecutive < TRIGGER)
+			return stream;
+
+		// Request the next window when less than half of it is left, so the
+		// blocks are read in batches
+		int window = pool.readAheadWindow();
+		if (stream.readAheadUntil - blkNum > window / 2)
+			return stream;
+		long from = Math.max(stream.readAheadUntil, blkNum) + 1;
+		long until = blkNum + window;
+		stream.readAheadUntil = until;
+		executor.execute(new ReadAheadRequest(stream, pool, blk.fileName(),
+				from, until));
+		return stream;
+	}
+
+	private static class ReadAheadRequest implements Runnable {
+		private Stream stream;
+		private BufferPoolMgr pool;
+		private String fileName;
+		private long from, until;
+
+		ReadAheadRequest(Stream stream, BufferPoolMgr pool, String fileName,
+				long from, long until) {
+			this.stream = stream;
+			this.pool = pool;
+			this.fileName = fileName;
+			this.from = from;
+			this.until = until;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long size = VanillaDb.fileMgr().size(fileName);
+				for (long blkNum = from; blkNum <= until && blkNum < size; blkNum++) {
+					// Skip the blocks the scan has passed while the request
+					// was waiting
+					if (blkNum <= stream.lastBlkNum)
+						continue;
+					if (!pool.readAhead(new BlockId(fileName, blkNum)))
+						return;
+				}
+			} catch (RuntimeException e) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("fail to read ahead " + fileName + ": " + e);
+			}
+		}
+	}
+}
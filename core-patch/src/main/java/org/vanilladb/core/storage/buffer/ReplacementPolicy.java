@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * Decides which buffer of a {@link BufferPoolMgr} is replaced when a block
+ * not in the pool is pinned. The buffers are identified by their frame
+ * numbers, from 0 to the pool size minus 1.
+ * <p>
+ * A policy is called concurrently. The accesses to a frame are notified
+ * while the frame is pinned, and the replacement of a frame while it is
+ * claimed, so the replacement of a frame never overlaps the accesses to it.
+ * The accesses to the same frame, however, may be notified at the same time
+ * without any lock. A policy must not
+ * block on the swap lock of a frame; it claims a frame through
+ * {@link Frames#tryClaim(int)}, which never blocks.
+ * <p>
+ * A policy class must have a public no-argument constructor, so that it can
+ * be set in the properties file.
+ */
+public abstract class ReplacementPolicy {
+
+	/**
+	 * The view of the frames of a buffer pool for a policy choosing a victim.
+	 */
+	public interface Frames {
+
+		/**
+		 * Returns whether the frame is pinned. The answer may be out of date
+		 * when it is returned, so it is only a hint for the policy.
+		 *
+		 * @param frame
+		 *            the frame number
+		 * @return true if the frame is pinned
+		 */
+		boolean isPinned(int frame);
+
+		/**
+		 * Claims the frame for replacement if it is not pinned and no one
+		 * else is swapping it. A claimed frame is replaced right after the
+		 * policy returns it from {@link ReplacementPolicy#chooseVictim(Frames)}
+		 * ; the policy must not claim another frame after a successful claim.
+		 *
+		 * @param frame
+		 *            the frame number
+		 * @return true if the frame is claimed
+		 */
+		boolean tryClaim(int frame);
+	}
+
+	/**
+	 * Initializes the policy for a pool of the specified size. This is called
+	 * once before any other method.
+	 *
+	 * @param numOfFrames
+	 *            the number of frames in the pool
+	 */
+	public abstract void init(int numOfFrames);
+
+	/**
+	 * Notifies that the frame is pinned, either because its block is
+	 * requested or because a new block has just been loaded into it.
+	 *
+	 * @param frame
+	 *            the frame number
+	 */
+	public abstract void onAccess(int frame);
+
+	/**
+	 * Notifies that a block is loaded into the frame, which is called before
+	 * the frame is accessed.
+	 *
+	 * @param frame
+	 *            the frame number
+	 * @param oldBlk
+	 *            the block replaced, or null if the frame was empty
+	 * @param newBlk
+	 *            the block loaded
+	 */
+	public abstract void onReplace(int frame, BlockId oldBlk, BlockId newBlk);
+
+	/**
+	 * Chooses a frame to be replaced and claims it through
+	 * {@link Frames#tryClaim(int)}.
+	 *
+	 * @param frames
+	 *            the frames of the pool
+	 * @return the claimed frame, or -1 if no frame can be claimed now
+	 */
+	public abstract int chooseVictim(Frames frames);
+
+	/**
+	 * Returns the frames likely to be chosen as the next victims, the most
+	 * likely first, without claiming or changing them. A background cleaner
+	 * writes the dirty buffers in these frames, so that the victims are
+	 * usually clean when they are chosen.
+	 * <p>
+	 * The default implementation returns null, which means the policy cannot
+	 * tell, and the cleaner sweeps the frames in order instead.
+	 *
+	 * @param frames
+	 *            the frames of the pool
+	 * @param max
+	 *            the maximum number of frames to return
+	 * @return the frames likely to be replaced next, or null if unknown
+	 */
+	public int[] nextVictims(Frames frames, int max) {
+		return null;
+	}
+
+	/**
+	 * Returns the frames in the order of how likely they are to stay in the
+	 * pool, the hottest first. The order is saved in the snapshot of the
+	 * pool, so that the hottest blocks are loaded first after a restart.
+	 * <p>
+	 * The default implementation returns null, which means the policy cannot
+	 * tell, and the frames are taken in order instead.
+	 * 
+	 * @param frames
+	 *            the frames of the pool
+	 * @return all frames, the hottest first, or null if unknown
+	 */
+	public int[] framesByHotness(Frames frames) {
+		return null;
+	}
+}
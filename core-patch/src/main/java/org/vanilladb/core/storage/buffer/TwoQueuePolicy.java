@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * The scan-resistant 2Q policy. A block loaded for the first time enters the
+ * FIFO queue A1in. When A1in grows beyond its share of the pool, its oldest
+ * block is replaced and remembered in the ghost queue A1out, which keeps only
+ * block ids. A block loaded again while it is remembered in A1out is
+ * considered hot and enters the main queue Am. Hence, the blocks read once by
+ * a scan only cycle through A1in, and never replace the blocks in Am.
+ * <p>
+ * Am is managed by a clock instead of LRU, so that an access only marks its
+ * frame and never takes the lock of the policy.
+ */
+public class TwoQueuePolicy extends ReplacementPolicy {
+
+	/**
+	 * The share of the pool for A1in.
+	 */
+	public static final double IN_RATIO;
+
+	/**
+	 * The number of block ids remembered in A1out, relative to the pool size.
+	 */
+	public static final double OUT_RATIO;
+
+	static {
+		IN_RATIO = CoreProperties.getLoader().getPropertyAsDouble(
+				TwoQueuePolicy.class.getName() + ".IN_RATIO", 0.25);
+		OUT_RATIO = CoreProperties.getLoader().getPropertyAsDouble(
+				TwoQueuePolicy.class.getName() + ".OUT_RATIO", 0.5);
+	}
+
+	/**
+	 * A queue of frames linked through the arrays shared by all queues, since
+	 * a frame is in at most one queue.
+	 */
+	private class FrameQueue {
+		int head = -1, tail = -1, size;
+
+		void add(int frame) {
+			prev[frame] = tail;
+			next[frame] = -1;
+			if (tail < 0)
+				head = frame;
+			else
+				next[tail] = frame;
+			tail = frame;
+			queueOf[frame] = this;
+			size++;
+		}
+
+		void remove(int frame) {
+			if (prev[frame] < 0)
+				head = next[frame];
+			else
+				next[prev[frame]] = next[frame];
+			if (next[frame] < 0)
+				tail = prev[frame];
+			else
+				prev[next[frame]] = prev[frame];
+			queueOf[frame] = null;
+			size--;
+		}
+	}
+
+	private int[] prev, next;
+	private FrameQueue[] queueOf;
+	private FrameQueue free, in, main;
+	private int maxInSize;
+	// Whether a claimed frame is replaced from A1in
+	private boolean[] fromIn;
+	private Map<BlockId, Boolean> out;
+
+	// Accesses mark the frames without the lock of the policy
+	private AtomicIntegerArray referenced;
+
+	@Override
+	public synchronized void init(int numOfFrames) {
+		prev = new int[numOfFrames];
+		next = new int[numOfFrames];
+		queueOf = new FrameQueue[numOfFrames];
+		fromIn = new boolean[numOfFrames];
+		referenced = new AtomicIntegerArray(numOfFrames);
+		free = new FrameQueue();
+		in = new FrameQueue();
+		main = new FrameQueue();
+		for (int i = 0; i < numOfFrames; i++)
+			free.add(i);
+
+		maxInSize = Math.max((int) (numOfFrames * IN_RATIO), 1);
+		final int maxOutSize = Math.max((int) (numOfFrames * OUT_RATIO), 1);
+		out = new LinkedHashMap<BlockId, Boolean>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BlockId, Boolean> eldest) {
+				return size() > maxOutSize;
+			}
+		};
+	}
+
+	@Override
+	public void onAccess(int frame) {
+		if (referenced.get(frame) == 0)
+			referenced.set(frame, 1);
+	}
+
+	@Override
+	public synchronized void onReplace(int frame, BlockId oldBlk, BlockId newBlk) {
+		if (oldBlk != null && fromIn[frame])
+			out.put(oldBlk, Boolean.TRUE);
+		fromIn[frame] = false;
+
+		// The frame has been taken out of its queue when it was claimed
+		referenced.set(frame, 0);
+		if (out.remove(newBlk) != null)
+			main.add(frame);
+		else
+			in.add(frame);
+	}
+
+	@Override
+	public synchronized int chooseVictim(Frames frames) {
+		int victim = claimFirst(free, frames);
+		if (victim < 0 && in.size > maxInSize)
+			victim = claimFirst(in, frames);
+		if (victim < 0)
+			victim = sweepMain(frames);
+		// Take one from A1in anyway if all frames in Am are in use
+		if (victim < 0)
+			victim = claimFirst(in, frames);
+		if (victim < 0)
+			return -1;
+
+		fromIn[victim] = queueOf[victim] == in;
+		queueOf[victim].remove(victim);
+		return victim;
+	}
+
+	/**
+	 * Returns the unpinned frames of A1in from its head if A1in is over its
+	 * share, followed by the unpinned and unmarked frames of Am from its head.
+	 */
+	@Override
+	public synchronized int[] nextVictims(Frames frames, int max) {
+		int[] victims = new int[max];
+		int count = 0;
+		if (in.size > maxInSize)
+			for (int frame = in.head; frame >= 0 && count < max; frame = next[frame])
+				if (!frames.isPinned(frame))
+					victims[count++] = frame;
+		for (int frame = main.head; frame >= 0 && count < max; frame = next[frame])
+			if (referenced.get(frame) == 0 && !frames.isPinned(frame))
+				victims[count++] = frame;
+		return Arrays.copyOf(victims, count);
+	}
+
+	/**
+	 * Returns the frames of Am from its tail, followed by the frames of A1in
+	 * from its tail, and then the free frames.
+	 */
+	@Override
+	public synchronized int[] framesByHotness(Frames frames) {
+		int[] order = new int[prev.length];
+		int count = 0;
+		for (FrameQueue queue : new FrameQueue[] { main, in, free })
+			for (int frame = queue.tail; frame >= 0; frame = prev[frame])
+				order[count++] = frame;
+		// The frames claimed but not replaced yet are in no queue
+		return Arrays.copyOf(order, count);
+	}
+
+	private int claimFirst(FrameQueue queue, Frames frames) {
+		for (int frame = queue.head; frame >= 0; frame = next[frame])
+			if (!frames.isPinned(frame) && frames.tryClaim(frame))
+				return frame;
+		return -1;
+	}
+
+	/**
+	 * Sweeps Am like a clock, moving the marked or pinned frames from the
+	 * head to the tail and clearing their marks, until an unmarked frame is
+	 * claimed or every frame is passed twice.
+	 */
+	private int sweepMain(Frames frames) {
+		for (int i = 2 * main.size; i > 0 && main.head >= 0; i--) {
+			int frame = main.head;
+			if (referenced.getAndSet(frame, 0) == 0 && !frames.isPinned(frame)
+					&& frames.tryClaim(frame))
+				return frame;
+			main.remove(frame);
+			main.add(frame);
+		}
+		return -1;
+	}
+}
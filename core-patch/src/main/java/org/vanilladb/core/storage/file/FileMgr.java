@@ -251,6 +251,29 @@ public class FileMgr {
 		return !fileNotEmptyCache.get(fileName);
 	}
 	
+	/**
+	 * Returns whether the specified database file exists. Unlike
+	 * {@link #size(String)}, this never creates the file.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * 
+	 * @return true if the file exists
+	 */
+	public boolean exists(String fileName) {
+		return openFiles.containsKey(fileName)
+				|| new File(dbDirectory, fileName).exists();
+	}
+
+	/**
+	 * Returns the directory holding the database files.
+	 * 
+	 * @return the database directory
+	 */
+	public File dbDirectory() {
+		return dbDirectory;
+	}
+
 	/**
 	 * Returns a boolean indicating whether the file manager had to create a new
 	 * database directory.
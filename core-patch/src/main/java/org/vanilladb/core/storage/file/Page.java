@@ -53,6 +53,12 @@ import org.vanilladb.core.util.CoreProperties;
  * p3.read(blk);
  * String s = (String) p3.getVal(20).asJavaVal();
  * </pre>
+ * <p>
+ * A page is not synchronized. Multiple threads may call
+ * {@link #getVal(int, Type)} at the same time, but the owner of a page shared
+ * by threads, such as a {@link org.vanilladb.core.storage.buffer.Buffer
+ * buffer}, must make any other call exclusive by its own latch.
+ * </p>
  */
 
 public class Page {
@@ -89,7 +95,7 @@ public class Page {
 		return val.getType().isFixedSize() ? val.size() : ByteHelper.INT_SIZE + val.size();
 	}
 
-	private IoBuffer contents = IoAllocator.newIoBuffer(BLOCK_SIZE);
+	private IoBuffer contents;
 	private FileMgr fileMgr = VanillaDb.fileMgr();
 
 	/**
@@ -101,6 +107,19 @@ public class Page {
 	 * or {@link VanillaDb#initFileAndLogMgr(String)} is called first.
 	 */
 	public Page() {
+		this(IoAllocator.newIoBuffer(BLOCK_SIZE));
+	}
+
+	/**
+	 * Creates a new page on the specified memory of BLOCK_SIZE bytes, such as
+	 * a slot of the arena allocated by {@link IoAllocator#newIoBuffers(int, int)}.
+	 * It has the same dependency as {@link #Page()}.
+	 * 
+	 * @param contents
+	 *            the memory of the page
+	 */
+	public Page(IoBuffer contents) {
+		this.contents = contents;
 	}
 
 	/**
@@ -109,7 +128,7 @@ public class Page {
 	 * @param blk
 	 *            a block ID
 	 */
-	public synchronized void read(BlockId blk) {
+	public void read(BlockId blk) {
 		fileMgr.read(blk, contents);
 	}
 
@@ -119,7 +138,7 @@ public class Page {
 	 * @param blk
 	 *            a block ID
 	 */
-	public synchronized void write(BlockId blk) {
+	public void write(BlockId blk) {
 		fileMgr.write(blk, contents);
 	}
 
@@ -131,7 +150,7 @@ public class Page {
 	 * 
 	 * @return the reference to the newly-created disk block
 	 */
-	public synchronized BlockId append(String fileName) {
+	public BlockId append(String fileName) {
 		return fileMgr.append(fileName, contents);
 	}
 
@@ -147,7 +166,7 @@ public class Page {
 	 * 
 	 * @return the constant value at that offset
 	 */
-	public synchronized Constant getVal(int offset, Type type) {
+	public Constant getVal(int offset, Type type) {
 		int size;
 		byte[] byteVal = null;
 
@@ -161,6 +180,10 @@ public class Page {
 			offset += ByteHelper.INT_SIZE;
 		}
 
+		// The size may be garbage if the bytes are being written by others
+		if (size < 0 || offset + size > BLOCK_SIZE)
+			throw new IndexOutOfBoundsException("" + offset + ", " + size);
+
 		// Get bytes and translate it to Constant
 		byteVal = new byte[size];
 		contents.get(offset, byteVal);
@@ -176,7 +199,7 @@ public class Page {
 	 * @param val
 	 *            the constant value to be written to the page
 	 */
-	public synchronized void setVal(int offset, Constant val) {
+	public void setVal(int offset, Constant val) {
 		byte[] byteval = val.asBytes();
 
 		// Append the size of value if it is not fixed size
@@ -194,6 +217,18 @@ public class Page {
 		contents.put(offset, byteval);
 	}
 
+	/**
+	 * Copies the contents of the specified page into this page.
+	 * 
+	 * @param page
+	 *            the page to be copied
+	 */
+	public void copyFrom(Page page) {
+		byte[] bytes = new byte[BLOCK_SIZE];
+		page.contents.get(0, bytes);
+		contents.put(0, bytes);
+	}
+
 	/**
 	 * Close this page to release resources.
 	 */
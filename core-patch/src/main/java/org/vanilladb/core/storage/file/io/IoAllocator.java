@@ -17,6 +17,7 @@ package org.vanilladb.core.storage.file.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.vanilladb.core.storage.file.io.javanio.JavaNioByteBuffer;
 import org.vanilladb.core.storage.file.io.javanio.JavaNioFileChannel;
@@ -28,9 +29,14 @@ public class IoAllocator {
 
 	private static boolean USE_O_DIRECT;
 
+	// The maximum size of a region allocated by newIoBuffers
+	private static int ARENA_CHUNK_SIZE;
+
 	static {
 		USE_O_DIRECT = CoreProperties.getLoader().getPropertyAsBoolean(
 				IoAllocator.class.getName() + ".USE_O_DIRECT", false);
+		ARENA_CHUNK_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+				IoAllocator.class.getName() + ".ARENA_CHUNK_SIZE", 1 << 30);
 	}
 
 	public static IoBuffer newIoBuffer(int capacity) {
@@ -40,6 +46,44 @@ public class IoAllocator {
 			return new JavaNioByteBuffer(capacity);
 	}
 
+	/**
+	 * Allocates the specified number of buffers of the same capacity, which
+	 * are carved out of a few large regions of off-heap memory instead of
+	 * being allocated one by one. The i-th buffer is the i-th slot of the
+	 * regions. Each region holds as many buffers as fit in ARENA_CHUNK_SIZE
+	 * bytes, so the total size is not limited by the 2 GB limit of a single
+	 * region.
+	 * <p>
+	 * The buffers for O_DIRECT must be aligned individually, so they are
+	 * still allocated one by one.
+	 * 
+	 * @param count
+	 *            the number of buffers
+	 * @param capacity
+	 *            the capacity of each buffer
+	 * @return the buffers, indexed by slot
+	 */
+	public static IoBuffer[] newIoBuffers(int count, int capacity) {
+		IoBuffer[] buffers = new IoBuffer[count];
+		if (USE_O_DIRECT) {
+			for (int i = 0; i < count; i++)
+				buffers[i] = new JaydioDirectByteBuffer(capacity);
+			return buffers;
+		}
+
+		int slotsPerChunk = Math.max(ARENA_CHUNK_SIZE / capacity, 1);
+		for (int first = 0; first < count; first += slotsPerChunk) {
+			int slots = Math.min(slotsPerChunk, count - first);
+			ByteBuffer chunk = ByteBuffer.allocateDirect(slots * capacity);
+			for (int i = 0; i < slots; i++) {
+				chunk.limit((i + 1) * capacity);
+				chunk.position(i * capacity);
+				buffers[first + i] = new JavaNioByteBuffer(chunk.slice());
+			}
+		}
+		return buffers;
+	}
+
 	public static IoChannel newIoChannel(File file) throws IOException {
 		if (USE_O_DIRECT)
 			return new JaydioDirectIoChannel(file);
@@ -17,8 +17,30 @@ package org.vanilladb.core.storage.file.io;
 
 public interface IoBuffer {
 
+	/**
+	 * Copies the bytes at the specified position into the array, without
+	 * changing the position of this buffer. Hence, this can be called by
+	 * multiple threads at the same time, as long as none of them changes the
+	 * contents.
+	 * 
+	 * @param position
+	 *            the position of the first byte
+	 * @param dst
+	 *            the array to be filled
+	 * @return this buffer
+	 */
 	IoBuffer get(int position, byte[] dst);
 
+	/**
+	 * Copies the bytes of the array into the specified position, without
+	 * changing the position of this buffer.
+	 * 
+	 * @param position
+	 *            the position of the first byte
+	 * @param src
+	 *            the bytes to be written
+	 * @return this buffer
+	 */
 	IoBuffer put(int position, byte[] src);
 
 	void clear();
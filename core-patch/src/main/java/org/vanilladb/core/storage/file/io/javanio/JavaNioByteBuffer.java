@@ -26,18 +26,34 @@ public class JavaNioByteBuffer implements IoBuffer {
 	public JavaNioByteBuffer(int capacity) {
 		byteBuffer = ByteBuffer.allocateDirect(capacity);
 	}
+
+	/**
+	 * Wraps a buffer allocated elsewhere, such as a slice of a larger region.
+	 * 
+	 * @param byteBuffer
+	 *            the buffer to be wrapped
+	 */
+	public JavaNioByteBuffer(ByteBuffer byteBuffer) {
+		this.byteBuffer = byteBuffer;
+	}
 	
 	@Override
 	public IoBuffer get(int position, byte[] dst) {
-		byteBuffer.position(position);
-		byteBuffer.get(dst);
+		if (position < 0 || position + dst.length > byteBuffer.capacity())
+			throw new IndexOutOfBoundsException("" + position);
+		// Read by absolute indices, which do not touch the shared position
+		// and allocate nothing (Java 8 has no absolute bulk get)
+		for (int i = 0; i < dst.length; i++)
+			dst[i] = byteBuffer.get(position + i);
 		return this;
 	}
 
 	@Override
 	public IoBuffer put(int position, byte[] src) {
-		byteBuffer.position(position);
-		byteBuffer.put(src);
+		if (position < 0 || position + src.length > byteBuffer.capacity())
+			throw new IndexOutOfBoundsException("" + position);
+		for (int i = 0; i < src.length; i++)
+			byteBuffer.put(position + i, src[i]);
 		return this;
 	}
 	
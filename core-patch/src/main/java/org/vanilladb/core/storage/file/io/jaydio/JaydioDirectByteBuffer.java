@@ -32,15 +32,18 @@ public class JaydioDirectByteBuffer implements IoBuffer {
 	
 	@Override
 	public IoBuffer get(int position, byte[] dst) {
-		byteBuffer.position(position);
-		byteBuffer.get(dst);
+		if (position < 0 || position + dst.length > byteBuffer.capacity())
+			throw new IndexOutOfBoundsException("" + position);
+		// Read through the pointer, which does not touch the shared position
+		byteBuffer.pointer().read(position, dst, 0, dst.length);
 		return this;
 	}
 
 	@Override
 	public IoBuffer put(int position, byte[] src) {
-		byteBuffer.position(position);
-		byteBuffer.put(src);
+		if (position < 0 || position + src.length > byteBuffer.capacity())
+			throw new IndexOutOfBoundsException("" + position);
+		byteBuffer.pointer().write(position, src, 0, src.length);
 		return this;
 	}
 	
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.log;
+
+import static org.vanilladb.core.storage.file.Page.BLOCK_SIZE;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.vanilladb.core.storage.file.Page;
+
+/**
+ * One page of the log buffer of {@link LogMgr}. The appenders reserve the
+ * space of their records by adding the sizes to {@link #tail}, copy the
+ * values concurrently, and then mark the records as filled. The records
+ * filled without a gap from the beginning of the page are the ones that can be
+ * written.
+ */
+class LogBuffer {
+	// Filling a record only takes a few copies, so the writer spins for a
+	// while before it parks, and never parks longer than this
+	private static final int MAX_SPINS = 100;
+	private static final long MAX_PARK_NANOS = 100000;
+
+	final Page page = new Page();
+	final int index;
+
+	// The number of the block, set before the page is published as the
+	// current page of the log manager
+	volatile long blkNum;
+
+	// The offset of the next record to be reserved. It grows beyond the page
+	// once the page is full.
+	final AtomicInteger tail = new AtomicInteger();
+
+	// The end of the records in the page, or -1 until the page is sealed
+	volatile int end = -1;
+
+	// Guarded by the switch lock of the log manager
+	boolean isFree = true;
+
+	// Guarded by the write lock of the log manager: the end of the records
+	// filled without a gap, and the end of the records written to disk
+	int filledEnd, writtenEnd;
+
+	// The size of the record starting at each offset, which is set once the
+	// record is filled and cleared once it is passed by filledEnd
+	private final AtomicIntegerArray filledSizes = new AtomicIntegerArray(BLOCK_SIZE);
+
+	// The thread parked in awaitFilled, which holds the write lock
+	private volatile Thread filledWaiter;
+
+	LogBuffer(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * Prepares this page for the records of the specified block.
+	 *
+	 * @param blkNum
+	 *            the number of the block
+	 * @param start
+	 *            the offset of the first record to be appended
+	 * @param isOnDisk
+	 *            whether the block already has the records before the offset
+	 */
+	void reset(long blkNum, int start, boolean isOnDisk) {
+		this.blkNum = blkNum;
+		end = -1;
+		isFree = false;
+		filledEnd = start;
+		writtenEnd = isOnDisk ? start : 0;
+		tail.set(start);
+	}
+
+	/**
+	 * Marks the record reserved at the specified offset as filled.
+	 *
+	 * @param start
+	 *            the offset of the record
+	 * @param size
+	 *            the size of the record
+	 */
+	void markFilled(int start, int size) {
+		filledSizes.set(start, size);
+		Thread waiter = filledWaiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	/**
+	 * Waits for the appenders to fill the records reserved before the
+	 * specified offset. The caller must hold the write lock of the log
+	 * manager.
+	 *
+	 * @param end
+	 *            the offset the records are filled up to
+	 */
+	void awaitFilled(int end) {
+		int spins = 0;
+		while (advanceFilledEnd() < end) {
+			if (spins++ < MAX_SPINS)
+				continue;
+			filledWaiter = Thread.currentThread();
+			// A record filled before the waiter is set wakes no one
+			if (advanceFilledEnd() < end)
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+			filledWaiter = null;
+		}
+	}
+
+	/**
+	 * Moves filledEnd over the records filled so far. The caller must hold
+	 * the write lock of the log manager.
+	 *
+	 * @return the new filledEnd
+	 */
+	int advanceFilledEnd() {
+		int pos = filledEnd;
+		int size;
+		while (pos < BLOCK_SIZE && (size = filledSizes.get(pos)) != 0) {
+			filledSizes.set(pos, 0);
+			pos += size;
+		}
+		filledEnd = pos;
+		return pos;
+	}
+}
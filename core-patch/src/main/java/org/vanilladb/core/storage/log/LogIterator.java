@@ -29,6 +29,8 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 	// Optimization: store the size of pointer to other log record
 	private int pointerSize = Page.maxSize(INTEGER);
 	private BlockId blk;
+	// The number of the log block in the block after the header
+	private long firstBlkNum;
 	private Page pg = new Page();
 	private int currentRec;
 	private BlockId endBlk;
@@ -41,9 +43,12 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 	 * 
 	 * @param blk
 	 *            the id of the last block of the log file
+	 * @param firstBlkNum
+	 *            the number of the log block in the block after the header
 	 */
-	public LogIterator(BlockId blk) {
+	public LogIterator(BlockId blk, long firstBlkNum) {
 		this.blk = this.endBlk = blk;
+		this.firstBlkNum = firstBlkNum;
 		pg.read(blk);
 		currentRec = (Integer) pg.getVal(LogMgr.LAST_POS, INTEGER).asJavaVal();
 	}
@@ -60,7 +65,7 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 			currentRec = currentRec - pointerSize;
 			isForward = true;
 		}
-		return currentRec > 0 || blk.number() > 0;
+		return currentRec > 0 || blk.number() > 1;
 	}
 
 	/**
@@ -79,7 +84,7 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 		if (currentRec == 0)
 			moveToNextBlock();
 		currentRec = (Integer) pg.getVal(currentRec, INTEGER).asJavaVal();
-		return new BasicLogRecord(pg, new LogSeqNum(blk.number(), currentRec + pointerSize * 2));
+		return new BasicLogRecord(pg, new LogSeqNum(logBlkNum(), currentRec + pointerSize * 2));
 	}
 
 	@Override
@@ -108,12 +113,20 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 		if (currentRec > (Integer) pg.getVal(currentRec, INTEGER).asJavaVal())
 			moveToPrevBlock();
 
-		BasicLogRecord record = new BasicLogRecord(pg, new LogSeqNum(blk.number(), currentRec + pointerSize));
+		BasicLogRecord record = new BasicLogRecord(pg, new LogSeqNum(logBlkNum(), currentRec + pointerSize));
 		currentRec = (Integer) pg.getVal(currentRec, INTEGER).asJavaVal();
 		return record;
 
 	}
 
+	/**
+	 * Returns the number of the log block in the current block, which the
+	 * LSNs refer to.
+	 */
+	private long logBlkNum() {
+		return firstBlkNum + blk.number() - 1;
+	}
+
 	/**
 	 * Moves to the next log block in reverse order, and positions it after the
 	 * last record in that block.
@@ -15,13 +15,19 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.log;
 
+import static org.vanilladb.core.sql.Type.BIGINT;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.storage.file.Page.BLOCK_SIZE;
 
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.sql.BigIntConstant;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.storage.file.BlockId;
@@ -36,28 +42,125 @@ import org.vanilladb.core.util.CoreProperties;
  * string values. The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link org.vanilladb.core.storage.tx.recovery.RecoveryMgr recovery manager}.
+ * <p>
+ * The log buffer consists of {@link #LOG_BUFFERS} pages used in turn. An
+ * appender reserves the space of its record in the current page with an
+ * atomic add on the offset of the page, and copies the values without any
+ * lock. The appender whose record does not fit seals the page and moves the
+ * appends to the next page. The sealed pages are written by a background
+ * thread, or by a thread flushing the log when it gets there first. The
+ * pages are always written in the order of their blocks. The background
+ * writer runs until {@link #close()} is called.
+ * <p>
+ * The flushes are grouped. A thread flushing the log when no flush is in
+ * progress becomes the leader of a group; it may wait up to
+ * {@link #GROUP_COMMIT_DELAY} for more threads to join, or until
+ * {@link #GROUP_COMMIT_BYTES} bytes are waiting to be flushed, and then writes
+ * the log once for all the threads in the group. The threads arriving during
+ * the write wait for it and form the next group. The current page is written
+ * from a copy, so that the records can be appended during the write.
+ * <p>
+ * The first block of the log file is a header keeping the number of the
+ * first log block, which the LSNs refer to. When the log is created anew, the
+ * numbers continue from the old log, so the LSNs kept in the data pages on
+ * disk are always smaller than the ones of the new records.
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
+	private static Logger logger = Logger.getLogger(LogMgr.class.getName());
+
 	/**
 	 * The location where the pointer to the last integer in the page is. A
 	 * value of 0 means that the pointer is the first value in the page.
 	 */
 	public static final int LAST_POS = 0;
+
+	/**
+	 * The location of the number of the first log block in the header block,
+	 * which is the first block of the log file.
+	 */
+	public static final int FIRST_BLK_POS = 0;
 	public static final String DEFAULT_LOG_FILE;
 
+	/**
+	 * The longest time in microseconds the leader of a group commit waits for
+	 * more threads to join before it writes. 0 means it writes right away, in
+	 * which case a group consists of the threads arriving during the previous
+	 * write.
+	 */
+	public static final long GROUP_COMMIT_DELAY;
+
+	/**
+	 * The number of bytes waiting to be flushed that ends the wait of the
+	 * leader of a group commit early.
+	 */
+	public static final int GROUP_COMMIT_BYTES;
+
+	/**
+	 * The number of pages in the log buffer. The appends block only when all
+	 * the pages but the current one are waiting to be written.
+	 */
+	public static final int LOG_BUFFERS;
+
 	// Optimization: store the size of pointer to other log record
 	private int pointerSize = Page.maxSize(INTEGER);
-	private Page myPage = new Page();
-	private BlockId currentBlk;
-	private int currentPos;
-	private LogSeqNum lastLsn = LogSeqNum.DEFAULT_VALUE;
-	private LogSeqNum lastFlushedLsn = LogSeqNum.DEFAULT_VALUE;
+	// The records in a page must end by this offset
+	private int pageLimit = BLOCK_SIZE - 1;
+
+	// The number of the log block in the block after the header
+	private long firstBlkNum;
+
+	private final LogBuffer[] buffers;
+	// The page the records are appended to. It is only changed while holding
+	// the switchLock.
+	private volatile LogBuffer current;
+	// The first page not written completely yet. It is only changed while
+	// holding the writeLock.
+	private volatile LogBuffer unwritten;
+
+	private volatile LogSeqNum lastFlushedLsn = LogSeqNum.DEFAULT_VALUE;
+	// The log address (block number * BLOCK_SIZE + offset) up to which the
+	// log is written, which only tells how much is waiting to be flushed
+	private volatile long flushedAddr;
+	// The copy of the current page being written by the leader of a group
+	private Page flushPage = new Page();
+
+	// Guards the switches of the current page and the pages being freed
+	private final Lock switchLock = new ReentrantLock();
+	private final Condition pageSwitched = switchLock.newCondition();
+	private final Condition pageFreed = switchLock.newCondition();
+	// Orders the writes of the log pages. It may be held before the
+	// switchLock, but not after it.
+	private final Lock writeLock = new ReentrantLock();
+
+	// Group commit
+	private final Lock groupLock = new ReentrantLock();
+	private final Condition groupFlushed = groupLock.newCondition();
+	private final Condition groupFull = groupLock.newCondition();
+	private boolean isFlushing;
 
-	private final Lock logMgrLock = new ReentrantLock();
+	// Set by close() while holding the switchLock
+	private volatile boolean isClosed;
+
+	/**
+	 * Writes the sealed pages in the background.
+	 */
+	private class LogWriter extends Task {
+		@Override
+		public void run() {
+			Thread.currentThread().setName("Log-Writer");
+			writeSealedPagesInBackground();
+		}
+	}
 
 	static {
 		DEFAULT_LOG_FILE = CoreProperties.getLoader().getPropertyAsString(LogMgr.class.getName() + ".LOG_FILE",
 				"vanilladb.log");
+		GROUP_COMMIT_DELAY = CoreProperties.getLoader().getPropertyAsLong(
+				LogMgr.class.getName() + ".GROUP_COMMIT_DELAY", 0);
+		GROUP_COMMIT_BYTES = CoreProperties.getLoader().getPropertyAsInteger(
+				LogMgr.class.getName() + ".GROUP_COMMIT_BYTES", 2048);
+		LOG_BUFFERS = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				LogMgr.class.getName() + ".LOG_BUFFERS", 4), 2);
 	}
 	
 	private String logFile;
@@ -68,7 +171,8 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	 * depends on a {@link FileMgr} object that it gets from the method
 	 * {@link VanillaDb#fileMgr()}. That object is created during system
 	 * initialization. Thus this constructor cannot be called until
-	 * {@link VanillaDb#initFileMgr(String)} is called first.
+	 * {@link VanillaDb#initFileMgr(String)} is called first. The background
+	 * writer is run by the task manager, which must be initialized as well.
 	 * 
 	 */
 	public LogMgr() {
@@ -77,30 +181,102 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	
 	public LogMgr(String logFileName) {
 		logFile = logFileName;
+		buffers = new LogBuffer[LOG_BUFFERS];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = new LogBuffer(i);
+
 		long logsize = VanillaDb.fileMgr().size(logFile);
 		if (logsize == 0)
-			appendNewBlock();
+			writeHeader();
 		else {
-			currentBlk = new BlockId(logFile, logsize - 1);
-			myPage.read(currentBlk);
-			currentPos = getLastRecordPosition() + pointerSize * 2;
+			Page header = new Page();
+			header.read(new BlockId(logFile, 0));
+			firstBlkNum = (Long) header.getVal(FIRST_BLK_POS, BIGINT).asJavaVal();
+		}
+
+		LogBuffer first = buffers[0];
+		current = unwritten = first;
+		if (logsize <= 1) {
+			first.reset(firstBlkNum, pointerSize * 2, false);
+			writeCurrentPage(first, first.tail.get());
+		} else {
+			first.page.read(new BlockId(logFile, logsize - 1));
+			int lastPos = (Integer) first.page.getVal(LAST_POS, INTEGER).asJavaVal();
+			first.reset(firstBlkNum + logsize - 2, lastPos + pointerSize * 2, true);
+			flushedAddr = address(first.blkNum, first.writtenEnd);
+		}
+
+		VanillaDb.taskMgr().runTask(new LogWriter());
+	}
+
+	/**
+	 * Writes every record appended so far and stops the background writer.
+	 * No record may be appended after this method is called.
+	 */
+	public void close() {
+		switchLock.lock();
+		try {
+			isClosed = true;
+			pageSwitched.signalAll();
+		} finally {
+			switchLock.unlock();
+		}
+
+		writeLock.lock();
+		try {
+			writeAppended();
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
 	/**
 	 * Ensures that the log records corresponding to the specified LSN has been
 	 * written to disk. All earlier log records will also be written to disk.
+	 * The write may be shared with the other threads flushing at the same
+	 * time.
 	 * 
 	 * @param lsn
 	 *            the LSN of a log record
 	 */
 	public void flush(LogSeqNum lsn) {
-		logMgrLock.lock();
+		if (lsn.compareTo(lastFlushedLsn) <= 0)
+			return;
+
+		groupLock.lock();
 		try {
-			if (lsn.compareTo(lastFlushedLsn) >= 0)
-				flush();
+			while (lsn.compareTo(lastFlushedLsn) > 0) {
+				// Join the group being written, or the next one
+				if (isFlushing) {
+					if (pendingBytes() >= GROUP_COMMIT_BYTES)
+						groupFull.signal();
+					groupFlushed.awaitUninterruptibly();
+					continue;
+				}
+
+				// Lead a new group. The write covers every record appended so
+				// far, so the leader never has to write again. The LSN may be
+				// beyond them, e.g. when it is read from a page during
+				// recovery, in which case the record is already on disk.
+				isFlushing = true;
+				try {
+					waitForGroup();
+					groupLock.unlock();
+					writeLock.lock();
+					try {
+						writeAppended();
+					} finally {
+						writeLock.unlock();
+						groupLock.lock();
+					}
+				} finally {
+					isFlushing = false;
+					groupFlushed.signalAll();
+				}
+				return;
+			}
 		} finally {
-			logMgrLock.unlock();
+			groupLock.unlock();
 		}
 	}
 
@@ -112,15 +288,32 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	 */
 	@Override
 	public ReversibleIterator<BasicLogRecord> iterator() {
-		logMgrLock.lock();
+		writeLock.lock();
 		try {
-			flush();
-			return new LogIterator(currentBlk);
+			return new LogIterator(writeAppended(), firstBlkNum);
 		} finally {
-			logMgrLock.unlock();
+			writeLock.unlock();
 		}
 	}
 
+	/**
+	 * Reads the log record of the specified LSN into the specified page, after
+	 * flushing the log up to the record if necessary. The page then holds the
+	 * whole block of the record, so the earlier records in the block can be
+	 * read from it as well.
+	 * 
+	 * @param lsn
+	 *            the LSN of a log record
+	 * @param page
+	 *            the page to read the block of the record into
+	 * @return the log record
+	 */
+	public BasicLogRecord read(LogSeqNum lsn, Page page) {
+		flush(lsn);
+		page.read(fileBlock(lsn.blkNum()));
+		return new BasicLogRecord(page, lsn);
+	}
+
 	/**
 	 * Appends a log record to the file. The record contains an arbitrary array
 	 * of values. The method also writes an integer to the end of each log
@@ -133,126 +326,266 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	 * @return the LSN of the log record
 	 */
 	public LogSeqNum append(Constant[] rec) {
-		logMgrLock.lock();
-		try {
-			// two integers that point to the previous and next log records
-			int recsize = pointerSize * 2;
-			for (Constant c : rec)
-				recsize += Page.size(c);
-
-			// if the log record doesn't fit, move to the next block
-			if (currentPos + recsize >= BLOCK_SIZE) {
-				flush();
-				appendNewBlock();
+		// two integers that point to the previous and next log records
+		int recsize = pointerSize * 2;
+		for (Constant c : rec)
+			recsize += Page.size(c);
+		if (pointerSize * 2 + recsize > pageLimit)
+			throw new IllegalArgumentException("the log record of " + recsize + " bytes does not fit in a page");
+
+		while (true) {
+			LogBuffer buf = current;
+			// The pages are reused around the ring, so a page is told apart by
+			// its block when it is current again
+			long blkNum = buf.blkNum;
+			int start = buf.tail.getAndAdd(recsize);
+			if (start + recsize <= pageLimit) {
+				// The page cannot be written before the record is filled, so
+				// its block stays the same
+				LogSeqNum lsn = new LogSeqNum(buf.blkNum, start);
+				fillRecord(buf.page, start, rec);
+				buf.markFilled(start, recsize);
+				return lsn;
 			}
-			
-			// Get the current LSN
-			LogSeqNum lsn = currentLSN();
-			
-			// Append a record
-			for (Constant c : rec)
-				appendVal(c);
-			finalizeRecord();
-			
-			// Remember this LSN
-			lastLsn = lsn;
-			
-			return lsn;
-		} finally {
-			logMgrLock.unlock();
+
+			// Only the first record not fitting starts before the limit. Its
+			// appender seals the page, while the others wait for the next page.
+			if (start <= pageLimit)
+				sealCurrentPage(buf, start);
+			else
+				waitForNextPage(buf, blkNum);
 		}
 	}
 
 	/**
-	 * Remove the old log file and create a new one.
+	 * Remove the old log file and create a new one. No record may be appended
+	 * during this method. The blocks of the new log are numbered after the
+	 * old ones. The background writer keeps running, since it only writes
+	 * while holding the writeLock, which is held here.
 	 */
 	public void removeAndCreateNewLog() {
-		logMgrLock.lock();
+		writeLock.lock();
 		try {
-			VanillaDb.fileMgr().delete(logFile);
-			
-			// Reset all the data
-			lastLsn = LogSeqNum.DEFAULT_VALUE;
+			switchLock.lock();
+			try {
+				VanillaDb.fileMgr().delete(logFile);
+				firstBlkNum = current.blkNum + 1;
+				writeHeader();
+
+				// Reset all the data
+				for (LogBuffer buf : buffers)
+					buf.isFree = true;
+				LogBuffer first = buffers[0];
+				first.reset(firstBlkNum, pointerSize * 2, false);
+				current = unwritten = first;
+				flushedAddr = address(firstBlkNum, 0);
+			} finally {
+				switchLock.unlock();
+			}
+
+			// Create the first block
+			writeCurrentPage(current, current.tail.get());
 			lastFlushedLsn = LogSeqNum.DEFAULT_VALUE;
-			
-			// 'myPage', 'currentBlk' and 'currentPos' are reset in this method
-			appendNewBlock();
 		} finally {
-			logMgrLock.unlock();
+			writeLock.unlock();
 		}
 	}
 
 	/**
-	 * Adds the specified value to the page at the position denoted by
-	 * currentPos. Then increments currentPos by the size of the value.
-	 * 
-	 * @param val
-	 *            the value to be added to the page
+	 * Copies the values of a record reserved at the specified offset, followed
+	 * by the pointer to the previous record. The previous record is made to
+	 * point to this one, while the pointer of this record to the next one is
+	 * left to the next record or to the write of the page.
+	 */
+	private void fillRecord(Page page, int start, Constant[] rec) {
+		int pos = start;
+		for (Constant c : rec) {
+			page.setVal(pos, c);
+			pos += Page.size(c);
+		}
+		page.setVal(pos, new IntegerConstant(start - pointerSize * 2));
+		page.setVal(start - pointerSize, new IntegerConstant(pos + pointerSize));
+	}
+
+	/**
+	 * Ends the specified page at the specified offset, and makes the next page
+	 * of the buffer the current one once it is written.
+	 */
+	private void sealCurrentPage(LogBuffer buf, int end) {
+		buf.end = end;
+		LogBuffer next = buffers[(buf.index + 1) % buffers.length];
+		switchLock.lock();
+		try {
+			while (!next.isFree)
+				pageFreed.awaitUninterruptibly();
+			next.reset(buf.blkNum + 1, pointerSize * 2, false);
+			current = next;
+			pageSwitched.signalAll();
+		} finally {
+			switchLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the specified page stops being the current page for the
+	 * specified block. It may be current again for a later block once it is
+	 * written, which does not count.
 	 */
-	private void appendVal(Constant val) {
-		myPage.setVal(currentPos, val);
-		currentPos += Page.size(val);
+	private void waitForNextPage(LogBuffer buf, long blkNum) {
+		switchLock.lock();
+		try {
+			while (current == buf && buf.blkNum == blkNum)
+				pageSwitched.awaitUninterruptibly();
+		} finally {
+			switchLock.unlock();
+		}
 	}
 
 	/**
-	 * Returns the LSN of the most recent log record. As implemented, the LSN is
-	 * the block number and the offset in the block where the record is stored.
+	 * Writes the sealed pages as they come, until the log manager is closed
+	 * or the thread is interrupted.
+	 */
+	private void writeSealedPagesInBackground() {
+		while (true) {
+			switchLock.lock();
+			try {
+				while (unwritten == current && !isClosed)
+					pageSwitched.await();
+				if (isClosed)
+					return;
+			} catch (InterruptedException e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("the log writer is interrupted");
+				return;
+			} finally {
+				switchLock.unlock();
+			}
+
+			writeLock.lock();
+			try {
+				writeSealedPages();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes every record appended before this method is called. The caller
+	 * must hold the writeLock.
 	 * 
-	 * @return the LSN of the most recent log record
+	 * @return the block of the log file written last
 	 */
-	private LogSeqNum currentLSN() {
-		return new LogSeqNum(currentBlk.number(), currentPos);
+	private BlockId writeAppended() {
+		writeSealedPages();
+		LogBuffer buf = unwritten;
+		int tail = buf.tail.get();
+		if (tail <= pageLimit)
+			return writeCurrentPage(buf, tail);
+
+		// The page is being sealed
+		waitForNextPage(buf, buf.blkNum);
+		writeSealedPages();
+		return fileBlock(buf.blkNum);
 	}
 
 	/**
-	 * Writes the current page to the log file.
+	 * Writes the pages sealed so far in order, and frees them for the
+	 * appends. The caller must hold the writeLock.
 	 */
-	private void flush() {
-		myPage.write(currentBlk);
-		lastFlushedLsn = lastLsn;
+	private void writeSealedPages() {
+		LogBuffer buf;
+		while ((buf = unwritten) != current) {
+			// The end is set before the current page moves on
+			int end = buf.end;
+			buf.awaitFilled(end);
+			writePage(buf.page, buf.blkNum, end);
+			unwritten = buffers[(buf.index + 1) % buffers.length];
+
+			switchLock.lock();
+			try {
+				buf.isFree = true;
+				pageFreed.signalAll();
+			} finally {
+				switchLock.unlock();
+			}
+		}
 	}
 
 	/**
-	 * Clear the current page, and append it to the log file.
+	 * Writes a copy of the current page up to the specified offset, which has
+	 * to be reserved already. The caller must hold the writeLock.
 	 */
-	private void appendNewBlock() {
-		setLastRecordPosition(0);
-		currentPos = pointerSize * 2;
-		currentBlk = myPage.append(logFile);
+	private BlockId writeCurrentPage(LogBuffer buf, int end) {
+		BlockId blk = fileBlock(buf.blkNum);
+		if (end <= buf.writtenEnd)
+			return blk;
+		buf.awaitFilled(end);
+		flushPage.copyFrom(buf.page);
+		writePage(flushPage, buf.blkNum, end);
+		buf.writtenEnd = end;
+		return blk;
 	}
 
 	/**
-	 * Sets up a circular chain of pointers to the records in the page. There is
-	 * an integer added to the end of each log record whose value is the offset
-	 * of the previous log record. The first four bytes of the page contain an
-	 * integer whose value is the offset of the integer for the last log record
-	 * in the page.
+	 * Completes the chain of pointers of the records before the specified
+	 * offset, and writes the page to the specified block. There is an integer
+	 * added to the end of each log record whose value is the offset of the
+	 * previous log record, followed by an integer whose value is the offset
+	 * of the next one, or of the first four bytes of the page for the last
+	 * record. The first four bytes of the page contain an integer whose value
+	 * is the offset of the integer for the last log record in the page.
 	 */
-	private void finalizeRecord() {
-		myPage.setVal(currentPos, new IntegerConstant(getLastRecordPosition()));
-		setPreviousNextRecordPosition(currentPos + pointerSize);
-		setLastRecordPosition(currentPos);
-		currentPos += pointerSize;
-		setNextRecordPosition(currentPos);
-
-		// leave for next pointer
-		currentPos += pointerSize;
+	private void writePage(Page page, long blkNum, int end) {
+		int lastPos = end - pointerSize * 2;
+		page.setVal(LAST_POS, new IntegerConstant(lastPos));
+		page.setVal(lastPos + pointerSize, new IntegerConstant(LAST_POS + pointerSize));
+		page.write(fileBlock(blkNum));
+
+		// Every record before the end is on disk
+		lastFlushedLsn = new LogSeqNum(blkNum, end - 1);
+		flushedAddr = address(blkNum, end);
 	}
 
-	private int getLastRecordPosition() {
-		return (Integer) myPage.getVal(LAST_POS, INTEGER).asJavaVal();
+	/**
+	 * Waits for more threads to join the group led by the caller, which holds
+	 * the groupLock.
+	 */
+	private void waitForGroup() {
+		long nanos = GROUP_COMMIT_DELAY * 1000;
+		while (nanos > 0 && pendingBytes() < GROUP_COMMIT_BYTES) {
+			try {
+				nanos = groupFull.awaitNanos(nanos);
+			} catch (InterruptedException e) {
+				// Write right away
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
 	}
 
-	private void setLastRecordPosition(int pos) {
-		myPage.setVal(LAST_POS, new IntegerConstant(pos));
+	private long pendingBytes() {
+		LogBuffer buf = current;
+		return address(buf.blkNum, Math.min(buf.tail.get(), BLOCK_SIZE)) - flushedAddr;
 	}
 
-	private void setNextRecordPosition(int pos) {
-		myPage.setVal(pos, new IntegerConstant(LAST_POS + pointerSize));
+	private long address(long blkNum, int offset) {
+		return blkNum * BLOCK_SIZE + offset;
 	}
 
-	private void setPreviousNextRecordPosition(int pos) {
-		int lastPos = (Integer) myPage.getVal(LAST_POS, INTEGER).asJavaVal();
-		myPage.setVal(lastPos + pointerSize, new IntegerConstant(pos));
+	/**
+	 * Returns the block of the log file holding the specified log block.
+	 */
+	private BlockId fileBlock(long blkNum) {
+		return new BlockId(logFile, blkNum - firstBlkNum + 1);
+	}
+
+	/**
+	 * Writes the header block, which keeps the number of the first log block.
+	 */
+	private void writeHeader() {
+		Page header = new Page();
+		header.setVal(FIRST_BLK_POS, new BigIntConstant(firstBlkNum));
+		header.write(new BlockId(logFile, 0));
 	}
 }
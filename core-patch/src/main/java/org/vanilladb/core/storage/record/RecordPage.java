@@ -33,6 +33,7 @@ import org.vanilladb.core.storage.file.Page;
 import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.concurrency.VersionStore;
 
 /**
  * Manages the placement and access of records in a block.
@@ -52,6 +53,8 @@ public class RecordPage implements Record {
 	private BlockId blk;
 	private TableInfo ti;
 	private boolean doLog;
+	private VersionStore.Snapshot snapshot;
+	private boolean isVersioned;
 
 	private Buffer currentBuff;
 	private int slotSize;
@@ -154,6 +157,11 @@ public class RecordPage implements Record {
 		}
 		pos = pos < MIN_REC_SIZE ? MIN_REC_SIZE : pos;
 		slotSize = pos + FLAG_SIZE;
+
+		if (!isTempTable()) {
+			snapshot = tx.concurrencyMgr().getSnapshot();
+			isVersioned = VersionStore.ENABLE_SNAPSHOT_READ && !tx.isReadOnly();
+		}
 	}
 
 	/**
@@ -351,19 +359,67 @@ public class RecordPage implements Record {
 	}
 
 	private Constant getVal(int offset, Type type) {
-		if (!isTempTable())
-			tx.concurrencyMgr().readRecord(new RecordId(blk, currentSlot));
-		return currentBuff.getVal(offset, type);
+		if (isTempTable())
+			return currentBuff.getVal(offset, type);
+		
+		RecordId rid = new RecordId(blk, currentSlot);
+		tx.concurrencyMgr().readRecord(rid);
+		Constant val = currentBuff.getVal(offset, type);
+		
+		// A snapshot reader sees the value as of its snapshot
+		if (snapshot != null)
+			val = snapshot.read(rid, offset - currentPos(), val);
+		return val;
 	}
 
 	private void setVal(int offset, Constant val) {
 		if (tx.isReadOnly() && !isTempTable())
 			throw new UnsupportedOperationException();
-		if (!isTempTable())
-			tx.concurrencyMgr().modifyRecord(new RecordId(blk, currentSlot));
-		LogSeqNum lsn = doLog ? tx.recoveryMgr().logSetVal(currentBuff, offset, val)
-				: null;
-		currentBuff.setVal(offset, val, tx.getTransactionNumber(), lsn);
+		if (!isTempTable()) {
+			RecordId rid = new RecordId(blk, currentSlot);
+			tx.concurrencyMgr().modifyRecord(rid);
+			if (isVersioned)
+				saveBeforeImage(rid);
+		}
+		if (!doLog) {
+			currentBuff.setVal(offset, val, tx.getTransactionNumber(), null);
+			return;
+		}
+
+		// The page cannot be written between the log record and the change,
+		// otherwise it may have the LSN of a later change of another slot,
+		// and the recovery would take this change as applied
+		currentBuff.lockFlushing();
+		try {
+			LogSeqNum lsn = tx.recoveryMgr().logSetVal(currentBuff, offset, val);
+			currentBuff.setVal(offset, val, tx.getTransactionNumber(), lsn);
+		} finally {
+			currentBuff.unlockFlushing();
+		}
+	}
+
+	/**
+	 * Saves the image of the current slot for snapshot readers, if this
+	 * transaction has not modified the slot yet. The fields of an empty slot
+	 * are not saved, since no reader looks into them.
+	 */
+	private void saveBeforeImage(RecordId rid) {
+		VersionStore store = VersionStore.getStore();
+		if (store.hasVersion(tx.getTransactionNumber(), rid))
+			return;
+		
+		Map<Integer, Constant> image = new HashMap<Integer, Constant>();
+		Constant flag = currentBuff.getVal(currentPos(), INTEGER);
+		image.put(0, flag);
+		if (flag.equals(INUSE_CONST)) {
+			Schema sch = ti.schema();
+			for (String fldName : sch.fields()) {
+				int offset = FLAG_SIZE + myOffsetMap.get(fldName);
+				image.put(offset, currentBuff.getVal(currentPos() + offset,
+						sch.type(fldName)));
+			}
+		}
+		store.addVersion(tx.getTransactionNumber(), rid, image);
 	}
 
 	private boolean isTempTable() {
@@ -23,6 +23,7 @@ import java.util.logging.Logger;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.storage.buffer.BufferMgr;
 import org.vanilladb.core.storage.tx.concurrency.ConcurrencyMgr;
+import org.vanilladb.core.storage.tx.concurrency.VersionStore;
 import org.vanilladb.core.storage.tx.recovery.RecoveryMgr;
 
 /**
@@ -87,6 +88,14 @@ public class Transaction {
 		 * until the recovery procedure complete.
 		 */
 		addLifecycleListener(recoveryMgr);
+		/*
+		 * The versions of a writer must be marked after the recovery manager
+		 * undoes its modifications, and before the concurrency manager
+		 * releases its locks, so that commit timestamps follow the order of
+		 * conflicts.
+		 */
+		if (VersionStore.ENABLE_SNAPSHOT_READ && !readOnly)
+			addLifecycleListener(VersionStore.getStore());
 		addLifecycleListener(concurMgr);
 		addLifecycleListener(bufferMgr);
 	}
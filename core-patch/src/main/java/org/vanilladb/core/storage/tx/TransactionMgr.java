@@ -17,10 +17,10 @@ package org.vanilladb.core.storage.tx;
 
 import java.lang.reflect.Constructor;
 import java.sql.Connection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,7 +65,7 @@ public class TransactionMgr implements TransactionLifecycleListener {
 
 	// Old method for maintaining active transaction list
 	// When the above optimization ready, switch to that one
-	private Set<Long> activeTxs = new HashSet<Long>();
+	private Map<Long, Transaction> activeTxs = new HashMap<Long, Transaction>();
 
 	private long nextTxNum = 0;
 	// Optimization: Use separate lock for nextTxNum
@@ -117,47 +117,33 @@ public class TransactionMgr implements TransactionLifecycleListener {
 	}
 
 	/**
-	 * Creates non-quiescent checkpoint record.
+	 * Creates non-quiescent checkpoint record. The buffers are not flushed,
+	 * except those whose changes have no log records, so the transactions
+	 * keep running during checkpointing. Instead, the record keeps the LSN
+	 * from which the recovery has to redo the log, which is the minimum of the
+	 * recLSNs of the dirty buffers and the LSNs of the start records of the
+	 * active transactions. The latter covers the changes which have been
+	 * logged but not yet made to the buffers when they are examined.
 	 * 
 	 * @param checkpointTx
 	 *            the transaction that performs checkpointing
 	 */
 	public void createCheckpoint(Transaction checkpointTx) {
-		// stop access new tx request and find out active txs by using a write
-		// lock on threadTxNums
-		List<Long> txNums;
-		// for (Transaction tx : activeTxs)
-		// if (tx.getTransactionNumber() != checkpointTx
-		// .getTransactionNumber())
-		// txNums.add(tx.getTransactionNumber());
-
-		// activeTxsLock.writeLock().lock();
-		// try {
-		// for (Long l : threadTxNums) {
-		// if (l >= 0) {
-		// txNums.add(l);
-		// }
-		// }
-		//
-		// // flush all buffers
-		// // CT : Pick a tx and call its bufferMgr flushAll, or get
-		// // bufferPoolMgr (init it at VanillaDb)
-		// checkpointTx.bufferMgr().flushAll();
-		// // wrtie a checkpoint record and flush to disk
-		// LogSeqNum lsn = checkpointTx.recoveryMgr().checkpoint(txNums);
-		// VanillaDb.logMgr().flush(lsn);
-		// System.out.println("Chkpnt :" + txNums);
-		// } finally {
-		// activeTxsLock.writeLock().unlock();
-		// }
-
-		// Old method
+		List<Long> txNums = new ArrayList<Long>();
+		LogSeqNum redoLsn = checkpointTx.recoveryMgr().getStartLsn();
 		synchronized (this) {
-			txNums = new LinkedList<Long>(activeTxs);
-			checkpointTx.bufferMgr().flushAll();
-			LogSeqNum lsn = checkpointTx.recoveryMgr().checkpoint(txNums);
-			VanillaDb.logMgr().flush(lsn);
+			for (Transaction tx : activeTxs.values()) {
+				// Read-only txs write no log records
+				if (tx.isReadOnly())
+					continue;
+				txNums.add(tx.getTransactionNumber());
+				redoLsn = min(redoLsn, tx.recoveryMgr().getStartLsn());
+			}
 		}
+		redoLsn = min(redoLsn, checkpointTx.bufferMgr().minRecLsn());
+
+		LogSeqNum lsn = checkpointTx.recoveryMgr().checkpoint(txNums, redoLsn);
+		VanillaDb.logMgr().flush(lsn);
 	}
 
 	public Transaction newTransaction(int isolationLevel, boolean readOnly) {
@@ -191,6 +177,14 @@ public class TransactionMgr implements TransactionLifecycleListener {
 		} 
 	}
 
+	private static LogSeqNum min(LogSeqNum lsn1, LogSeqNum lsn2) {
+		if (lsn1 == null)
+			return lsn2;
+		if (lsn2 == null)
+			return lsn1;
+		return lsn1.compareTo(lsn2) <= 0 ? lsn1 : lsn2;
+	}
+
 	private Transaction createTransaction(int isolationLevel, boolean readOnly, long txNum) {
 		if (logger.isLoggable(Level.FINE))
 			logger.fine("new transaction: " + txNum);
@@ -258,7 +252,7 @@ public class TransactionMgr implements TransactionLifecycleListener {
 		// }
 
 		synchronized (this) {
-			activeTxs.add(tx.getTransactionNumber());
+			activeTxs.put(tx.getTransactionNumber(), tx);
 		}
 		return tx;
 	}
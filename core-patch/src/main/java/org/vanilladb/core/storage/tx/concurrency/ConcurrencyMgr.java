@@ -178,4 +178,15 @@ public abstract class ConcurrencyMgr implements TransactionLifecycleListener {
 	public void releaseRecordFileHeader(BlockId blk) {
 		lockTbl.release(blk, txNum, LockTable.X_LOCK);
 	}
+
+	/**
+	 * Returns the snapshot which the transaction reads records from instead
+	 * of locking them.
+	 * 
+	 * @return the snapshot, or null if the transaction reads the latest
+	 *         records
+	 */
+	public VersionStore.Snapshot getSnapshot() {
+		return null;
+	}
 }
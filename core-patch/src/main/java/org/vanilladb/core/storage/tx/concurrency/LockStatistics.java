@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * The contention statistics of a lock table. Only the requests that have to
+ * wait are recorded, so that the statistics cost nothing on the uncontended
+ * path. For each wait, the statistics keep:
+ * <ul>
+ * <li>the wait time in a log-scale histogram of its lock mode,</li>
+ * <li>the depth of the queue the request joined, in a log-scale histogram,
+ * and</li>
+ * <li>a sample of the waited object in a space-saving sketch, which tracks
+ * the most frequently waited objects in a bounded space.</li>
+ * </ul>
+ * The statistics of every lock table are registered as an MBean under
+ * {@code org.vanilladb.core:type=LockStatistics}, and
+ * {@link #reportAll()} reports all of them at once.
+ */
+public class LockStatistics implements LockStatisticsMBean {
+	private static Logger logger = Logger.getLogger(LockStatistics.class
+			.getName());
+
+	/**
+	 * Whether the lock tables record their waits.
+	 */
+	public static final boolean ENABLED;
+
+	/**
+	 * One in this number of waits is offered to the hot-object sketch.
+	 */
+	public static final int SAMPLE_RATE;
+
+	/**
+	 * The number of hot objects to report.
+	 */
+	public static final int TOP_K;
+
+	static {
+		ENABLED = CoreProperties.getLoader().getPropertyAsBoolean(
+				LockStatistics.class.getName() + ".ENABLED", false);
+		SAMPLE_RATE = CoreProperties.getLoader().getPropertyAsInteger(
+				LockStatistics.class.getName() + ".SAMPLE_RATE", 16);
+		TOP_K = CoreProperties.getLoader().getPropertyAsInteger(
+				LockStatistics.class.getName() + ".TOP_K", 20);
+	}
+
+	// Indexed in the order of IS, IX, S, SIX and X, as the lock tables are
+	static final String[] MODE_NAMES = { "IS", "IX", "S", "SIX", "X" };
+
+	// The i-th bucket counts the waits in [2^(i-1), 2^i) microseconds
+	private static final int NUM_WAIT_BUCKETS = 32;
+	// The i-th bucket counts the depths in [2^i, 2^(i+1))
+	private static final int NUM_DEPTH_BUCKETS = 16;
+	// The sketch keeps more counters than it reports, so that the reported
+	// ones are less likely to be recently admitted
+	private static final int SKETCH_FACTOR = 4;
+
+	private static List<LockStatistics> registry = new CopyOnWriteArrayList<LockStatistics>();
+
+	/**
+	 * Returns a report of the statistics of all lock tables.
+	 *
+	 * @return the report
+	 */
+	public static String reportAll() {
+		if (!ENABLED)
+			return "lock statistics are disabled";
+		StringBuilder sb = new StringBuilder();
+		for (LockStatistics stats : registry)
+			sb.append(stats.getReport());
+		return sb.toString();
+	}
+
+	/**
+	 * Resets the statistics of all lock tables.
+	 */
+	public static void resetAll() {
+		for (LockStatistics stats : registry)
+			stats.reset();
+	}
+
+	/**
+	 * A counter of the space-saving sketch. The count of an object may be
+	 * overestimated by at most the error, which is the count of the object it
+	 * replaced.
+	 */
+	private static class Counter {
+		Object obj;
+		long count, error, waitNanos;
+
+		Counter(Object obj, long error) {
+			this.obj = obj;
+			this.count = error;
+			this.error = error;
+		}
+	}
+
+	private String name;
+	private AtomicLongArray waitCounts = new AtomicLongArray(MODE_NAMES.length);
+	private AtomicLongArray waitNanos = new AtomicLongArray(MODE_NAMES.length);
+	private AtomicLongArray waitHistogram = new AtomicLongArray(
+			MODE_NAMES.length * NUM_WAIT_BUCKETS);
+	private AtomicLongArray depthHistogram = new AtomicLongArray(
+			NUM_DEPTH_BUCKETS);
+
+	// Guarded by sketch
+	private Map<Object, Counter> sketch = new HashMap<Object, Counter>();
+
+	/**
+	 * Creates the statistics of a lock table and registers them if the
+	 * statistics are enabled.
+	 *
+	 * @param name
+	 *            the name of the lock table
+	 */
+	public LockStatistics(String name) {
+		this.name = name;
+		if (!ENABLED)
+			return;
+
+		registry.add(this);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("org.vanilladb.core:type=LockStatistics,name=" + name));
+		} catch (JMException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("fail to register the lock statistics of " + name
+						+ " to JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a request which has waited for a lock. This should be called
+	 * only if {@link #ENABLED} is true.
+	 *
+	 * @param obj
+	 *            the locked object
+	 * @param mode
+	 *            the index of the lock mode in the order of IS, IX, S, SIX and
+	 *            X
+	 * @param queueDepth
+	 *            the number of requests in the queue when the request started
+	 *            waiting, including itself
+	 * @param nanos
+	 *            the time waited
+	 */
+	public void recordWait(Object obj, int mode, int queueDepth, long nanos) {
+		waitCounts.incrementAndGet(mode);
+		waitNanos.addAndGet(mode, nanos);
+		waitHistogram.incrementAndGet(mode * NUM_WAIT_BUCKETS
+				+ waitBucket(nanos));
+		depthHistogram.incrementAndGet(depthBucket(queueDepth));
+
+		if (SAMPLE_RATE <= 1
+				|| ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0)
+			offer(obj, nanos);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getNumOfWaits() {
+		long total = 0;
+		for (int i = 0; i < waitCounts.length(); i++)
+			total += waitCounts.get(i);
+		return total;
+	}
+
+	@Override
+	public double getAvgWaitMicros() {
+		long count = 0, nanos = 0;
+		for (int i = 0; i < waitCounts.length(); i++) {
+			count += waitCounts.get(i);
+			nanos += waitNanos.get(i);
+		}
+		return count == 0 ? 0.0 : nanos / 1000.0 / count;
+	}
+
+	@Override
+	public long[] getWaitCounts() {
+		return toArray(waitCounts);
+	}
+
+	@Override
+	public long[] getQueueDepthHistogram() {
+		return toArray(depthHistogram);
+	}
+
+	@Override
+	public String[] getHotObjects() {
+		List<Counter> top = topCounters();
+		String[] hot = new String[top.size()];
+		for (int i = 0; i < hot.length; i++) {
+			Counter c = top.get(i);
+			hot[i] = c.obj + ": ~" + c.count * sampleRate() + " waits";
+		}
+		return hot;
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Lock statistics of ").append(name).append(":\n");
+		sb.append(String.format("  waits: %d, avg wait: %.2f us%n",
+				getNumOfWaits(), getAvgWaitMicros()));
+
+		// Wait times by mode
+		for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+			long count = waitCounts.get(mode);
+			if (count == 0)
+				continue;
+			sb.append(String.format(
+					"  %-3s waits: %d, avg: %.2f us, p50 < %d us, p99 < %d us, max < %d us%n",
+					MODE_NAMES[mode], count, waitNanos.get(mode) / 1000.0 / count,
+					waitPercentile(mode, 0.5), waitPercentile(mode, 0.99),
+					waitPercentile(mode, 1.0)));
+			sb.append("      histogram (us):");
+			for (int b = 0; b < NUM_WAIT_BUCKETS; b++) {
+				long n = waitHistogram.get(mode * NUM_WAIT_BUCKETS + b);
+				if (n > 0)
+					sb.append(" <").append(1L << b).append(": ").append(n);
+			}
+			sb.append("\n");
+		}
+
+		// Queue depths
+		sb.append("  queue depth:");
+		for (int b = 0; b < NUM_DEPTH_BUCKETS; b++) {
+			long n = depthHistogram.get(b);
+			if (n == 0)
+				continue;
+			if (b == 0)
+				sb.append(" 1: ");
+			else if (b == NUM_DEPTH_BUCKETS - 1)
+				sb.append(" ").append(1 << b).append("+: ");
+			else
+				sb.append(" ").append(1 << b).append("-")
+						.append((1 << (b + 1)) - 1).append(": ");
+			sb.append(n);
+		}
+		sb.append("\n");
+
+		// Hot objects
+		sb.append("  hot objects (1/").append(sampleRate())
+				.append(" of waits sampled):\n");
+		for (Counter c : topCounters())
+			sb.append(String.format("    %s: ~%d waits (error <= %d), avg wait: %.2f us%n",
+					c.obj, c.count * sampleRate(), c.error * sampleRate(),
+					c.count == c.error ? 0.0 : c.waitNanos / 1000.0 / (c.count - c.error)));
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < waitCounts.length(); i++) {
+			waitCounts.set(i, 0);
+			waitNanos.set(i, 0);
+		}
+		for (int i = 0; i < waitHistogram.length(); i++)
+			waitHistogram.set(i, 0);
+		for (int i = 0; i < depthHistogram.length(); i++)
+			depthHistogram.set(i, 0);
+		synchronized (sketch) {
+			sketch.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+
+	/**
+	 * Counts a sampled wait on the object. If the object has no counter and
+	 * the sketch is full, it takes over the counter with the smallest count
+	 * and inherits the count as its error.
+	 */
+	private void offer(Object obj, long nanos) {
+		synchronized (sketch) {
+			Counter counter = sketch.get(obj);
+			if (counter == null) {
+				if (sketch.size() < TOP_K * SKETCH_FACTOR)
+					counter = new Counter(obj, 0);
+				else {
+					Counter min = null;
+					for (Counter c : sketch.values())
+						if (min == null || c.count < min.count)
+							min = c;
+					sketch.remove(min.obj);
+					counter = new Counter(obj, min.count);
+				}
+				sketch.put(obj, counter);
+			}
+			counter.count++;
+			counter.waitNanos += nanos;
+		}
+	}
+
+	private List<Counter> topCounters() {
+		List<Counter> counters;
+		synchronized (sketch) {
+			counters = new ArrayList<Counter>(sketch.size());
+			for (Counter c : sketch.values()) {
+				Counter copy = new Counter(c.obj, c.error);
+				copy.count = c.count;
+				copy.waitNanos = c.waitNanos;
+				counters.add(copy);
+			}
+		}
+		Collections.sort(counters, new Comparator<Counter>() {
+			@Override
+			public int compare(Counter c1, Counter c2) {
+				return Long.compare(c2.count, c1.count);
+			}
+		});
+		return counters.size() > TOP_K ? counters.subList(0, TOP_K) : counters;
+	}
+
+	/**
+	 * Returns the upper bound, in microseconds, of the bucket where the given
+	 * fraction of the waits in a mode falls.
+	 */
+	private long waitPercentile(int mode, double fraction) {
+		long count = waitCounts.get(mode);
+		long threshold = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int b = 0; b < NUM_WAIT_BUCKETS; b++) {
+			seen += waitHistogram.get(mode * NUM_WAIT_BUCKETS + b);
+			if (seen >= threshold)
+				return 1L << b;
+		}
+		return 1L << (NUM_WAIT_BUCKETS - 1);
+	}
+
+	private static int waitBucket(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, NUM_WAIT_BUCKETS - 1);
+	}
+
+	private static int depthBucket(int depth) {
+		if (depth <= 1)
+			return 0;
+		int bucket = 31 - Integer.numberOfLeadingZeros(depth);
+		return Math.min(bucket, NUM_DEPTH_BUCKETS - 1);
+	}
+
+	private static int sampleRate() {
+		return Math.max(SAMPLE_RATE, 1);
+	}
+
+	private static long[] toArray(AtomicLongArray array) {
+		long[] values = new long[array.length()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = array.get(i);
+		return values;
+	}
+}
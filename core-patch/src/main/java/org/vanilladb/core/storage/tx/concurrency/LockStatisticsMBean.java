@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency;
+
+/**
+ * The JMX view of the contention statistics of a lock table.
+ */
+public interface LockStatisticsMBean {
+
+	String getName();
+
+	long getNumOfWaits();
+
+	double getAvgWaitMicros();
+
+	/**
+	 * Returns the number of waits in each lock mode, indexed in the order of
+	 * IS, IX, S, SIX and X.
+	 *
+	 * @return the numbers of waits
+	 */
+	long[] getWaitCounts();
+
+	/**
+	 * Returns the distribution of queue depths seen by the waiting requests.
+	 * The i-th entry counts the depths in [2^i, 2^(i+1)).
+	 *
+	 * @return the queue depth histogram
+	 */
+	long[] getQueueDepthHistogram();
+
+	/**
+	 * Returns the objects waited on most often, with their estimated numbers
+	 * of waits.
+	 *
+	 * @return the hot objects in descending order of waits
+	 */
+	String[] getHotObjects();
+
+	String getReport();
+
+	void reset();
+}
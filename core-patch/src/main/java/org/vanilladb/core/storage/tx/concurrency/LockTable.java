@@ -100,6 +100,7 @@ class LockTable {
 	private Map<Long, Object> txWaitMap = new ConcurrentHashMap<Long, Object>();
 	private BlockingQueue<Long> toBeNotified = new ArrayBlockingQueue<Long>(1000);
 	private final Object anchors[] = new Object[1009];
+	private LockStatistics stats = new LockStatistics("LockTable");
 
 	public LockTable() {
 		for (int i = 0; i < anchors.length; ++i) {
@@ -181,13 +182,22 @@ class LockTable {
 
 				try {
 					long timestamp = System.currentTimeMillis();
+					long waitStart = 0;
+					int queueDepth = 0;
 					while (!sLockable(lks, txNum) && !waitingTooLong(timestamp)) {
 						avoidDeadlock(lks, txNum, S_LOCK);
 						lks.requestSet.add(txNum);
+						if (LockStatistics.ENABLED && queueDepth == 0) {
+							queueDepth = lks.requestSet.size();
+							waitStart = System.nanoTime();
+						}
 
 						anchor.wait(MAX_TIME);
 						lks.requestSet.remove(txNum);
 					}
+					if (queueDepth > 0)
+						stats.recordWait(obj, S_LOCK, queueDepth,
+								System.nanoTime() - waitStart);
 					if (!sLockable(lks, txNum))
 						throw new LockAbortException();
 					lks.sLockers.add(txNum);
@@ -223,13 +233,22 @@ class LockTable {
 
 				try {
 					long timestamp = System.currentTimeMillis();
+					long waitStart = 0;
+					int queueDepth = 0;
 					while (!xLockable(lks, txNum) && !waitingTooLong(timestamp)) {
 						avoidDeadlock(lks, txNum, X_LOCK);
 						lks.requestSet.add(txNum);
+						if (LockStatistics.ENABLED && queueDepth == 0) {
+							queueDepth = lks.requestSet.size();
+							waitStart = System.nanoTime();
+						}
 
 						anchor.wait(MAX_TIME);
 						lks.requestSet.remove(txNum);
 					}
+					if (queueDepth > 0)
+						stats.recordWait(obj, X_LOCK, queueDepth,
+								System.nanoTime() - waitStart);
 					if (!xLockable(lks, txNum))
 						throw new LockAbortException();
 					lks.xLocker = txNum;
@@ -265,13 +284,22 @@ class LockTable {
 
 				try {
 					long timestamp = System.currentTimeMillis();
+					long waitStart = 0;
+					int queueDepth = 0;
 					while (!sixLockable(lks, txNum) && !waitingTooLong(timestamp)) {
 						avoidDeadlock(lks, txNum, SIX_LOCK);
 						lks.requestSet.add(txNum);
+						if (LockStatistics.ENABLED && queueDepth == 0) {
+							queueDepth = lks.requestSet.size();
+							waitStart = System.nanoTime();
+						}
 
 						anchor.wait(MAX_TIME);
 						lks.requestSet.remove(txNum);
 					}
+					if (queueDepth > 0)
+						stats.recordWait(obj, SIX_LOCK, queueDepth,
+								System.nanoTime() - waitStart);
 					if (!sixLockable(lks, txNum))
 						throw new LockAbortException();
 					lks.sixLocker = txNum;
@@ -304,13 +332,22 @@ class LockTable {
 					return;
 				try {
 					long timestamp = System.currentTimeMillis();
+					long waitStart = 0;
+					int queueDepth = 0;
 					while (!isLockable(lks, txNum) && !waitingTooLong(timestamp)) {
 						avoidDeadlock(lks, txNum, IS_LOCK);
 						lks.requestSet.add(txNum);
+						if (LockStatistics.ENABLED && queueDepth == 0) {
+							queueDepth = lks.requestSet.size();
+							waitStart = System.nanoTime();
+						}
 
 						anchor.wait(MAX_TIME);
 						lks.requestSet.remove(txNum);
 					}
+					if (queueDepth > 0)
+						stats.recordWait(obj, IS_LOCK, queueDepth,
+								System.nanoTime() - waitStart);
 					if (!isLockable(lks, txNum))
 						throw new LockAbortException();
 					lks.isLockers.add(txNum);
@@ -345,13 +382,22 @@ class LockTable {
 
 				try {
 					long timestamp = System.currentTimeMillis();
+					long waitStart = 0;
+					int queueDepth = 0;
 					while (!ixLockable(lks, txNum) && !waitingTooLong(timestamp)) {
 						avoidDeadlock(lks, txNum, IX_LOCK);
 						lks.requestSet.add(txNum);
+						if (LockStatistics.ENABLED && queueDepth == 0) {
+							queueDepth = lks.requestSet.size();
+							waitStart = System.nanoTime();
+						}
 
 						anchor.wait(MAX_TIME);
 						lks.requestSet.remove(txNum);
 					}
+					if (queueDepth > 0)
+						stats.recordWait(obj, IX_LOCK, queueDepth,
+								System.nanoTime() - waitStart);
 					if (!ixLockable(lks, txNum))
 						throw new LockAbortException();
 					lks.ixLockers.add(txNum);
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.TransactionLifecycleListener;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * Keeps the before-images of the record slots modified by transactions that
+ * are uncommitted or recently committed, so that a read-only transaction can
+ * read a consistent snapshot without taking any record lock.
+ * <p>
+ * Before a transaction modifies a slot for the first time, the image of the
+ * slot is pushed onto the version chain of that slot. A committing
+ * transaction gets a commit timestamp before it releases its locks, and a
+ * snapshot is taken at the latest commit timestamp. A snapshot reader walks
+ * a chain from the newest version and takes the before-image of each writer
+ * that is not committed in its snapshot. The versions of aborted writers are
+ * skipped, since their modifications have been undone when they are marked.
+ * Versions that no snapshot can see any more are pruned by a background
+ * task.
+ * <p>
+ * Index entries are not versioned. A snapshot reader that looks up an index
+ * may find the entries inserted after its snapshot, and miss the ones deleted
+ * after its snapshot, so a read-only stored procedure that reads through an
+ * index books its locks instead of reading a snapshot.
+ */
+public class VersionStore implements TransactionLifecycleListener {
+	private static Logger logger = Logger.getLogger(VersionStore.class
+			.getName());
+
+	/**
+	 * Whether record modifications are versioned so that read-only stored
+	 * procedures can read snapshots instead of booking locks.
+	 */
+	public static final boolean ENABLE_SNAPSHOT_READ;
+
+	/**
+	 * The period, in milliseconds, of pruning the versions that are no
+	 * longer visible to any snapshot.
+	 */
+	public static final long GC_PERIOD;
+
+	static {
+		ENABLE_SNAPSHOT_READ = CoreProperties.getLoader().getPropertyAsBoolean(
+				VersionStore.class.getName() + ".ENABLE_SNAPSHOT_READ", false);
+		GC_PERIOD = CoreProperties.getLoader().getPropertyAsLong(
+				VersionStore.class.getName() + ".GC_PERIOD", 1000);
+	}
+
+	private static class StoreHolder {
+		private static final VersionStore INSTANCE = new VersionStore();
+	}
+
+	/**
+	 * Returns the version store shared by all transactions. The garbage
+	 * collector of versions is started on the first call.
+	 *
+	 * @return the version store
+	 */
+	public static VersionStore getStore() {
+		return StoreHolder.INSTANCE;
+	}
+
+	private static final long UNCOMMITTED = Long.MAX_VALUE, ABORTED = -1;
+
+	private static class Writer {
+		long txNum;
+		volatile long commitTs = UNCOMMITTED;
+
+		Writer(long txNum) {
+			this.txNum = txNum;
+		}
+	}
+
+	/**
+	 * The image of a slot before a writer modified it. The image maps the
+	 * offsets within the slot to the values.
+	 */
+	private static class Version {
+		Writer writer;
+		Map<Integer, Constant> image;
+		volatile Version next;
+
+		Version(Writer writer, Map<Integer, Constant> image) {
+			this.writer = writer;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * The versions of a slot from the newest to the oldest. Readers traverse
+	 * a chain without synchronization, while modifications to a chain are
+	 * synchronized on it.
+	 */
+	private static class VersionChain {
+		volatile Version head;
+		boolean isRemoved;
+	}
+
+	/**
+	 * A consistent snapshot of the committed records, which must be ended by
+	 * {@link VersionStore#endSnapshot(Snapshot)}.
+	 */
+	public static class Snapshot {
+		private long ts;
+		private LogSeqNum commitLsn;
+
+		private Snapshot(long ts, LogSeqNum commitLsn) {
+			this.ts = ts;
+			this.commitLsn = commitLsn;
+		}
+
+		/**
+		 * Returns the value at the specified offset of a slot as of this
+		 * snapshot.
+		 *
+		 * @param rid
+		 *            the id of the slot
+		 * @param offset
+		 *            the offset within the slot
+		 * @param current
+		 *            the latest value at that offset, which must be read
+		 *            before calling this method
+		 * @return the value in this snapshot
+		 */
+		public Constant read(RecordId rid, int offset, Constant current) {
+			VersionChain chain = getStore().versions.get(rid);
+			if (chain == null)
+				return current;
+
+			Constant val = current;
+			for (Version v = chain.head; v != null; v = v.next) {
+				long commitTs = v.writer.commitTs;
+				if (commitTs == ABORTED)
+					continue;
+				if (commitTs <= ts)
+					break;
+				Constant before = v.image.get(offset);
+				if (before != null)
+					val = before;
+			}
+			return val;
+		}
+
+		/**
+		 * Returns the LSN of the latest commit record in this snapshot which
+		 * may not be flushed yet.
+		 *
+		 * @return the LSN of the commit record, or null if all commits in
+		 *         this snapshot are durable
+		 */
+		public LogSeqNum getCommitLsn() {
+			return commitLsn;
+		}
+	}
+
+	private class VersionCollector extends Task {
+		@Override
+		public void run() {
+			Thread.currentThread().setName("Version-Collector");
+			while (true) {
+				try {
+					Thread.sleep(GC_PERIOD);
+				} catch (InterruptedException e) {
+					if (logger.isLoggable(Level.SEVERE))
+						logger.severe("the version collector is interrupted");
+					return;
+				}
+				collect();
+			}
+		}
+	}
+
+	private ConcurrentHashMap<RecordId, VersionChain> versions = new ConcurrentHashMap<RecordId, VersionChain>();
+	private Map<Long, Writer> writers = new ConcurrentHashMap<Long, Writer>();
+
+	// Guarded by this
+	private long clock;
+	private LogSeqNum lastCommitLsn;
+	private TreeMap<Long, Integer> activeSnapshots = new TreeMap<Long, Integer>();
+
+	// The latest horizon found by the collector
+	private volatile long lastHorizon;
+
+	private VersionStore() {
+		VanillaDb.taskMgr().runTask(new VersionCollector());
+	}
+
+	/**
+	 * Begins a snapshot of the transactions committed so far.
+	 *
+	 * @return the snapshot
+	 */
+	public synchronized Snapshot beginSnapshot() {
+		Integer count = activeSnapshots.get(clock);
+		activeSnapshots.put(clock, count == null ? 1 : count + 1);
+		return new Snapshot(clock, lastCommitLsn);
+	}
+
+	/**
+	 * Ends the specified snapshot so that the versions it may see can be
+	 * pruned.
+	 *
+	 * @param snapshot
+	 *            the snapshot to be ended
+	 */
+	public synchronized void endSnapshot(Snapshot snapshot) {
+		int count = activeSnapshots.get(snapshot.ts);
+		if (count == 1)
+			activeSnapshots.remove(snapshot.ts);
+		else
+			activeSnapshots.put(snapshot.ts, count - 1);
+	}
+
+	/**
+	 * Returns whether the specified transaction has saved the before-image of
+	 * the slot. The caller must hold the exclusive access to the slot.
+	 *
+	 * @param txNum
+	 *            the number of the writing transaction
+	 * @param rid
+	 *            the id of the slot
+	 * @return true if the before-image is saved
+	 */
+	public boolean hasVersion(long txNum, RecordId rid) {
+		VersionChain chain = versions.get(rid);
+		if (chain == null)
+			return false;
+		Version head = chain.head;
+		return head != null && head.writer.txNum == txNum;
+	}
+
+	/**
+	 * Saves the image of a slot before the specified transaction modifies it.
+	 * This must be called before the slot is modified.
+	 *
+	 * @param txNum
+	 *            the number of the writing transaction
+	 * @param rid
+	 *            the id of the slot
+	 * @param image
+	 *            the values in the slot indexed by their offsets within the
+	 *            slot
+	 */
+	public void addVersion(long txNum, RecordId rid, Map<Integer, Constant> image) {
+		Writer writer = writers.get(txNum);
+		if (writer == null) {
+			writer = new Writer(txNum);
+			writers.put(txNum, writer);
+		}
+		Version version = new Version(writer, image);
+
+		while (true) {
+			VersionChain chain = versions.get(rid);
+			if (chain == null) {
+				chain = new VersionChain();
+				VersionChain existing = versions.putIfAbsent(rid, chain);
+				if (existing != null)
+					chain = existing;
+			}
+			synchronized (chain) {
+				// The collector has just dropped the chain
+				if (chain.isRemoved)
+					continue;
+				prune(chain, lastHorizon);
+				version.next = chain.head;
+				chain.head = version;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void onTxCommit(Transaction tx) {
+		Writer writer = writers.remove(tx.getTransactionNumber());
+		if (writer == null)
+			return;
+
+		LogSeqNum commitLsn = tx.recoveryMgr().getUnflushedCommitLsn();
+		synchronized (this) {
+			writer.commitTs = ++clock;
+			if (commitLsn != null
+					&& (lastCommitLsn == null || commitLsn.compareTo(lastCommitLsn) > 0))
+				lastCommitLsn = commitLsn;
+		}
+	}
+
+	@Override
+	public void onTxRollback(Transaction tx) {
+		// The modifications have been undone by the recovery manager
+		Writer writer = writers.remove(tx.getTransactionNumber());
+		if (writer != null)
+			writer.commitTs = ABORTED;
+	}
+
+	@Override
+	public void onTxEndStatement(Transaction tx) {
+		// do nothing
+	}
+
+	/**
+	 * Returns the number of slots which have versions.
+	 *
+	 * @return the number of versioned slots
+	 */
+	public int numOfVersionedSlots() {
+		return versions.size();
+	}
+
+	private synchronized long horizon() {
+		return activeSnapshots.isEmpty() ? clock : activeSnapshots.firstKey();
+	}
+
+	private void collect() {
+		long horizon = horizon();
+		lastHorizon = horizon;
+		for (Map.Entry<RecordId, VersionChain> entry : versions.entrySet()) {
+			VersionChain chain = entry.getValue();
+			synchronized (chain) {
+				prune(chain, horizon);
+				if (chain.head == null) {
+					chain.isRemoved = true;
+					versions.remove(entry.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unlinks the versions that no snapshot can see. Every snapshot is taken
+	 * at or after the horizon, so it stops at the first version committed
+	 * before the horizon and never needs that version or the older ones.
+	 */
+	private static void prune(VersionChain chain, long horizon) {
+		Version prev = null;
+		for (Version v = chain.head; v != null; v = v.next) {
+			long commitTs = v.writer.commitTs;
+			if (commitTs == ABORTED || commitTs <= horizon) {
+				if (prev == null)
+					chain.head = commitTs == ABORTED ? v.next : null;
+				else
+					prev.next = commitTs == ABORTED ? v.next : null;
+				if (commitTs != ABORTED)
+					return;
+			} else
+				prev = v;
+		}
+	}
+}
@@ -1,42 +1,104 @@
 package org.vanilladb.core.storage.tx.concurrency.conservative;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
+import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.PrimaryKey;
 import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.record.RecordId;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.concurrency.ConcurrencyMgr;
+import org.vanilladb.core.storage.tx.concurrency.VersionStore;
 import org.vanilladb.core.storage.tx.concurrency.conservative.ConservativeLockTable.LockType;
+import org.vanilladb.core.util.CoreProperties;
 
 public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
-	protected static ConservativeLockTable lockTbl = new ConservativeLockTable();
+	/**
+	 * Whether stored procedures release their locks once their commit records
+	 * are appended, instead of after the records are flushed. A transaction
+	 * that reads such pre-committed data does not finish its commit until
+	 * the commit records it depends on are durable.
+	 */
+	public static final boolean EARLY_LOCK_RELEASE;
+	
+	/**
+	 * Whether the conservative locks are booked in multiple granularities.
+	 * If so, booking a key also books an intention lock on its table, and a
+	 * procedure can book whole tables. A table accessed without booking is
+	 * locked with an intention lock when its file is accessed.
+	 */
+	public static final boolean MULTI_GRANULARITY_LOCKING;
+	
+	/**
+	 * The number of keys of a table above which a transaction books the
+	 * whole table instead of the keys. It only takes effect with
+	 * {@link #MULTI_GRANULARITY_LOCKING}, and 0 disables the escalation.
+	 */
+	public static final int ESCALATION_THRESHOLD;
+	
+	static {
+		EARLY_LOCK_RELEASE = CoreProperties.getLoader().getPropertyAsBoolean(
+				ConservativeConcurrencyMgr.class.getName() + ".EARLY_LOCK_RELEASE", false);
+		MULTI_GRANULARITY_LOCKING = CoreProperties.getLoader().getPropertyAsBoolean(
+				ConservativeConcurrencyMgr.class.getName() + ".MULTI_GRANULARITY_LOCKING", false);
+		ESCALATION_THRESHOLD = CoreProperties.getLoader().getPropertyAsInteger(
+				ConservativeConcurrencyMgr.class.getName() + ".ESCALATION_THRESHOLD", 1000);
+	}
 	
-	// For normal operations - using conservative locking 
-	private Set<Object> bookedObjs, readObjs, writeObjs;
+	private static final String TABLE_FILE_SUFFIX = ".tbl", TEMP_FILE_PREFIX = "_temp";
+	
+	protected static ConservativeLockTable lockTbl = new ConservativeLockTable(
+			"ConservativeLockTable");
+	
+	/*
+	 * The latches on index blocks and record file headers. They are never
+	 * booked, so they are kept apart from the booked locks, and index
+	 * traversals do not scan the queues of the booked objects or contend on
+	 * their stripes. The order of latching does not affect the result of a
+	 * transaction.
+	 * 
+	 * The index entries are only protected by the booked keys. There are no
+	 * key-range locks, so a range search on an index may see the keys that
+	 * other transactions insert or delete (phantoms), unless the procedure
+	 * books the whole table, which requires MULTI_GRANULARITY_LOCKING.
+	 */
+	private static ConservativeLockTable latchTbl = new ConservativeLockTable(
+			"ConservativeLatchTable");
+	
+	// For normal operations - using conservative locking. The objects are
+	// the keys and, in multi-granularity mode, the names of their tables.
+	private Map<Object, LockType> lockModes;
+	
+	// The record files whose tables this transaction has intention locks on
+	private Map<String, LockType> lockedFiles = new HashMap<String, LockType>();
+	
+	// The largest commit LSN of the pre-committed transactions whose data
+	// this transaction may have read
+	private LogSeqNum dependencyLsn;
+	
+	// The snapshot which a read-only transaction reads instead of booking
+	// any lock
+	private VersionStore.Snapshot snapshot;
 
-	// For Indexes - using crabbing locking
+	// For Indexes - using crabbing latches
 	private Set<BlockId> readIndexBlks = new HashSet<BlockId>();
 	private Set<BlockId> writtenIndexBlks = new HashSet<BlockId>();
 
 	public ConservativeConcurrencyMgr(long txNumber) {
 		txNum = txNumber;
-		bookedObjs = new HashSet<Object>();
-		readObjs = new HashSet<Object>();
-		writeObjs = new HashSet<Object>();
+		lockModes = new HashMap<Object, LockType>();
 	}
 	
 	public void bookReadKey(PrimaryKey key) {
-		if (key != null) {
-			// The key needs to be booked only once. 
-			if (!bookedObjs.contains(key))
-				lockTbl.requestLock(key, txNum);
-			
-			bookedObjs.add(key);
-			readObjs.add(key);
-		}
+		if (key != null)
+			bookReadKeys(Collections.singleton(key));
 	}
 
 	/**
@@ -46,27 +108,12 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the objects which the transaction intends to read
 	 */
 	public void bookReadKeys(Collection<PrimaryKey> keys) {
-		if (keys != null) {
-			for (PrimaryKey key : keys) {
-				// The key needs to be booked only once. 
-				if (!bookedObjs.contains(key))
-					lockTbl.requestLock(key, txNum);
-			}
-			
-			bookedObjs.addAll(keys);
-			readObjs.addAll(keys);
-		}
+		bookKeys(keys, null, null, null);
 	}
 	
 	public void bookWriteKey(PrimaryKey key) {
-		if (key != null) {
-			// The key needs to be booked only once. 
-			if (!bookedObjs.contains(key))
-				lockTbl.requestLock(key, txNum);
-			
-			bookedObjs.add(key);
-			writeObjs.add(key);
-		}
+		if (key != null)
+			bookWriteKeys(Collections.singleton(key));
 	}
 	
 	/**
@@ -76,16 +123,90 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *             the objects which the transaction intends to write
 	 */
 	public void bookWriteKeys(Collection<PrimaryKey> keys) {
-		if (keys != null) {
-			for (PrimaryKey key : keys) {
-				// The key needs to be booked only once. 
-				if (!bookedObjs.contains(key))
-					lockTbl.requestLock(key, txNum);
-			}
-			
-			bookedObjs.addAll(keys);
-			writeObjs.addAll(keys);
-		}
+		bookKeys(null, keys, null, null);
+	}
+	
+	/**
+	 * Books the locks of the specified keys and tables. The keys of a table
+	 * are covered by a lock on the whole table, if the table is booked here
+	 * or the keys are escalated to the table.
+	 * 
+	 * @param readKeys
+	 *            the keys which the transaction intends to read
+	 * @param writeKeys
+	 *            the keys which the transaction intends to write
+	 * @param readTables
+	 *            the tables which the transaction intends to read entirely
+	 * @param writeTables
+	 *            the tables which the transaction intends to write entirely
+	 */
+	public void bookKeys(Collection<PrimaryKey> readKeys,
+			Collection<PrimaryKey> writeKeys, Collection<String> readTables,
+			Collection<String> writeTables) {
+		Map<Object, LockType> bookings = registerKeys(readKeys, writeKeys,
+				readTables, writeTables);
+		for (Map.Entry<Object, LockType> booking : bookings.entrySet())
+			lockTbl.requestLock(booking.getKey(), txNum, booking.getValue());
+	}
+	
+	/**
+	 * Records the read/write sets of the transaction without booking them in
+	 * the lock table. This is used by {@link ConservativeScheduler}, which
+	 * books the returned objects itself in the order of transaction numbers.
+	 * 
+	 * @param readKeys
+	 *            the keys which the transaction intends to read
+	 * @param writeKeys
+	 *            the keys which the transaction intends to write
+	 * @param readTables
+	 *            the tables which the transaction intends to read entirely
+	 * @param writeTables
+	 *            the tables which the transaction intends to write entirely
+	 * @return the objects whose locks are new or stronger than booked, and
+	 *         the modes in which they should be booked
+	 */
+	Map<Object, LockType> registerKeys(Collection<PrimaryKey> readKeys,
+			Collection<PrimaryKey> writeKeys, Collection<String> readTables,
+			Collection<String> writeTables) {
+		Map<Object, LockType> bookings = new LinkedHashMap<Object, LockType>();
+		boolean hasTables = (readTables != null && !readTables.isEmpty())
+				|| (writeTables != null && !writeTables.isEmpty());
+		if (hasTables && !MULTI_GRANULARITY_LOCKING)
+			throw new IllegalStateException(
+					"booking tables requires multi-granularity locking");
+		
+		if (readTables != null)
+			for (String tblName : readTables)
+				register(tblName, LockType.S_LOCK, bookings);
+		if (writeTables != null)
+			for (String tblName : writeTables)
+				register(tblName, LockType.X_LOCK, bookings);
+		if (MULTI_GRANULARITY_LOCKING && ESCALATION_THRESHOLD > 0)
+			escalate(readKeys, writeKeys, bookings);
+		
+		if (readKeys != null)
+			for (PrimaryKey key : readKeys)
+				registerKey(key, false, bookings);
+		if (writeKeys != null)
+			for (PrimaryKey key : writeKeys)
+				registerKey(key, true, bookings);
+		return bookings;
+	}
+	
+	/**
+	 * Makes this read-only transaction read the records from a snapshot of
+	 * the committed transactions, so that it neither books nor acquires any
+	 * record lock. The transaction still latches index blocks when crabbing.
+	 */
+	public void beginSnapshot() {
+		snapshot = VersionStore.getStore().beginSnapshot();
+		dependencyLsn = ConservativeLockTable.max(dependencyLsn,
+				snapshot.getCommitLsn());
+	}
+	
+	@Override
+	public VersionStore.Snapshot getSnapshot() {
+		return snapshot;
 	}
 	
 	/**
@@ -94,56 +215,61 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 * make the thread wait until it can obtain all locks it requests.
 	 */
 	public void acquireBookedLocks() {
-		bookedObjs.clear();
-		
-		for (Object obj : writeObjs)
-			lockTbl.xLock(obj, txNum);
-		
-		for (Object obj : readObjs)
-			if (!writeObjs.contains(obj))
-				lockTbl.sLock(obj, txNum);
+		for (Map.Entry<Object, LockType> entry : lockModes.entrySet())
+			dependencyLsn = ConservativeLockTable.max(dependencyLsn,
+					lockTbl.lock(entry.getKey(), txNum, entry.getValue()));
 	}
 	
 	@Override
 	public void onTxCommit(Transaction tx) {
 		releaseIndexLocks();
-		releaseLocks();
+		
+		// The commit record is not flushed yet if the recovery manager
+		// defers it for early lock release
+		LogSeqNum commitLsn = tx.recoveryMgr().getUnflushedCommitLsn();
+		releaseLocks(commitLsn);
+		endSnapshot();
+		
+		// The transaction cannot finish until its own commit and the
+		// commits it depends on are durable
+		LogSeqNum durableLsn = ConservativeLockTable.max(commitLsn, dependencyLsn);
+		if (durableLsn != null)
+			VanillaDb.logMgr().flush(durableLsn);
 	}
 	
 	@Override
 	public void onTxRollback(Transaction tx) {
 		releaseIndexLocks();
-		releaseLocks();
+		releaseLocks(null);
+		endSnapshot();
 	}
 
 	@Override
 	public void onTxEndStatement(Transaction tx) {
-		// Next-key lock algorithm is non-deterministic. It may
-		// cause deadlocks during the execution. Therefore,
-		// we release the locks earlier to prevent deadlocks.
-		// However, phantoms due to update may happen.
-		// TODO: We need a deterministic algorithm to handle this.
+		// Index latches only protect the structure of indexes during a
+		// statement. The entries are protected by the booked keys and
+		// tables, and a range is not protected unless its table is booked.
 		releaseIndexLocks();
 	}
 
 	@Override
 	public void modifyFile(String fileName) {
-		// do nothing
+		lockTableOfFile(fileName, LockType.IX_LOCK);
 	}
 
 	@Override
 	public void readFile(String fileName) {
-		// do nothing
+		lockTableOfFile(fileName, LockType.IS_LOCK);
 	}
 
 	@Override
 	public void modifyBlock(BlockId blk) {
-		// do nothing
+		lockTableOfFile(blk.fileName(), LockType.IX_LOCK);
 	}
 
 	@Override
 	public void readBlock(BlockId blk) {
-		// do nothing
+		lockTableOfFile(blk.fileName(), LockType.IS_LOCK);
 	}
 
 	@Override
@@ -153,12 +279,12 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 
 	@Override
 	public void modifyIndex(String dataFileName) {
-		// lockTbl.ixLock(dataFileName, txNum);
+		lockTableOfFile(dataFileName, LockType.IX_LOCK);
 	}
 
 	@Override
 	public void readIndex(String dataFileName) {
-		// lockTbl.isLock(dataFileName, txNum);
+		lockTableOfFile(dataFileName, LockType.IS_LOCK);
 	}
 
 	/*
@@ -172,7 +298,7 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void modifyLeafBlock(BlockId blk) {
-		lockTbl.xLock(blk, txNum);
+		latchTbl.xLock(blk, txNum);
 		writtenIndexBlks.add(blk);
 	}
 
@@ -183,7 +309,7 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void readLeafBlock(BlockId blk) {
-		lockTbl.sLock(blk, txNum);
+		latchTbl.sLock(blk, txNum);
 		readIndexBlks.add(blk);
 	}
 
@@ -195,7 +321,7 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabDownDirBlockForModification(BlockId blk) {
-		lockTbl.xLock(blk, txNum);
+		latchTbl.xLock(blk, txNum);
 		writtenIndexBlks.add(blk);
 	}
 
@@ -206,7 +332,7 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabDownDirBlockForRead(BlockId blk) {
-		lockTbl.sLock(blk, txNum);
+		latchTbl.sLock(blk, txNum);
 		readIndexBlks.add(blk);
 	}
 
@@ -217,7 +343,7 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabBackDirBlockForModification(BlockId blk) {
-		lockTbl.release(blk, txNum, LockType.X_LOCK);
+		latchTbl.release(blk, txNum, LockType.X_LOCK);
 		writtenIndexBlks.remove(blk);
 	}
 
@@ -228,25 +354,25 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabBackDirBlockForRead(BlockId blk) {
-		lockTbl.release(blk, txNum, LockType.S_LOCK);
+		latchTbl.release(blk, txNum, LockType.S_LOCK);
 		readIndexBlks.remove(blk);
 	}
 
 	public void releaseIndexLocks() {
 		for (BlockId blk : readIndexBlks)
-			lockTbl.release(blk, txNum, LockType.S_LOCK);
+			latchTbl.release(blk, txNum, LockType.S_LOCK);
 		for (BlockId blk : writtenIndexBlks)
-			lockTbl.release(blk, txNum, LockType.X_LOCK);
+			latchTbl.release(blk, txNum, LockType.X_LOCK);
 		readIndexBlks.clear();
 		writtenIndexBlks.clear();
 	}
 
 	public void lockRecordFileHeader(BlockId blk) {
-		lockTbl.xLock(blk, txNum);
+		latchTbl.xLock(blk, txNum);
 	}
 
 	public void releaseRecordFileHeader(BlockId blk) {
-		lockTbl.release(blk, txNum, LockType.X_LOCK);
+		latchTbl.release(blk, txNum, LockType.X_LOCK);
 	}
 
 	@Override
@@ -259,15 +385,115 @@ public class ConservativeConcurrencyMgr extends ConcurrencyMgr {
 		// do nothing
 	}
 	
-	private void releaseLocks() {
-		for (Object obj : writeObjs)
-			lockTbl.release(obj, txNum, LockType.X_LOCK);
+	private void releaseLocks(LogSeqNum commitLsn) {
+		for (Map.Entry<Object, LockType> entry : lockModes.entrySet())
+			lockTbl.release(entry.getKey(), txNum, entry.getValue(), commitLsn);
+		
+		lockModes.clear();
+		lockedFiles.clear();
+	}
+	
+	/**
+	 * Books the keys of the tables, on which the transaction books more than
+	 * {@link #ESCALATION_THRESHOLD} keys, by locking the whole tables.
+	 */
+	private void escalate(Collection<PrimaryKey> readKeys,
+			Collection<PrimaryKey> writeKeys, Map<Object, LockType> bookings) {
+		Map<String, Set<PrimaryKey>> keysOfTables = new HashMap<String, Set<PrimaryKey>>();
+		Set<String> writtenTables = new HashSet<String>();
+		if (readKeys != null)
+			for (PrimaryKey key : readKeys)
+				groupByTable(key, keysOfTables);
+		if (writeKeys != null) {
+			for (PrimaryKey key : writeKeys) {
+				groupByTable(key, keysOfTables);
+				writtenTables.add(key.getTableName());
+			}
+		}
+		
+		for (Map.Entry<String, Set<PrimaryKey>> entry : keysOfTables.entrySet()) {
+			String tblName = entry.getKey();
+			if (entry.getValue().size() > ESCALATION_THRESHOLD)
+				register(tblName, writtenTables.contains(tblName)
+						? LockType.X_LOCK : LockType.S_LOCK, bookings);
+		}
+	}
+	
+	private static void groupByTable(PrimaryKey key,
+			Map<String, Set<PrimaryKey>> keysOfTables) {
+		Set<PrimaryKey> keys = keysOfTables.get(key.getTableName());
+		if (keys == null) {
+			keys = new HashSet<PrimaryKey>();
+			keysOfTables.put(key.getTableName(), keys);
+		}
+		keys.add(key);
+	}
+	
+	private void registerKey(PrimaryKey key, boolean isWrite,
+			Map<Object, LockType> bookings) {
+		if (MULTI_GRANULARITY_LOCKING) {
+			// The key is already covered by the lock on its table
+			LockType tableMode = lockModes.get(key.getTableName());
+			if (tableMode == LockType.X_LOCK || (!isWrite
+					&& (tableMode == LockType.S_LOCK || tableMode == LockType.SIX_LOCK)))
+				return;
+			register(key.getTableName(), isWrite ? LockType.IX_LOCK
+					: LockType.IS_LOCK, bookings);
+		}
+		register(key, isWrite ? LockType.X_LOCK : LockType.S_LOCK, bookings);
+	}
+	
+	/**
+	 * Adds the object to the bookings if the transaction has not booked it in
+	 * a mode covering the given one.
+	 */
+	private void register(Object obj, LockType mode,
+			Map<Object, LockType> bookings) {
+		LockType booked = lockModes.get(obj);
+		LockType combined = booked == null ? mode
+				: ConservativeLockTable.combine(booked, mode);
+		if (combined != booked) {
+			lockModes.put(obj, combined);
+			bookings.put(obj, combined);
+		}
+	}
+	
+	/**
+	 * Holds an intention lock on the table of the specified record file in
+	 * multi-granularity mode, so that no one reads or writes the table while
+	 * another transaction locks it entirely. The lock is usually covered by
+	 * the one booked along with the keys of the table. Otherwise, e.g. for a
+	 * catalog table, it is acquired on the spot, which only waits for the
+	 * transactions booking the whole table.
+	 */
+	private void lockTableOfFile(String fileName, LockType mode) {
+		if (!MULTI_GRANULARITY_LOCKING || snapshot != null
+				|| !fileName.endsWith(TABLE_FILE_SUFFIX)
+				|| fileName.startsWith(TEMP_FILE_PREFIX))
+			return;
 		
-		for (Object obj : readObjs)
-			if (!writeObjs.contains(obj))
-				lockTbl.release(obj, txNum, LockType.S_LOCK);
+		// Skip the lookup of the table name if the file is locked already
+		LockType locked = lockedFiles.get(fileName);
+		if (locked != null && ConservativeLockTable.combine(locked, mode) == locked)
+			return;
+		lockedFiles.put(fileName, locked == null ? mode
+				: ConservativeLockTable.combine(locked, mode));
 		
-		readObjs.clear();
-		writeObjs.clear();
+		String tblName = fileName.substring(0,
+				fileName.length() - TABLE_FILE_SUFFIX.length());
+		Map<Object, LockType> bookings = new LinkedHashMap<Object, LockType>();
+		register(tblName, mode, bookings);
+		for (Map.Entry<Object, LockType> booking : bookings.entrySet()) {
+			lockTbl.requestLock(booking.getKey(), txNum, booking.getValue());
+			dependencyLsn = ConservativeLockTable.max(dependencyLsn,
+					lockTbl.lock(booking.getKey(), txNum, booking.getValue()));
+		}
+	}
+	
+	private void endSnapshot() {
+		if (snapshot != null) {
+			VersionStore.getStore().endSnapshot(snapshot);
+			snapshot = null;
+		}
 	}
 }
@@ -1,77 +1,238 @@
 package org.vanilladb.core.storage.tx.concurrency.conservative;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
+import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.concurrency.LockAbortException;
+import org.vanilladb.core.storage.tx.concurrency.LockStatistics;
 
 public class ConservativeLockTable {
 	private static final int NUM_ANCHOR = 1009;
+	// The maximum number of idle lockers kept by a stripe for reuse
+	private static final int MAX_FREE_LOCKERS = 16;
 	
 	enum LockType {
 		IS_LOCK, IX_LOCK, S_LOCK, SIX_LOCK, X_LOCK
 	}
+	
+	private static final LockType[] LOCK_TYPES = LockType.values();
+
+	/**
+	 * A request in the queue of an object. A request is either booked ahead of
+	 * execution, in which case it keeps its position in the txNum order, or
+	 * made directly during execution (e.g., for index crabbing).
+	 */
+	private static class Request {
+		final long txNum;
+		final boolean booked;
+		// the mode used for ordering against the other requests
+		LockType mode;
+		// the mode being acquired by the parked thread, if any
+		LockType acquiring;
+		Thread waiter;
+		boolean granted;
+		// links of the request queue
+		Request prev, next;
+
+		Request(long txNum, LockType mode, boolean booked) {
+			this.txNum = txNum;
+			this.mode = mode;
+			this.booked = booked;
+		}
+
+		@Override
+		public String toString() {
+			return txNum + (booked ? "" : "*") + ":" + mode;
+		}
+	}
+
+	/**
+	 * A set of transaction numbers backed by a primitive array, so that
+	 * adding a holder neither boxes a {@code Long} nor allocates a list node.
+	 * A lock rarely has more than a few holders, so linear scans are cheap.
+	 */
+	private static class TxNumList {
+		private long[] txNums = new long[4];
+		private int size;
+
+		void add(long txNum) {
+			if (size == txNums.length)
+				txNums = Arrays.copyOf(txNums, size * 2);
+			txNums[size++] = txNum;
+		}
+
+		void remove(long txNum) {
+			for (int i = 0; i < size; i++) {
+				if (txNums[i] == txNum) {
+					// the order of holders does not matter
+					txNums[i] = txNums[--size];
+					return;
+				}
+			}
+		}
+
+		boolean contains(long txNum) {
+			for (int i = 0; i < size; i++)
+				if (txNums[i] == txNum)
+					return true;
+			return false;
+		}
+
+		/**
+		 * Returns true if no transaction other than the given one is in the
+		 * list.
+		 */
+		boolean containsOnly(long txNum) {
+			for (int i = 0; i < size; i++)
+				if (txNums[i] != txNum)
+					return false;
+			return true;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(Arrays.copyOf(txNums, size));
+		}
+	}
 
-	private class Lockers {
+	private static class Lockers {
 		static final long NONE = -1; // for sixLocker, xLocker
 		
-		List<Long> sLockers, ixLockers, isLockers;
+		TxNumList sLockers, ixLockers, isLockers;
 		// only one tx can hold xLock(sixLock) on single item
 		long sixLocker, xLocker;
-		Queue<Long> requestQueue;
+		// the request queue, linked through the requests themselves
+		Request head, tail;
+		// the commit LSN of the last writer which released its xlock before
+		// its commit record was flushed
+		LogSeqNum lastCommitLsn;
 
 		Lockers() {
-			sLockers = new LinkedList<Long>();
-			ixLockers = new LinkedList<Long>();
-			isLockers = new LinkedList<Long>();
+			sLockers = new TxNumList();
+			ixLockers = new TxNumList();
+			isLockers = new TxNumList();
 			sixLocker = NONE;
 			xLocker = NONE;
-			requestQueue = new LinkedList<Long>();
+		}
+
+		void reset() {
+			sLockers.clear();
+			ixLockers.clear();
+			isLockers.clear();
+			sixLocker = NONE;
+			xLocker = NONE;
+			head = tail = null;
+			lastCommitLsn = null;
+		}
+
+		void enqueue(Request req) {
+			req.prev = tail;
+			req.next = null;
+			if (tail == null)
+				head = req;
+			else
+				tail.next = req;
+			tail = req;
+		}
+
+		void dequeue(Request req) {
+			if (req.prev == null)
+				head = req.next;
+			else
+				req.prev.next = req.next;
+			if (req.next == null)
+				tail = req.prev;
+			else
+				req.next.prev = req.prev;
+			req.prev = req.next = null;
+		}
+
+		boolean hasRequests() {
+			return head != null;
 		}
 		
 		@Override
 		public String toString() {
+			StringBuilder requests = new StringBuilder("[");
+			for (Request req = head; req != null; req = req.next)
+				requests.append(req == head ? "" : ", ").append(req);
+			requests.append("]");
 			return "{S: " + sLockers +
 					", IX: " + ixLockers +
 					", IS: " + isLockers +
 					", SIX: " + sixLocker +
 					", X: " + xLocker +
-					", requests: " + requestQueue +
+					", requests: " + requests +
 					"}";
 		}
 	}
 
+	/**
+	 * The monitor guarding a stripe of objects. It also keeps the idle
+	 * lockers of the stripe, so that they can be reused without allocation.
+	 */
+	private static class Stripe {
+		final Lockers[] freeLockers = new Lockers[MAX_FREE_LOCKERS];
+		int numOfFree;
+		// the largest commit LSN stamped on the removed lockers
+		LogSeqNum evictedCommitLsn;
+	}
+
 	private Map<Object, Lockers> lockerMap = new ConcurrentHashMap<Object, Lockers>();
 
 	// Lock-stripping
-	private final Object anchors[] = new Object[NUM_ANCHOR];
+	private final Stripe anchors[] = new Stripe[NUM_ANCHOR];
+
+	private LockStatistics stats;
 
 	/**
 	 * Create and initialize a conservative ordered lock table.
+	 * 
+	 * @param name
+	 *            the name under which the contention statistics of the table
+	 *            are reported
 	 */
-	public ConservativeLockTable() {
+	public ConservativeLockTable(String name) {
 		// Initialize anchors
 		for (int i = 0; i < anchors.length; ++i) {
-			anchors[i] = new Object();
+			anchors[i] = new Stripe();
 		}
+		stats = new LockStatistics(name);
 	}
 
 	/**
 	 * Request lock for an object. This method will put the requested
-	 * transaction into a waiting queue of requested object.
+	 * transaction into a waiting queue of requested object. If the
+	 * transaction has requested the object before, the mode of its request is
+	 * strengthened instead.
 	 * 
 	 * @param obj
 	 *            the object which transaction request lock for
 	 * @param txNum
 	 *            the transaction that requests the lock
+	 * @param mode
+	 *            the type of lock that the transaction will acquire
 	 */
-	void requestLock(Object obj, long txNum) {
-		synchronized (getAnchor(obj)) {
-			Lockers lockers = prepareLockers(obj);
-			lockers.requestQueue.add(txNum);
+	void requestLock(Object obj, long txNum, LockType mode) {
+		Stripe anchor = getAnchor(obj);
+		synchronized (anchor) {
+			Lockers lockers = prepareLockers(obj, anchor);
+			Request req = findRequest(lockers, txNum);
+			if (req == null)
+				lockers.enqueue(new Request(txNum, mode, true));
+			else
+				req.mode = combine(req.mode, mode);
 		}
 	}
 
@@ -85,51 +246,11 @@ public class ConservativeLockTable {
 	 *            an object to be locked
 	 * @param txNum
 	 *            a transaction number
-	 * 
+	 * @return the commit LSN of the last writer that released the lock
+	 *         early, or null if there is none
 	 */
-	void sLock(Object obj, long txNum) {
-		Object anchor = getAnchor(obj);
-
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
-
-			// check if it have already held the lock
-			if (hasSLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {				
-				/*
-				 * If this transaction is not the first one requesting this
-				 * object or it cannot get lock on this object, it must wait.
-				 */
-				Long head = lockers.requestQueue.peek();
-				while (!sLockable(lockers, txNum) || (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					// Since a transaction may delete the lockers of an object
-					// after releasing them, it should call prepareLockers()
-					// here, instead of using lockers it obtains earlier.
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
-				
-				if (!sLockable(lockers, txNum))
-					throw new LockAbortException();
-
-				// get the s lock
-				lockers.requestQueue.poll();
-				lockers.sLockers.add(txNum);
-
-				// Wake up other waiting transactions (on this object) to let
-				// them
-				// fight for the lockers on this object.
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				throw new LockAbortException("Interrupted when waitting for lock");
-			}
-		}
+	LogSeqNum sLock(Object obj, long txNum) {
+		return lock(obj, txNum, LockType.S_LOCK);
 	}
 
 	/**
@@ -142,38 +263,11 @@ public class ConservativeLockTable {
 	 *            an object to be locked
 	 * @param txNum
 	 *            a transaction number
-	 * 
+	 * @return the commit LSN of the last writer that released the lock
+	 *         early, or null if there is none
 	 */
-	void xLock(Object obj, long txNum) {
-		// See the comments in sLock(..) for the explanation of the algorithm
-		Object anchor = getAnchor(obj);
-
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
-
-			if (hasXLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!xLockable(lockers, txNum) || (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
-				
-				// get the x lock
-				lockers.requestQueue.poll();
-				lockers.xLocker = txNum;
-
-				// An X lock blocks all other lockers, so it don't need to
-				// wake up anyone.
-			} catch (InterruptedException e) {
-				throw new LockAbortException("Interrupted when waitting for lock");
-			}
-		}
+	LogSeqNum xLock(Object obj, long txNum) {
+		return lock(obj, txNum, LockType.X_LOCK);
 	}
 
 	/**
@@ -186,39 +280,11 @@ public class ConservativeLockTable {
 	 *            an object to be locked
 	 * @param txNum
 	 *            a transaction number
-	 * 
+	 * @return the commit LSN of the last writer that released the lock
+	 *         early, or null if there is none
 	 */
-	void sixLock(Object obj, long txNum) {
-		// See the comments in sLock(..) for the explanation of the algorithm 
-		Object anchor = getAnchor(obj);
-		
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
-
-			if (hasSixLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!sixLockable(lockers, txNum)
-						|| (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
-
-				// get the six lock
-				lockers.requestQueue.poll();
-				lockers.sixLocker = txNum;
-				
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				throw new LockAbortException(
-						"Interrupted when waitting for lock");
-			}
-		}
+	LogSeqNum sixLock(Object obj, long txNum) {
+		return lock(obj, txNum, LockType.SIX_LOCK);
 	}
 
 	/**
@@ -231,38 +297,11 @@ public class ConservativeLockTable {
 	 *            an object to be locked
 	 * @param txNum
 	 *            a transaction number
+	 * @return the commit LSN of the last writer that released the lock
+	 *         early, or null if there is none
 	 */
-	void isLock(Object obj, long txNum) {
-		// See the comments in sLock(..) for the explanation of the algorithm 
-		Object anchor = getAnchor(obj);
-		
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
-
-			if (hasIsLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!isLockable(lockers, txNum)
-						|| (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
-
-				// get the is lock
-				lockers.requestQueue.poll();
-				lockers.isLockers.add(txNum);
-				
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				throw new LockAbortException(
-						"Interrupted when waitting for lock");
-			}
-		}
+	LogSeqNum isLock(Object obj, long txNum) {
+		return lock(obj, txNum, LockType.IS_LOCK);
 	}
 
 	/**
@@ -275,44 +314,18 @@ public class ConservativeLockTable {
 	 *            an object to be locked
 	 * @param txNum
 	 *            a transaction number
+	 * @return the commit LSN of the last writer that released the lock
+	 *         early, or null if there is none
 	 */
-	void ixLock(Object obj, long txNum) {
-		// See the comments in sLock(..) for the explanation of the algorithm 
-		Object anchor = getAnchor(obj);
-		
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
-
-			if (hasIxLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!ixLockable(lockers, txNum)
-						|| (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
-
-				// get the ix lock
-				lockers.requestQueue.poll();
-				lockers.ixLockers.add(txNum);
-				
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				throw new LockAbortException(
-						"Interrupted when waitting for lock");
-			}
-		}
+	LogSeqNum ixLock(Object obj, long txNum) {
+		return lock(obj, txNum, LockType.IX_LOCK);
 	}
 
 	/**
 	 * Releases the specified type of lock on an item holding by a transaction.
 	 * If a lock is the last lock on that block, then the waiting transactions
-	 * are notified.
+	 * are notified. A request which the transaction booked but never
+	 * acquired (e.g., due to an abort) is withdrawn as well.
 	 * 
 	 * @param obj
 	 *            a locked object
@@ -322,93 +335,430 @@ public class ConservativeLockTable {
 	 *            the type of lock
 	 */
 	void release(Object obj, long txNum, LockType lockType) {
-		Object anchor = getAnchor(obj);
+		release(obj, txNum, lockType, null);
+	}
+
+	/**
+	 * Releases the specified type of lock like
+	 * {@link #release(Object, long, LockType)}, but for a transaction whose
+	 * commit record may not be flushed yet. The LSN of the record is stamped
+	 * on the object if a lock for writing (X, SIX or IX) is released, so
+	 * that the transactions acquiring the lock later know what they depend
+	 * on.
+	 * 
+	 * @param obj
+	 *            a locked object
+	 * @param txNum
+	 *            a transaction number
+	 * @param lockType
+	 *            the type of lock
+	 * @param commitLsn
+	 *            the LSN of the commit record of the transaction, or null if
+	 *            it has been flushed
+	 */
+	void release(Object obj, long txNum, LockType lockType,
+			LogSeqNum commitLsn) {
+		Stripe anchor = getAnchor(obj);
 		synchronized (anchor) {
 			Lockers lks = lockerMap.get(obj);
 			
 			if (lks == null)
 				return;
 			
-			releaseLock(lks, txNum, lockType, anchor);
-
-			// Remove the locker, if there is no other transaction
-			// holding it
-			if (!sLocked(lks) && !xLocked(lks) && !sixLocked(lks)
-					&& !isLocked(lks) && !ixLocked(lks)
-					&& lks.requestQueue.isEmpty())
-				lockerMap.remove(obj);
-			
+			if (commitLsn != null && lockType != LockType.S_LOCK
+					&& lockType != LockType.IS_LOCK && hasLock(lks, txNum, lockType))
+				lks.lastCommitLsn = max(lks.lastCommitLsn, commitLsn);
+			releaseLock(lks, txNum, lockType);
+			Request req = findRequest(lks, txNum);
+			if (req != null && req.waiter == null)
+				lks.dequeue(req);
+
 			// There might be someone waiting for the lock
-			anchor.notifyAll();
+			handOff(lks);
+			removeIfUnused(obj, lks, anchor);
 		}
 	}
 
 	/**
-	 * Gets the anchor for the specified object.
+	 * Returns the number of lock stripes (anchors) of this table.
+	 * 
+	 * @return the number of stripes
+	 */
+	int numOfStripes() {
+		return anchors.length;
+	}
+
+	/**
+	 * Returns the number of objects which have lockers, i.e., are locked or
+	 * requested by some transaction. The lockers of the other objects have
+	 * been reclaimed.
+	 * 
+	 * @return the number of objects with lockers
+	 */
+	int numOfLockedObjects() {
+		return lockerMap.size();
+	}
+
+	/**
+	 * Returns the index of the stripe (anchor) which guards the specified
+	 * object. Requests on objects in different stripes never contend on the
+	 * same monitor.
 	 * 
 	 * @param obj
 	 *            the target object
-	 * @return the anchor for obj
+	 * @return the stripe index of obj
 	 */
-	private Object getAnchor(Object obj) {
+	int stripeOf(Object obj) {
 		int code = obj.hashCode();
 		code = Math.abs(code); // avoid negative value
-		return anchors[code % anchors.length];
+		return code % anchors.length;
 	}
 
-	private Lockers prepareLockers(Object obj) {
+	/**
+	 * Gets the anchor for the specified object.
+	 * 
+	 * @param obj
+	 *            the target object
+	 * @return the anchor for obj
+	 */
+	private Stripe getAnchor(Object obj) {
+		return anchors[stripeOf(obj)];
+	}
+
+	private Lockers prepareLockers(Object obj, Stripe anchor) {
 		Lockers lockers = lockerMap.get(obj);
 		if (lockers == null) {
-			lockers = new Lockers();
+			if (anchor.numOfFree > 0) {
+				lockers = anchor.freeLockers[--anchor.numOfFree];
+				anchor.freeLockers[anchor.numOfFree] = null;
+			} else
+				lockers = new Lockers();
+			// The object may have been stamped before its lockers were
+			// removed, so it inherits the stamp of the stripe
+			lockers.lastCommitLsn = anchor.evictedCommitLsn;
 			lockerMap.put(obj, lockers);
 		}
 		return lockers;
 	}
 
-	private void releaseLock(Lockers lks, long txNum, LockType lockType,
-			Object anchor) {
+	private void removeIfUnused(Object obj, Lockers lks, Stripe anchor) {
+		// Remove the locker, if there is no other transaction
+		// holding or requesting it, and keep it for reuse
+		if (!sLocked(lks) && !xLocked(lks) && !sixLocked(lks)
+				&& !isLocked(lks) && !ixLocked(lks)
+				&& !lks.hasRequests()) {
+			lockerMap.remove(obj);
+			anchor.evictedCommitLsn = max(anchor.evictedCommitLsn,
+					lks.lastCommitLsn);
+			if (anchor.numOfFree < MAX_FREE_LOCKERS) {
+				lks.reset();
+				anchor.freeLockers[anchor.numOfFree++] = lks;
+			}
+		}
+	}
+
+	/**
+	 * Acquires the lock of the given type. The caller first enqueues its
+	 * request (unless it has been booked) and, if the request cannot be
+	 * granted right away, parks until a releasing transaction hands the lock
+	 * over to it in {@link #handOff(Lockers)}.
+	 * 
+	 * @param obj
+	 *            an object to be locked
+	 * @param txNum
+	 *            a transaction number
+	 * @param type
+	 *            the type of lock
+	 * @return the commit LSN of the last writer that released the lock
+	 *         early, or null if there is none
+	 */
+	LogSeqNum lock(Object obj, long txNum, LockType type) {
+		Stripe anchor = getAnchor(obj);
+		Request req;
+		int queueDepth = 0;
+		long waitStart = 0;
+
+		synchronized (anchor) {
+			Lockers lockers = prepareLockers(obj, anchor);
+
+			// check if it have already held the lock
+			if (hasLock(lockers, txNum, type)) {
+				req = findRequest(lockers, txNum);
+				if (req != null) {
+					lockers.dequeue(req);
+					handOff(lockers);
+				}
+				return lockers.lastCommitLsn;
+			}
+
+			req = findRequest(lockers, txNum);
+			if (req == null) {
+				// An unbooked request that can be granted right away
+				// does not need to enter the queue
+				if (isLockable(lockers, txNum, type) && !hasBookedRequests(lockers)) {
+					grantLock(lockers, txNum, type);
+					return lockers.lastCommitLsn;
+				}
+				req = new Request(txNum, type, false);
+				lockers.enqueue(req);
+			} else
+				req.mode = combine(req.mode, type);
+
+			if (isLockable(lockers, txNum, type) && isFirstEligible(lockers, req)) {
+				lockers.dequeue(req);
+				grantLock(lockers, txNum, type);
+
+				// Some compatible requests behind might be waiting for
+				// this one to be granted first
+				handOff(lockers);
+				return lockers.lastCommitLsn;
+			}
+
+			req.acquiring = type;
+			req.waiter = Thread.currentThread();
+			if (LockStatistics.ENABLED) {
+				queueDepth = positionOf(lockers, req);
+				waitStart = System.nanoTime();
+			}
+		}
+
+		while (true) {
+			LockSupport.park(this);
+
+			synchronized (anchor) {
+				if (req.granted) {
+					if (LockStatistics.ENABLED)
+						stats.recordWait(obj, type.ordinal(), queueDepth,
+								System.nanoTime() - waitStart);
+					return lockerMap.get(obj).lastCommitLsn;
+				}
+
+				if (Thread.interrupted()) {
+					if (LockStatistics.ENABLED)
+						stats.recordWait(obj, type.ordinal(), queueDepth,
+								System.nanoTime() - waitStart);
+					Lockers lockers = lockerMap.get(obj);
+					req.waiter = null;
+					lockers.dequeue(req);
+					handOff(lockers);
+					removeIfUnused(obj, lockers, anchor);
+					throw new LockAbortException(
+							"Interrupted when waitting for lock");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grants the locks to the waiting requests that became eligible, in the
+	 * queue order, and unparks their threads. Only the next eligible
+	 * transaction, or the next run of compatible requests, is woken up. The
+	 * caller must hold the anchor of the object.
+	 */
+	private void handOff(Lockers lks) {
+		boolean hasBookedAhead = false;
+		// the bit set of the booked modes ahead of the current request
+		int aheadModes = 0;
+
+		Request next;
+		for (Request req = lks.head; req != null; req = next) {
+			next = req.next;
+			boolean eligible = req.booked ? isCompatible(aheadModes, req.mode)
+					: !hasBookedAhead;
+
+			if (eligible && req.waiter != null
+					&& isLockable(lks, req.txNum, req.acquiring)) {
+				lks.dequeue(req);
+				grantLock(lks, req.txNum, req.acquiring);
+				req.granted = true;
+				LockSupport.unpark(req.waiter);
+				req.waiter = null;
+				continue;
+			}
+
+			if (req.booked) {
+				hasBookedAhead = true;
+				aheadModes |= modeBit(req.mode);
+				// No one behind an exclusive request is eligible
+				if (req.mode == LockType.X_LOCK)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the request is not blocked by any request ahead of it. A
+	 * booked request must follow the booked requests ahead in txNum order,
+	 * except that it can share the object with them when their modes are
+	 * compatible. An unbooked request waits for all the booked requests ahead
+	 * to avoid breaking the order.
+	 */
+	private boolean isFirstEligible(Lockers lks, Request req) {
+		int aheadModes = 0;
+		for (Request r = lks.head; r != req; r = r.next) {
+			if (r.booked) {
+				if (!req.booked)
+					return false;
+				aheadModes |= modeBit(r.mode);
+			}
+		}
+		return isCompatible(aheadModes, req.mode);
+	}
+
+	private int positionOf(Lockers lks, Request req) {
+		int pos = 1;
+		for (Request r = lks.head; r != req; r = r.next)
+			pos++;
+		return pos;
+	}
+
+	private boolean hasBookedRequests(Lockers lks) {
+		for (Request r = lks.head; r != null; r = r.next)
+			if (r.booked)
+				return true;
+		return false;
+	}
+
+	private Request findRequest(Lockers lks, long txNum) {
+		// A transaction usually finds its request near the tail
+		for (Request req = lks.tail; req != null; req = req.prev)
+			if (req.txNum == txNum)
+				return req;
+		return null;
+	}
+
+	private void grantLock(Lockers lks, long txNum, LockType lockType) {
 		switch (lockType) {
 		case X_LOCK:
-			if (lks.xLocker == txNum) {
-				lks.xLocker = -1;
-				anchor.notifyAll();
-			}
+			lks.xLocker = txNum;
 			return;
 		case SIX_LOCK:
-			if (lks.sixLocker == txNum) {
-				lks.sixLocker = -1;
-				anchor.notifyAll();
-			}
+			lks.sixLocker = txNum;
 			return;
 		case S_LOCK:
-			List<Long> sl = lks.sLockers;
-			if (sl != null && sl.contains(txNum)) {
-				sl.remove((Long) txNum);
-				if (sl.isEmpty())
-					anchor.notifyAll();
-			}
+			lks.sLockers.add(txNum);
 			return;
 		case IS_LOCK:
-			List<Long> isl = lks.isLockers;
-			if (isl != null && isl.contains(txNum)) {
-				isl.remove((Long) txNum);
-				if (isl.isEmpty())
-					anchor.notifyAll();
-			}
+			lks.isLockers.add(txNum);
 			return;
 		case IX_LOCK:
-			List<Long> ixl = lks.ixLockers;
-			if (ixl != null && ixl.contains(txNum)) {
-				ixl.remove((Long) txNum);
-				if (ixl.isEmpty())
-					anchor.notifyAll();
-			}
+			lks.ixLockers.add(txNum);
+			return;
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	private void releaseLock(Lockers lks, long txNum, LockType lockType) {
+		switch (lockType) {
+		case X_LOCK:
+			if (lks.xLocker == txNum)
+				lks.xLocker = Lockers.NONE;
+			return;
+		case SIX_LOCK:
+			if (lks.sixLocker == txNum)
+				lks.sixLocker = Lockers.NONE;
+			return;
+		case S_LOCK:
+			lks.sLockers.remove(txNum);
+			return;
+		case IS_LOCK:
+			lks.isLockers.remove(txNum);
+			return;
+		case IX_LOCK:
+			lks.ixLockers.remove(txNum);
 			return;
 		default:
 			throw new IllegalArgumentException();
 		}
 	}
 
+	/*
+	 * Compatibility between lock modes.
+	 */
+
+	private static int modeBit(LockType mode) {
+		return 1 << mode.ordinal();
+	}
+
+	private static boolean isCompatible(int modeBits, LockType mode) {
+		for (LockType held : LOCK_TYPES)
+			if ((modeBits & modeBit(held)) != 0 && !isCompatible(held, mode))
+				return false;
+		return true;
+	}
+
+	private static boolean isCompatible(LockType m1, LockType m2) {
+		switch (m1) {
+		case IS_LOCK:
+			return m2 != LockType.X_LOCK;
+		case IX_LOCK:
+			return m2 == LockType.IS_LOCK || m2 == LockType.IX_LOCK;
+		case S_LOCK:
+			return m2 == LockType.IS_LOCK || m2 == LockType.S_LOCK;
+		case SIX_LOCK:
+			return m2 == LockType.IS_LOCK;
+		default:
+			return false;
+		}
+	}
+
+	static LogSeqNum max(LogSeqNum lsn1, LogSeqNum lsn2) {
+		if (lsn1 == null)
+			return lsn2;
+		if (lsn2 == null)
+			return lsn1;
+		return lsn1.compareTo(lsn2) >= 0 ? lsn1 : lsn2;
+	}
+
+	/**
+	 * Returns the weakest mode that covers both of the given modes.
+	 */
+	static LockType combine(LockType m1, LockType m2) {
+		if (m1 == m2 || m2 == LockType.IS_LOCK)
+			return m1;
+		if (m1 == LockType.IS_LOCK)
+			return m2;
+		if (m1 == LockType.X_LOCK || m2 == LockType.X_LOCK)
+			return LockType.X_LOCK;
+		// Any other pair of IX, S and SIX
+		return LockType.SIX_LOCK;
+	}
+
+	private boolean hasLock(Lockers lks, long txNum, LockType lockType) {
+		switch (lockType) {
+		case X_LOCK:
+			return hasXLock(lks, txNum);
+		case SIX_LOCK:
+			return hasSixLock(lks, txNum);
+		case S_LOCK:
+			return hasSLock(lks, txNum);
+		case IS_LOCK:
+			return hasIsLock(lks, txNum);
+		case IX_LOCK:
+			return hasIxLock(lks, txNum);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	private boolean isLockable(Lockers lks, long txNum, LockType lockType) {
+		switch (lockType) {
+		case X_LOCK:
+			return xLockable(lks, txNum);
+		case SIX_LOCK:
+			return sixLockable(lks, txNum);
+		case S_LOCK:
+			return sLockable(lks, txNum);
+		case IS_LOCK:
+			return isLockable(lks, txNum);
+		case IX_LOCK:
+			return ixLockable(lks, txNum);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
 	/*
 	 * Verify if an item is locked.
 	 */
@@ -418,11 +768,11 @@ public class ConservativeLockTable {
 	}
 
 	private boolean xLocked(Lockers lks) {
-		return lks != null && lks.xLocker != -1;
+		return lks != null && lks.xLocker != Lockers.NONE;
 	}
 
 	private boolean sixLocked(Lockers lks) {
-		return lks != null && lks.sixLocker != -1;
+		return lks != null && lks.sixLocker != Lockers.NONE;
 	}
 
 	private boolean isLocked(Lockers lks) {
@@ -463,23 +813,11 @@ public class ConservativeLockTable {
 	}
 
 	private boolean isTheOnlyIsLocker(Lockers lks, long txNum) {
-		if (lks != null) {
-			for (Object o : lks.isLockers)
-				if (!o.equals(txNum))
-					return false;
-			return true;
-		}
-		return false;
+		return lks != null && lks.isLockers.containsOnly(txNum);
 	}
 
 	private boolean isTheOnlyIxLocker(Lockers lks, long txNum) {
-		if (lks != null) {
-			for (Object o : lks.ixLockers)
-				if (!o.equals(txNum))
-					return false;
-			return true;
-		}
-		return false;
+		return lks != null && lks.ixLockers.containsOnly(txNum);
 	}
 
 	/*
@@ -0,0 +1,357 @@
+package org.vanilladb.core.storage.tx.concurrency.conservative;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.sql.PrimaryKey;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.concurrency.conservative.ConservativeLockTable.LockType;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * Admits stored procedures into the conservative lock table without a global
+ * critical section. A single sequencer takes batches of prepared procedures,
+ * assigns their transaction numbers in arrival order and partitions their
+ * keys by the stripes of {@link ConservativeLockTable}. Each stripe is always
+ * served by the same booking worker, which books the keys of a batch in the
+ * order of transaction numbers. Hence, the requests on any object are still
+ * queued in txNum order, while bookings on different stripes proceed in
+ * parallel.
+ * <p>
+ * If {@link #EPOCH_LENGTH} is positive, the sequencer works in epochs: it
+ * keeps collecting procedures until the epoch ends or {@link #MAX_BATCH_SIZE}
+ * procedures arrive, books the whole epoch in one pass, and then dispatches
+ * it by releasing all of its callers at once. Otherwise, a batch is just
+ * whatever is waiting when the sequencer becomes free.
+ */
+public class ConservativeScheduler {
+	private static Logger logger = Logger.getLogger(ConservativeScheduler.class
+			.getName());
+
+	public static final int BOOKING_WORKERS;
+	public static final int MAX_BATCH_SIZE;
+
+	/**
+	 * The length in milliseconds of an admission epoch, or 0 to disable the
+	 * epochs. It only takes effect when the procedures are admitted by this
+	 * scheduler, i.e. with
+	 * {@link org.vanilladb.core.sql.storedprocedure.StoredProcedure#PARALLEL_ADMISSION}
+	 * on.
+	 */
+	public static final long EPOCH_LENGTH;
+
+	static {
+		BOOKING_WORKERS = CoreProperties.getLoader().getPropertyAsInteger(
+				ConservativeScheduler.class.getName() + ".BOOKING_WORKERS", 4);
+		MAX_BATCH_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+				ConservativeScheduler.class.getName() + ".MAX_BATCH_SIZE", 128);
+		EPOCH_LENGTH = CoreProperties.getLoader().getPropertyAsLong(
+				ConservativeScheduler.class.getName() + ".EPOCH_LENGTH", 0);
+	}
+
+	private static class SchedulerHolder {
+		private static final ConservativeScheduler INSTANCE = new ConservativeScheduler();
+	}
+
+	/**
+	 * Returns the scheduler shared by all stored procedures. The sequencer and
+	 * the booking workers are started on the first call.
+	 *
+	 * @return the scheduler
+	 */
+	public static ConservativeScheduler getScheduler() {
+		return SchedulerHolder.INSTANCE;
+	}
+
+	/**
+	 * A prepared procedure waiting for its transaction.
+	 */
+	private static class Admission {
+		boolean isReadOnly;
+		Collection<PrimaryKey> readKeys, writeKeys;
+		Collection<String> readTables, writeTables;
+		Transaction tx;
+		RuntimeException error;
+		CountDownLatch booked;
+
+		Admission(boolean isReadOnly, Collection<PrimaryKey> readKeys,
+				Collection<PrimaryKey> writeKeys, Collection<String> readTables,
+				Collection<String> writeTables) {
+			this.isReadOnly = isReadOnly;
+			this.readKeys = readKeys;
+			this.writeKeys = writeKeys;
+			this.readTables = readTables;
+			this.writeTables = writeTables;
+		}
+	}
+
+	/**
+	 * The bookings of a batch which fall in the stripes of one worker, in
+	 * txNum order.
+	 */
+	private static class BookingBatch {
+		// Parallel arrays, so that adding a booking boxes nothing
+		Object[] objs = new Object[16];
+		long[] txNums = new long[16];
+		LockType[] modes = new LockType[16];
+		int size;
+		CountDownLatch done;
+
+		void add(Object obj, long txNum, LockType mode) {
+			if (size == objs.length) {
+				objs = Arrays.copyOf(objs, size * 2);
+				txNums = Arrays.copyOf(txNums, size * 2);
+				modes = Arrays.copyOf(modes, size * 2);
+			}
+			objs[size] = obj;
+			txNums[size] = txNum;
+			modes[size] = mode;
+			size++;
+		}
+	}
+
+	private class Sequencer extends Task {
+		@Override
+		public void run() {
+			Thread.currentThread().setName("Conservative-Sequencer");
+			List<Admission> batch = new ArrayList<Admission>(MAX_BATCH_SIZE);
+			while (true) {
+				try {
+					batch.add(admissionQueue.take());
+					long collectStart = System.nanoTime();
+					if (EPOCH_LENGTH > 0)
+						collectEpoch(batch, collectStart);
+					else
+						admissionQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+					long bookStart = System.nanoTime();
+					int numOfBookings = sequence(batch);
+					stats.recordEpoch(batch.size(), numOfBookings,
+							bookStart - collectStart, System.nanoTime() - bookStart);
+					if (logger.isLoggable(Level.FINE))
+						logger.fine("admitted an epoch of " + batch.size() + " txs ("
+								+ stats.getLastEpochBookMicros() + " us to book)");
+				} catch (InterruptedException e) {
+					if (logger.isLoggable(Level.SEVERE))
+						logger.severe("the sequencer is interrupted");
+					return;
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	private class BookingWorker extends Task {
+		private int id;
+		private BlockingQueue<BookingBatch> queue = new LinkedBlockingQueue<BookingBatch>();
+
+		BookingWorker(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public void run() {
+			Thread.currentThread().setName("Conservative-Booker-" + id);
+			while (true) {
+				try {
+					BookingBatch batch = queue.take();
+					try {
+						for (int i = 0; i < batch.size; i++)
+							lockTbl.requestLock(batch.objs[i], batch.txNums[i],
+									batch.modes[i]);
+					} finally {
+						batch.done.countDown();
+					}
+				} catch (InterruptedException e) {
+					if (logger.isLoggable(Level.SEVERE))
+						logger.severe("the booking worker " + id + " is interrupted");
+					return;
+				}
+			}
+		}
+	}
+
+	private ConservativeLockTable lockTbl;
+	private BlockingQueue<Admission> admissionQueue = new LinkedBlockingQueue<Admission>();
+	private BookingWorker[] workers;
+	private EpochStatistics stats = new EpochStatistics();
+
+	private ConservativeScheduler() {
+		lockTbl = ConservativeConcurrencyMgr.lockTbl;
+		workers = new BookingWorker[BOOKING_WORKERS];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new BookingWorker(i);
+			VanillaDb.taskMgr().runTask(workers[i]);
+		}
+		VanillaDb.taskMgr().runTask(new Sequencer());
+	}
+
+	/**
+	 * Creates a serializable transaction for a stored procedure and books the
+	 * given keys for it. The caller blocks until all of its bookings are in
+	 * the lock table, so the returned transaction can acquire its locks right
+	 * away.
+	 *
+	 * @param isReadOnly
+	 *            whether the transaction is read-only
+	 * @param readKeys
+	 *            the keys which the transaction intends to read
+	 * @param writeKeys
+	 *            the keys which the transaction intends to write
+	 * @return the booked transaction
+	 */
+	public Transaction schedule(boolean isReadOnly,
+			Collection<PrimaryKey> readKeys, Collection<PrimaryKey> writeKeys) {
+		return schedule(isReadOnly, readKeys, writeKeys, null, null);
+	}
+
+	/**
+	 * Creates a serializable transaction for a stored procedure and books the
+	 * given keys and tables for it, as
+	 * {@link ConservativeConcurrencyMgr#bookKeys(Collection, Collection, Collection, Collection)}
+	 * does. The caller blocks until all of its bookings are in the lock
+	 * table.
+	 *
+	 * @param isReadOnly
+	 *            whether the transaction is read-only
+	 * @param readKeys
+	 *            the keys which the transaction intends to read
+	 * @param writeKeys
+	 *            the keys which the transaction intends to write
+	 * @param readTables
+	 *            the tables which the transaction intends to read entirely
+	 * @param writeTables
+	 *            the tables which the transaction intends to write entirely
+	 * @return the booked transaction
+	 */
+	public Transaction schedule(boolean isReadOnly,
+			Collection<PrimaryKey> readKeys, Collection<PrimaryKey> writeKeys,
+			Collection<String> readTables, Collection<String> writeTables) {
+		Admission adm = new Admission(isReadOnly, readKeys, writeKeys,
+				readTables, writeTables);
+		adm.booked = new CountDownLatch(1);
+		admissionQueue.add(adm);
+
+		awaitUninterruptibly(adm.booked);
+		if (adm.error != null)
+			throw adm.error;
+		return adm.tx;
+	}
+
+	/**
+	 * Returns the statistics of the epochs admitted so far.
+	 *
+	 * @return the epoch statistics
+	 */
+	public EpochStatistics getStatistics() {
+		return stats;
+	}
+
+	private void collectEpoch(List<Admission> batch, long epochStart)
+			throws InterruptedException {
+		long epochEnd = epochStart + TimeUnit.MILLISECONDS.toNanos(EPOCH_LENGTH);
+		while (batch.size() < MAX_BATCH_SIZE) {
+			admissionQueue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+			long remaining = epochEnd - System.nanoTime();
+			if (batch.size() >= MAX_BATCH_SIZE || remaining <= 0)
+				break;
+			Admission adm = admissionQueue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (adm != null)
+				batch.add(adm);
+		}
+	}
+
+	private int sequence(List<Admission> batch) {
+		BookingBatch[] bookings = new BookingBatch[workers.length];
+		for (int i = 0; i < bookings.length; i++)
+			bookings[i] = new BookingBatch();
+
+		// Assign transaction numbers in arrival order
+		for (Admission adm : batch) {
+			try {
+				adm.tx = VanillaDb.txMgr().newTransaction(
+						Connection.TRANSACTION_SERIALIZABLE, adm.isReadOnly);
+				ConservativeConcurrencyMgr ccMgr = (ConservativeConcurrencyMgr) adm.tx
+						.concurrencyMgr();
+				long txNum = adm.tx.getTransactionNumber();
+				Map<Object, LockType> toBook = ccMgr.registerKeys(adm.readKeys,
+						adm.writeKeys, adm.readTables, adm.writeTables);
+				for (Map.Entry<Object, LockType> booking : toBook.entrySet()) {
+					Object obj = booking.getKey();
+					bookings[lockTbl.stripeOf(obj) % workers.length].add(obj,
+							txNum, booking.getValue());
+				}
+			} catch (RuntimeException e) {
+				// The caller never gets the transaction, so it is finished
+				// here, or it would stay active forever
+				if (adm.tx != null) {
+					rollback(adm.tx);
+					adm.tx = null;
+				}
+				adm.error = e;
+			}
+		}
+
+		// Book the stripes in parallel
+		int numOfBusyWorkers = 0;
+		for (BookingBatch booking : bookings)
+			if (booking.size > 0)
+				numOfBusyWorkers++;
+		CountDownLatch done = new CountDownLatch(numOfBusyWorkers);
+		for (int i = 0; i < bookings.length; i++) {
+			if (bookings[i].size > 0) {
+				bookings[i].done = done;
+				workers[i].queue.add(bookings[i]);
+			}
+		}
+
+		// Release the callers once the whole batch is booked. Waiting here
+		// keeps the sequencer from running ahead of the workers unboundedly.
+		awaitUninterruptibly(done);
+		for (Admission adm : batch)
+			adm.booked.countDown();
+
+		int numOfKeys = 0;
+		for (BookingBatch booking : bookings)
+			numOfKeys += booking.size;
+		return numOfKeys;
+	}
+
+	private static void rollback(Transaction tx) {
+		try {
+			tx.rollback();
+		} catch (RuntimeException e) {
+			// Keep the sequencer running for the other procedures
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("cannot roll back the unadmitted transaction "
+						+ tx.getTransactionNumber() + ": " + e);
+		}
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,83 @@
+package org.vanilladb.core.storage.tx.concurrency.conservative;
+
+/**
+ * Accumulated statistics of the epochs (batches) admitted by
+ * {@link ConservativeScheduler}. Only the sequencer updates the statistics,
+ * while any thread may read them.
+ */
+public class EpochStatistics {
+	private volatile long numOfEpochs, numOfTxs, numOfBookings;
+	private volatile long totalCollectNanos, totalBookNanos;
+	private volatile int maxEpochSize, lastEpochSize;
+	private volatile long lastEpochBookNanos;
+
+	synchronized void recordEpoch(int numOfTxs, int numOfBookings,
+			long collectNanos, long bookNanos) {
+		this.numOfEpochs++;
+		this.numOfTxs += numOfTxs;
+		this.numOfBookings += numOfBookings;
+		this.totalCollectNanos += collectNanos;
+		this.totalBookNanos += bookNanos;
+		if (numOfTxs > maxEpochSize)
+			maxEpochSize = numOfTxs;
+		lastEpochSize = numOfTxs;
+		lastEpochBookNanos = bookNanos;
+	}
+
+	public long getNumOfEpochs() {
+		return numOfEpochs;
+	}
+
+	public long getNumOfTxs() {
+		return numOfTxs;
+	}
+
+	public long getNumOfBookings() {
+		return numOfBookings;
+	}
+
+	public int getMaxEpochSize() {
+		return maxEpochSize;
+	}
+
+	public int getLastEpochSize() {
+		return lastEpochSize;
+	}
+
+	public long getLastEpochBookMicros() {
+		return lastEpochBookNanos / 1000;
+	}
+
+	public synchronized double getAvgEpochSize() {
+		return numOfEpochs == 0 ? 0.0 : (double) numOfTxs / numOfEpochs;
+	}
+
+	/**
+	 * Returns the average time, in microseconds, the sequencer spent on
+	 * collecting the procedures of an epoch.
+	 *
+	 * @return the average collecting time of an epoch
+	 */
+	public synchronized double getAvgCollectMicros() {
+		return numOfEpochs == 0 ? 0.0 : totalCollectNanos / 1000.0 / numOfEpochs;
+	}
+
+	/**
+	 * Returns the average time, in microseconds, from the end of collecting
+	 * an epoch to the end of booking all of its keys.
+	 *
+	 * @return the average booking time of an epoch
+	 */
+	public synchronized double getAvgBookMicros() {
+		return numOfEpochs == 0 ? 0.0 : totalBookNanos / 1000.0 / numOfEpochs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"epochs: %d, txs: %d, bookings: %d, avg epoch size: %.2f, max epoch size: %d, "
+						+ "avg collect time: %.2f us, avg book time: %.2f us",
+				numOfEpochs, numOfTxs, numOfBookings, getAvgEpochSize(),
+				maxEpochSize, getAvgCollectMicros(), getAvgBookMicros());
+	}
+}
@@ -30,10 +30,15 @@ import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 
 /**
- * The checkpoint log record.
+ * The checkpoint log record. A non-quiescent checkpoint does not flush the
+ * buffers, so besides the transactions active during checkpointing, the record
+ * keeps the LSN from which the recovery has to redo the log. It is the minimum
+ * recLSN of the dirty buffers at that time, which summarizes the dirty page
+ * table, since a table of the whole buffer pool does not fit in a log record.
  */
 class CheckpointRecord implements LogRecord {
 	private List<Long> txNums;
+	private LogSeqNum redoLsn;
 	private LogSeqNum lsn;
 	/**
 	 * Creates a quiescent checkpoint record.
@@ -44,10 +49,16 @@ class CheckpointRecord implements LogRecord {
 
 	/**
 	 * Creates a non-quiescent checkpoint record.
+	 * 
+	 * @param txNums
+	 *            the transactions active during checkpointing
+	 * @param redoLsn
+	 *            the LSN from which the recovery has to redo, or null if all
+	 *            changes before the checkpoint are on disk
 	 */
-	public CheckpointRecord(List<Long> txNums) {
+	public CheckpointRecord(List<Long> txNums, LogSeqNum redoLsn) {
 		this.txNums = txNums;
-		
+		this.redoLsn = redoLsn;
 	}
 
 	/**
@@ -58,6 +69,10 @@ class CheckpointRecord implements LogRecord {
 	 *            the basic log record
 	 */
 	public CheckpointRecord(BasicLogRecord rec) {
+		LogSeqNum redoLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(),
+				(Long) rec.nextVal(BIGINT).asJavaVal());
+		if (!redoLsn.equals(LogSeqNum.DEFAULT_VALUE))
+			this.redoLsn = redoLsn;
 		int txCount = (Integer) rec.nextVal(INTEGER).asJavaVal();
 		this.lsn = rec.getLSN();
 		this.txNums = new ArrayList<Long>();
@@ -68,8 +83,9 @@ class CheckpointRecord implements LogRecord {
 
 	/**
 	 * Writes a checkpoint record to the log. This log record contains the
-	 * {@link LogRecord#OP_CHECKPOINT} operator ID, number of active transctions
-	 * during checkpointing and a list of active transaction ids.
+	 * {@link LogRecord#OP_CHECKPOINT} operator ID, the LSN to redo from, number
+	 * of active transctions during checkpointing and a list of active
+	 * transaction ids.
 	 * 
 	 * @return the LSN of the log record
 	 */
@@ -113,6 +129,8 @@ class CheckpointRecord implements LogRecord {
 	@Override
 	public String toString() {
 		StringBuffer strbuf = new StringBuffer("<NQCKPT ");
+		if (redoLsn != null)
+			strbuf.append(redoLsn + " ");
 		
 		for (Long l : txNums) {
 			strbuf.append(l + ",");
@@ -128,6 +146,16 @@ class CheckpointRecord implements LogRecord {
 		return this.txNums;
 	}
 
+	/**
+	 * Returns the LSN from which the recovery has to redo the log. All the
+	 * changes made by the earlier log records are on disk.
+	 * 
+	 * @return the LSN to redo from
+	 */
+	public LogSeqNum redoLsn() {
+		return redoLsn != null ? redoLsn : lsn;
+	}
+
 	public boolean isContainTxNum(long txNum) {
 		return this.txNums.contains(txNum);
 	}
@@ -136,6 +164,9 @@ class CheckpointRecord implements LogRecord {
 	public List<Constant> buildRecord() {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
+		LogSeqNum redo = redoLsn != null ? redoLsn : LogSeqNum.DEFAULT_VALUE;
+		rec.add(new BigIntConstant(redo.blkNum()));
+		rec.add(new BigIntConstant(redo.offset()));
 		rec.add(new IntegerConstant(txNums.size()));
 		int recLength = txNums.size();
 		for (int i = 0; i < recLength; i++)
@@ -147,4 +178,12 @@ class CheckpointRecord implements LogRecord {
 	public LogSeqNum getLSN() {
 		return lsn;
 	}
+
+	/**
+	 * Returns null, because a checkpoint record belongs to no transaction.
+	 */
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return null;
+	}
 }
@@ -21,6 +21,7 @@ import java.util.logging.Logger;
 
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.storage.buffer.BufferWarmUpTask;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.util.CoreProperties;
 
@@ -71,6 +72,9 @@ public class CheckpointTask extends Task {
 			VanillaDb.txMgr().createCheckpoint(tx);
 			tx.commit();
 		}
+		// Also remember the blocks in the buffer pools for the next start
+		if (VanillaDb.isBufferWarmUpEnabled())
+			BufferWarmUpTask.saveSnapshot();
 		if (logger.isLoggable(Level.INFO))
 			logger.info("A checkpoint created");
 	}
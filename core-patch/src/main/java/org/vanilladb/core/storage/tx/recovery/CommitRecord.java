@@ -33,14 +33,18 @@ import org.vanilladb.core.storage.tx.Transaction;
 class CommitRecord implements LogRecord {
 	private long txNum;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 	/**
 	 * Creates a new commit log record for the specified transaction.
 	 * 
 	 * @param txNum
 	 *            the ID of the specified transaction
+	 * @param prevLsn
+	 *            the LSN of the previous log record of the transaction
 	 */
-	public CommitRecord(long txNum) {
+	public CommitRecord(long txNum, LogSeqNum prevLsn) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.lsn = null;
 	}
 
@@ -52,6 +56,7 @@ class CommitRecord implements LogRecord {
 	 */
 	public CommitRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		lsn = rec.getLSN();
 	}
 
@@ -64,7 +69,8 @@ class CommitRecord implements LogRecord {
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 	}
 
 	@Override
@@ -103,10 +109,17 @@ class CommitRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		return rec;
 	}
 	@Override
 	public LogSeqNum getLSN() {
 		return lsn;
 	}
+
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
 }
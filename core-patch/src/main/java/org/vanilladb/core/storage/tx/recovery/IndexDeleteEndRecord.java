@@ -43,10 +43,12 @@ public class IndexDeleteEndRecord extends LogicalEndRecord implements LogRecord
 	private SearchKey searchKey;
 	private int recordSlotId;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
-	public IndexDeleteEndRecord(long txNum, String indexName, SearchKey searchKey,
+	public IndexDeleteEndRecord(long txNum, LogSeqNum prevLsn, String indexName, SearchKey searchKey,
 			long recordBlockNum, int recordSlotId, LogSeqNum logicalStartLSN) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.indexName = indexName;
 		this.searchKey = searchKey;
 		this.recordBlockNum = recordBlockNum;
@@ -58,6 +60,7 @@ public class IndexDeleteEndRecord extends LogicalEndRecord implements LogRecord
 
 	public IndexDeleteEndRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		indexName = (String) rec.nextVal(VARCHAR).asJavaVal();
 
 		// Search Key
@@ -84,7 +87,8 @@ public class IndexDeleteEndRecord extends LogicalEndRecord implements LogRecord
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 	}
 
 	@Override
@@ -135,6 +139,8 @@ public class IndexDeleteEndRecord extends LogicalEndRecord implements LogRecord
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		rec.add(new VarcharConstant(indexName));
 		
 		// Search Key
@@ -161,4 +167,9 @@ public class IndexDeleteEndRecord extends LogicalEndRecord implements LogRecord
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 }
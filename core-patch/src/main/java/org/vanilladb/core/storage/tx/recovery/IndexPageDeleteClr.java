@@ -31,9 +31,9 @@ import org.vanilladb.core.storage.tx.Transaction;
 public class IndexPageDeleteClr extends IndexPageDeleteRecord implements CompesationLogRecord {
 	private LogSeqNum undoNextLSN;
 
-	public IndexPageDeleteClr(long compTxNum, BlockId indexBlkId, boolean isDirPage,
+	public IndexPageDeleteClr(long compTxNum, LogSeqNum prevLsn, BlockId indexBlkId, boolean isDirPage,
 			SearchKeyType keyType, int slotId, LogSeqNum undoNextLSN) {
-		super(compTxNum, indexBlkId, isDirPage, keyType, slotId);
+		super(compTxNum, prevLsn, indexBlkId, isDirPage, keyType, slotId);
 		this.undoNextLSN = undoNextLSN;
 
 	}
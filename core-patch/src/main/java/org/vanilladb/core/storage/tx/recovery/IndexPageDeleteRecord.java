@@ -37,17 +37,19 @@ import org.vanilladb.core.storage.log.BasicLogRecord;
 import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 
-public class IndexPageDeleteRecord implements LogRecord {
+public class IndexPageDeleteRecord implements LogRecord, PageLogRecord {
 	private long txNum;
 	private BlockId indexBlkId;
 	private int slotId;
 	private boolean isDirPage;
 	private SearchKeyType keyType;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
-	public IndexPageDeleteRecord(long txNum, BlockId indexBlkId, boolean isDirPage,
+	public IndexPageDeleteRecord(long txNum, LogSeqNum prevLsn, BlockId indexBlkId, boolean isDirPage,
 			SearchKeyType keyType, int slotId) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.isDirPage = isDirPage;
 		this.keyType = keyType;
 		this.indexBlkId = indexBlkId;
@@ -56,6 +58,7 @@ public class IndexPageDeleteRecord implements LogRecord {
 
 	public IndexPageDeleteRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		isDirPage = (Integer) rec.nextVal(INTEGER).asJavaVal() == 1;
 		
 		// Search Key Type
@@ -78,7 +81,8 @@ public class IndexPageDeleteRecord implements LogRecord {
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 
 	}
 
@@ -92,6 +96,11 @@ public class IndexPageDeleteRecord implements LogRecord {
 		return txNum;
 	}
 
+	@Override
+	public BlockId block() {
+		return indexBlkId;
+	}
+
 	@Override
 	public void undo(Transaction tx) {
 		// Note that UndoNextLSN should be set to this log record's lsn in order
@@ -152,6 +161,8 @@ public class IndexPageDeleteRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		// Covert Boolean into int
 		rec.add(new IntegerConstant(isDirPage ? 1 : 0));
 		
@@ -175,4 +186,9 @@ public class IndexPageDeleteRecord implements LogRecord {
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 }
@@ -37,19 +37,21 @@ import org.vanilladb.core.storage.log.BasicLogRecord;
 import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 
-public class IndexPageInsertRecord implements LogRecord {
+public class IndexPageInsertRecord implements LogRecord, PageLogRecord {
 	private long txNum;
 	private BlockId indexBlkId;
 	private int slotId;
 	private boolean isDirPage;
 	private SearchKeyType keyType;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
-	public IndexPageInsertRecord(long txNum, BlockId indexBlkId, boolean isDirPage,
+	public IndexPageInsertRecord(long txNum, LogSeqNum prevLsn, BlockId indexBlkId, boolean isDirPage,
 			SearchKeyType keyType, int slotId) {
 //		System.out.println(String.format("Tx.%d logs inserts on %s", txNum, indexBlkId));
 		
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.isDirPage = isDirPage;
 		this.keyType = keyType;
 		this.indexBlkId = indexBlkId;
@@ -58,6 +60,7 @@ public class IndexPageInsertRecord implements LogRecord {
 
 	public IndexPageInsertRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		isDirPage = (Integer) rec.nextVal(INTEGER).asJavaVal() == 1;
 		
 		// Search Key Type
@@ -80,7 +83,8 @@ public class IndexPageInsertRecord implements LogRecord {
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 
 	}
 
@@ -94,6 +98,11 @@ public class IndexPageInsertRecord implements LogRecord {
 		return txNum;
 	}
 
+	@Override
+	public BlockId block() {
+		return indexBlkId;
+	}
+
 	@Override
 	public void undo(Transaction tx) {
 //		System.out.println(String.format("Tx.%d undo inserting slot %d to %s", tx.getTransactionNumber(), slotId, indexBlkId));
@@ -157,6 +166,8 @@ public class IndexPageInsertRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		// Covert Boolean into int
 		rec.add(new IntegerConstant(isDirPage ? 1 : 0));
 		
@@ -180,4 +191,9 @@ public class IndexPageInsertRecord implements LogRecord {
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 }
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.tx.recovery;
 
+import static org.vanilladb.core.sql.Type.BIGINT;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_CHECKPOINT;
 import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_COMMIT;
@@ -38,6 +39,7 @@ import org.vanilladb.core.sql.Type;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.Page;
 import org.vanilladb.core.storage.log.BasicLogRecord;
+import org.vanilladb.core.storage.log.LogMgr;
 import org.vanilladb.core.storage.log.LogSeqNum;
 
 public class LogReader {
@@ -51,13 +53,16 @@ public class LogReader {
 
 	// Log File
 	private long fileSize; // number of blocks
+	private long firstBlkNum; // number of the log block after the header
 
 	// Log Record
 	private LogRecord currentRec;
 
 	public LogReader(String logFileName) {
 		fileSize = VanillaDb.fileMgr().size(logFileName);
-		currentBlk = new BlockId(logFileName, 0);
+		page.read(new BlockId(logFileName, 0));
+		firstBlkNum = (Long) page.getVal(LogMgr.FIRST_BLK_POS, BIGINT).asJavaVal();
+		currentBlk = new BlockId(logFileName, 1);
 		currentPos = pointerSize * 2; // point to first record
 		page.read(currentBlk);
 	}
@@ -79,7 +84,7 @@ public class LogReader {
 
 		// get record
 		// TODO : Need to check currentPos type
-		currentRec = readRecord(new BasicLogRecord(page, new LogSeqNum(currentBlk.number(), currentPos)));
+		currentRec = readRecord(new BasicLogRecord(page, new LogSeqNum(firstBlkNum + currentBlk.number() - 1, currentPos)));
 		// move to next record position
 		int nextPos = (Integer) page.getVal(currentPos - pointerSize, Type.INTEGER).asJavaVal();
 		currentPos = nextPos + pointerSize;
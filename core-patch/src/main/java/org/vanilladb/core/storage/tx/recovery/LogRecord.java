@@ -78,6 +78,15 @@ public interface LogRecord {
 	 */
 	LogSeqNum getLSN();
 
+	/**
+	 * Returns the log sequence number of the previous log record of the same
+	 * transaction. The records of a transaction are chained backward by these
+	 * numbers, so that it can be rolled back without scanning the whole log.
+	 * 
+	 * @return the LSN of the previous record, or null if there is no such record
+	 */
+	LogSeqNum getPrevLSN();
+
 	/**
 	 * Undoes the operation encoded by this log record.
 	 * 
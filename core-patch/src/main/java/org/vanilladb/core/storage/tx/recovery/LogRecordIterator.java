@@ -50,55 +50,9 @@ class LogRecordIterator implements ReversibleIterator<LogRecord> {
 		return iter.hasNext();
 	}
 
-	/**
-	 * Constructs a log record from the values in the current basic log record.
-	 * The method first reads an integer, which denotes the type of the log
-	 * record. Based on that type, the method calls the appropriate LogRecord
-	 * constructor to read the remaining values.
-	 * 
-	 * @return the next log record, or null if no more records
-	 */
-	
 	@Override
 	public LogRecord next() {
-		BasicLogRecord rec = iter.next();
-		int op = (Integer) rec.nextVal(INTEGER).asJavaVal();
-		switch (op) {
-		case OP_CHECKPOINT:
-			return new CheckpointRecord(rec);
-		case OP_START:
-			return new StartRecord(rec);
-		case OP_COMMIT:
-			return new CommitRecord(rec);
-		case OP_ROLLBACK:
-			return new RollbackRecord(rec);
-		case OP_SET_VALUE:
-			return new SetValueRecord(rec);
-		case OP_LOGICAL_START:
-			return new LogicalStartRecord(rec);
-		case OP_LOGICAL_ABORT:
-			return new LogicalAbortRecord(rec);
-		case OP_RECORD_FILE_INSERT_END:
-			return new RecordFileInsertEndRecord(rec);
-		case OP_RECORD_FILE_DELETE_END:
-			return new RecordFileDeleteEndRecord(rec);
-		case OP_INDEX_FILE_INSERT_END:
-			return new IndexInsertEndRecord(rec);
-		case OP_INDEX_FILE_DELETE_END:
-			return new IndexDeleteEndRecord(rec);
-		case OP_INDEX_PAGE_INSERT:
-			return new IndexPageInsertRecord(rec);
-		case OP_INDEX_PAGE_DELETE:
-			return new IndexPageDeleteRecord(rec);
-		case OP_SET_VALUE_CLR:
-			return new SetValueClr(rec);
-		case OP_INDEX_PAGE_INSERT_CLR:
-			return new IndexPageInsertClr(rec);
-		case OP_INDEX_PAGE_DELETE_CLR:
-			return new IndexPageDeleteClr(rec);
-		default:
-			throw new UnsupportedOperationException();
-		}
+		return toLogRecord(iter.next());
 	}
 
 	@Override
@@ -113,7 +67,20 @@ class LogRecordIterator implements ReversibleIterator<LogRecord> {
 
 	@Override
 	public LogRecord previous() {
-		BasicLogRecord rec = iter.previous();
+		return toLogRecord(iter.previous());
+	}
+
+	/**
+	 * Constructs a log record from the values in the specified basic log
+	 * record. The method first reads an integer, which denotes the type of the
+	 * log record. Based on that type, the method calls the appropriate
+	 * LogRecord constructor to read the remaining values.
+	 * 
+	 * @param rec
+	 *            the basic log record
+	 * @return the log record
+	 */
+	static LogRecord toLogRecord(BasicLogRecord rec) {
 		int op = (Integer) rec.nextVal(INTEGER).asJavaVal();
 		switch (op) {
 		case OP_CHECKPOINT:
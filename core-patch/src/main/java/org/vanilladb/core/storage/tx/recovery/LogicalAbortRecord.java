@@ -30,15 +30,18 @@ import org.vanilladb.core.storage.tx.Transaction;
 public class LogicalAbortRecord extends LogicalEndRecord implements LogRecord {
 	private long txNum;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
-	public LogicalAbortRecord(long txNum, LogSeqNum logicalStartLSN) {
+	public LogicalAbortRecord(long txNum, LogSeqNum prevLsn, LogSeqNum logicalStartLSN) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		super.logicalStartLSN = logicalStartLSN;
 		this.lsn = null;
 	}
 
 	public LogicalAbortRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		super.logicalStartLSN = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(),
 				(Long) rec.nextVal(BIGINT).asJavaVal());
 		lsn = rec.getLSN();
@@ -47,7 +50,8 @@ public class LogicalAbortRecord extends LogicalEndRecord implements LogRecord {
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 	}
 
 	@Override
@@ -90,6 +94,8 @@ public class LogicalAbortRecord extends LogicalEndRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		rec.add(new BigIntConstant(super.logicalStartLSN.blkNum()));
 		rec.add(new BigIntConstant(super.logicalStartLSN.offset()));
 		return rec;
@@ -101,4 +107,9 @@ public class LogicalAbortRecord extends LogicalEndRecord implements LogRecord {
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 }
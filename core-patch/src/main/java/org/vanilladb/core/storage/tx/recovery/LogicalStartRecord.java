@@ -31,14 +31,17 @@ import org.vanilladb.core.storage.tx.Transaction;
 public class LogicalStartRecord implements LogRecord {
 	private long txNum;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
-	public LogicalStartRecord(long txNum) {
+	public LogicalStartRecord(long txNum, LogSeqNum prevLsn) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.lsn = null;
 	}
 
 	public LogicalStartRecord(BasicLogRecord rec) {
 		this.txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		lsn = rec.getLSN();
 	}
 
@@ -51,10 +54,16 @@ public class LogicalStartRecord implements LogRecord {
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 	}
 
 	@Override
@@ -99,6 +108,8 @@ public class LogicalStartRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		return rec;
 	}
 }
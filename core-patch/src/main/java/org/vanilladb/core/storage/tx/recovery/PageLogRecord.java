@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.recovery;
+
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * A log record modifying a single page, whose redo depends only on the
+ * records of the same block before it.
+ */
+public interface PageLogRecord {
+
+	/**
+	 * Returns the block modified by this record.
+	 * 
+	 * @return the id of the block
+	 */
+	BlockId block();
+
+}
@@ -40,9 +40,11 @@ public class RecordFileInsertEndRecord extends LogicalEndRecord implements LogRe
 	private String tblName;
 	private int slotId;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
-	public RecordFileInsertEndRecord(long txNum, String tblName, long blkNum, int slotId, LogSeqNum logicalStartLSN) {
+	public RecordFileInsertEndRecord(long txNum, LogSeqNum prevLsn, String tblName, long blkNum, int slotId, LogSeqNum logicalStartLSN) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.tblName = tblName;
 		this.blkNum = blkNum;
 		this.slotId = slotId;
@@ -52,6 +54,7 @@ public class RecordFileInsertEndRecord extends LogicalEndRecord implements LogRe
 
 	public RecordFileInsertEndRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		tblName = (String) rec.nextVal(VARCHAR).asJavaVal();
 		blkNum = (Long) rec.nextVal(BIGINT).asJavaVal();
 		slotId = (Integer) rec.nextVal(INTEGER).asJavaVal();
@@ -63,7 +66,8 @@ public class RecordFileInsertEndRecord extends LogicalEndRecord implements LogRe
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 	}
 
 	@Override
@@ -113,6 +117,8 @@ public class RecordFileInsertEndRecord extends LogicalEndRecord implements LogRe
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		rec.add(new VarcharConstant(tblName));
 		rec.add(new BigIntConstant(blkNum));
 		rec.add(new IntegerConstant(slotId));
@@ -127,4 +133,9 @@ public class RecordFileInsertEndRecord extends LogicalEndRecord implements LogRe
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 }
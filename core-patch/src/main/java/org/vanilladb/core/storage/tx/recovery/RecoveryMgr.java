@@ -20,26 +20,82 @@ import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_COMMIT;
 import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_ROLLBACK;
 import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_START;
 
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.storage.buffer.Buffer;
 import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.Page;
 import org.vanilladb.core.storage.index.SearchKey;
 import org.vanilladb.core.storage.index.SearchKeyType;
+import org.vanilladb.core.storage.index.btree.BTreeDir;
+import org.vanilladb.core.storage.index.btree.BTreeLeaf;
+import org.vanilladb.core.storage.log.BasicLogRecord;
 import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.storage.metadata.TableMgr;
+import org.vanilladb.core.storage.metadata.index.IndexMgr;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.TransactionLifecycleListener;
+import org.vanilladb.core.util.CoreProperties;
 
 /**
  * The recovery manager. Each transaction has its own recovery manager.
+ * <p>
+ * The log records of a transaction are chained backward by their previous
+ * LSNs, and the manager keeps the LSN of the last one. A rollback follows the
+ * chain instead of scanning the log, reading the records from an undo buffer
+ * of the {@link #UNDO_BUFFER_SIZE} most recent records of the transaction, and
+ * only the older ones from the log file.
+ * <p>
+ * A recovery after a crash is done by {@link #RECOVERY_WORKERS} threads. The
+ * records modifying pages are redone by the worker of their block, and the
+ * unfinished transactions are undone by the worker of the tables and indexes
+ * they modified.
  */
 public class RecoveryMgr implements TransactionLifecycleListener {
+	private static Logger logger = Logger.getLogger(RecoveryMgr.class.getName());
+
+	/**
+	 * The number of the most recent log records of a transaction kept in
+	 * memory for its rollback.
+	 */
+	public static final int UNDO_BUFFER_SIZE;
+
+	/**
+	 * The number of the threads redoing and undoing the log records during a
+	 * recovery. 1 makes the recovering transaction do all the work itself.
+	 */
+	public static final int RECOVERY_WORKERS;
+
+	static {
+		UNDO_BUFFER_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+				RecoveryMgr.class.getName() + ".UNDO_BUFFER_SIZE", 256);
+		RECOVERY_WORKERS = Math.max(CoreProperties.getLoader().getPropertyAsInteger(
+				RecoveryMgr.class.getName() + ".RECOVERY_WORKERS", 4), 1);
+	}
+
+	// The undo of a transaction modifying the catalog of the tables or the
+	// indexes may change what the others read from it, so it is never done in
+	// parallel
+	private static final Set<String> CATALOG_FILES = new HashSet<String>(Arrays.asList(
+			TableMgr.TCAT + ".tbl", TableMgr.FCAT + ".tbl", IndexMgr.ICAT + ".tbl", IndexMgr.KCAT + ".tbl"));
+	private static final String BTREE_DIR_POSTFIX = BTreeDir.getFileName("");
 
 	private static boolean enableLogging = true;
 
@@ -61,13 +117,33 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		tx.bufferMgr().flushAll();
 		VanillaDb.logMgr().removeAndCreateNewLog();
 		
-		// Add a start record for this transaction
-		new StartRecord(tx.getTransactionNumber()).writeToLog();
+		// Add a start record for this transaction, which begins a new chain
+		tx.recoveryMgr().logStart();
 	}
 
 	private Map<Long, LogSeqNum> txUnDoNextLSN = new HashMap<Long, LogSeqNum>();
 	private long txNum; // the owner id of this recovery manger
 	private LogSeqNum logicalStartLSN = null;
+	private boolean isCommitFlushDeferred;
+	private LogSeqNum commitLsn;
+
+	// The chain of the log records of this transaction
+	private LogSeqNum startLsn, lastLsn;
+	@SuppressWarnings("serial")
+	private Map<LogSeqNum, LogRecord> undoBuffer = new LinkedHashMap<LogSeqNum, LogRecord>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<LogSeqNum, LogRecord> eldest) {
+			return size() > UNDO_BUFFER_SIZE;
+		}
+	};
+	// The last records of the other transactions compensated by this one,
+	// which only happens during recovery
+	private Map<Long, LogSeqNum> compTxLastLsns;
+
+	// The last records of the unfinished transactions, and the tables and
+	// indexes they modified, found by the analysis of a recovery
+	private Map<Long, LogSeqNum> loserLastLsns;
+	private Map<Long, Set<String>> loserResources;
 
 	/**
 	 * Creates a recovery manager for the specified transaction.
@@ -80,12 +156,13 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	public RecoveryMgr(long txNum, boolean isReadOnly) {
 		this.txNum = txNum;
 		if (!isReadOnly && enableLogging)
-			new StartRecord(txNum).writeToLog();
+			logStart();
 	}
 
 	/**
 	 * Writes a commit record to the log, and then flushes the log record to
-	 * disk.
+	 * disk. If the flush is deferred, the record is only appended, and the
+	 * listeners after this manager are responsible for flushing it.
 	 * 
 	 * @param tx
 	 *            the context of committing transaction
@@ -93,11 +170,35 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	@Override
 	public void onTxCommit(Transaction tx) {
 		if (!tx.isReadOnly() && enableLogging) {
-			LogSeqNum lsn = new CommitRecord(txNum).writeToLog();
-			VanillaDb.logMgr().flush(lsn);
+			LogSeqNum lsn = append(new CommitRecord(txNum, lastLsn));
+			if (isCommitFlushDeferred)
+				commitLsn = lsn;
+			else
+				VanillaDb.logMgr().flush(lsn);
 		}
 	}
 
+	/**
+	 * Makes {@link #onTxCommit(Transaction)} append the commit record without
+	 * flushing it. This allows a concurrency manager to release locks before
+	 * the commit is durable, as long as it flushes the record, which can be
+	 * obtained by {@link #getUnflushedCommitLsn()}, before the result of the
+	 * transaction is returned.
+	 */
+	public void deferCommitFlush() {
+		isCommitFlushDeferred = true;
+	}
+
+	/**
+	 * Returns the LSN of the commit record which has been appended but not
+	 * flushed by this manager.
+	 * 
+	 * @return the LSN of the commit record, or null if there is no such record
+	 */
+	public LogSeqNum getUnflushedCommitLsn() {
+		return commitLsn;
+	}
+
 	/**
 	 * Does the roll back process, writes a rollback record to the log, and
 	 * flushes the log record to disk.
@@ -106,7 +207,7 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	public void onTxRollback(Transaction tx) {
 		if (!tx.isReadOnly() && enableLogging) {
 			rollback(tx);
-			LogSeqNum lsn = new RollbackRecord(txNum).writeToLog();
+			LogSeqNum lsn = append(new RollbackRecord(txNum, lastLsn));
 			VanillaDb.logMgr().flush(lsn);
 		}
 	}
@@ -116,16 +217,30 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		// do nothing
 	}
 
+	/**
+	 * Returns the LSN of the start record of the transaction, before which the
+	 * transaction has no log records.
+	 * 
+	 * @return the LSN of the start record, or null if the transaction writes
+	 *         no log records
+	 */
+	public LogSeqNum getStartLsn() {
+		return startLsn;
+	}
+
 	/**
 	 * Writes a checkpoint record to the log.
 	 * 
 	 * @param txNums
 	 *            the transactions that are being executed when writing the
 	 *            checkpoint.
+	 * @param redoLsn
+	 *            the LSN from which the recovery has to redo, or null if all
+	 *            changes before the checkpoint are on disk
 	 * @return the LSN of the log record.
 	 */
-	public LogSeqNum checkpoint(List<Long> txNums) {
-		return new CheckpointRecord(txNums).writeToLog();
+	public LogSeqNum checkpoint(List<Long> txNums, LogSeqNum redoLsn) {
+		return new CheckpointRecord(txNums, redoLsn).writeToLog();
 	}
 
 	/**
@@ -144,7 +259,7 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 			BlockId blk = buff.block();
 			if (isTempBlock(blk))
 				return null;
-			return new SetValueRecord(txNum, blk, offset, buff.getVal(offset, newVal.getType()), newVal).writeToLog();
+			return append(new SetValueRecord(txNum, lastLsn, blk, offset, buff.getVal(offset, newVal.getType()), newVal));
 		} else
 			return null;
 	}
@@ -152,7 +267,7 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	public LogSeqNum logLogicalStart() {
 		if (enableLogging) {
 			// Store logicalStartLSN inside the RecoveryMgr
-			this.logicalStartLSN = new LogicalStartRecord(txNum).writeToLog();
+			this.logicalStartLSN = append(new LogicalStartRecord(txNum, lastLsn));
 			return this.logicalStartLSN;
 		} else
 			return null;
@@ -171,7 +286,7 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	 */
 	public LogSeqNum logLogicalAbort(long txNum, LogSeqNum undoNextLSN) {
 		if (enableLogging) {
-			return new LogicalAbortRecord(txNum, undoNextLSN).writeToLog();
+			return append(new LogicalAbortRecord(txNum, lastLsnOf(txNum), undoNextLSN));
 		} else
 			return null;
 	}
@@ -180,8 +295,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logRecordFileInsertionEnd)");
-			LogSeqNum lsn = new RecordFileInsertEndRecord(txNum, tblName, blkNum, slotId, this.logicalStartLSN)
-					.writeToLog();
+			LogSeqNum lsn = append(new RecordFileInsertEndRecord(txNum, lastLsn, tblName, blkNum, slotId,
+					this.logicalStartLSN));
 			this.logicalStartLSN = null;
 			return lsn;
 		} else
@@ -192,8 +307,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logRecordFileDeletionEnd)");
-			LogSeqNum lsn = new RecordFileDeleteEndRecord(txNum, tblName, blkNum, slotId, this.logicalStartLSN)
-					.writeToLog();
+			LogSeqNum lsn = append(new RecordFileDeleteEndRecord(txNum, lastLsn, tblName, blkNum, slotId,
+					this.logicalStartLSN));
 			this.logicalStartLSN = null;
 			return lsn;
 		} else
@@ -205,8 +320,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logIndexInsertionEnd)");
-			LogSeqNum lsn = new IndexInsertEndRecord(txNum, indexName, searchKey, recordBlockNum, recordSlotId,
-					this.logicalStartLSN).writeToLog();
+			LogSeqNum lsn = append(new IndexInsertEndRecord(txNum, lastLsn, indexName, searchKey, recordBlockNum,
+					recordSlotId, this.logicalStartLSN));
 			this.logicalStartLSN = null;
 			return lsn;
 		} else
@@ -217,8 +332,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logIndexDeletionEnd)");
-			LogSeqNum lsn = new IndexDeleteEndRecord(txNum, indexName, searchKey, recordBlockNum, recordSlotId,
-					this.logicalStartLSN).writeToLog();
+			LogSeqNum lsn = append(new IndexDeleteEndRecord(txNum, lastLsn, indexName, searchKey, recordBlockNum,
+					recordSlotId, this.logicalStartLSN));
 			this.logicalStartLSN = null;
 			return lsn;
 		} else
@@ -227,14 +342,14 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 
 	public LogSeqNum logIndexPageInsertion(BlockId indexBlkId, boolean isDirPage, SearchKeyType keyType, int slotId) {
 		if (enableLogging) {
-			return new IndexPageInsertRecord(txNum, indexBlkId, isDirPage, keyType, slotId).writeToLog();
+			return append(new IndexPageInsertRecord(txNum, lastLsn, indexBlkId, isDirPage, keyType, slotId));
 		} else
 			return null;
 	}
 
 	public LogSeqNum logIndexPageDeletion(BlockId indexBlkId, boolean isDirPage, SearchKeyType keyType, int slotId) {
 		if (enableLogging) {
-			return new IndexPageDeleteRecord(txNum, indexBlkId, isDirPage, keyType, slotId).writeToLog();
+			return append(new IndexPageDeleteRecord(txNum, lastLsn, indexBlkId, isDirPage, keyType, slotId));
 		} else
 			return null;
 	}
@@ -242,7 +357,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	public LogSeqNum logIndexPageInsertionClr(long compTxNum, BlockId indexBlkId, boolean isDirPage,
 			SearchKeyType keyType, int slotId, LogSeqNum undoNextLSN) {
 		if (enableLogging) {
-			return new IndexPageInsertClr(compTxNum, indexBlkId, isDirPage, keyType, slotId, undoNextLSN).writeToLog();
+			return append(new IndexPageInsertClr(compTxNum, lastLsnOf(compTxNum), indexBlkId, isDirPage, keyType,
+					slotId, undoNextLSN));
 		} else
 			return null;
 	}
@@ -250,7 +366,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	public LogSeqNum logIndexPageDeletionClr(long compTxNum, BlockId indexBlkId, boolean isDirPage,
 			SearchKeyType keyType, int slotId, LogSeqNum undoNextLSN) {
 		if (enableLogging) {
-			return new IndexPageDeleteClr(compTxNum, indexBlkId, isDirPage, keyType, slotId, undoNextLSN).writeToLog();
+			return append(new IndexPageDeleteClr(compTxNum, lastLsnOf(compTxNum), indexBlkId, isDirPage, keyType,
+					slotId, undoNextLSN));
 		} else
 			return null;
 	}
@@ -260,143 +377,80 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 			BlockId blk = buff.block();
 			if (isTempBlock(blk))
 				return null;
-			return new SetValueClr(compTxNum, blk, offset, buff.getVal(offset, newVal.getType()), newVal, undoNextLSN)
-					.writeToLog();
+			return append(new SetValueClr(compTxNum, lastLsnOf(compTxNum), blk, offset,
+					buff.getVal(offset, newVal.getType()), newVal, undoNextLSN));
 		} else
 			return null;
 	}
 
 	/**
-	 * Rolls back the transaction. The method iterates through the log records,
-	 * calling {@link LogRecord#undo(Transaction)} for each log record it finds
-	 * for the transaction, until it finds the transaction's START record.
+	 * Rolls back the transaction. The method follows the chain of the log
+	 * records of the transaction backward, calling
+	 * {@link LogRecord#undo(Transaction)} for each log record, until it finds
+	 * the transaction's START record. The records of a logical operation and
+	 * the records already compensated are skipped as a whole.
 	 */
 	void rollback(Transaction tx) {
-		ReversibleIterator<LogRecord> iter = new LogRecordIterator();
-		LogSeqNum txUnDoNextLSN = null;
-		while (iter.hasNext()) {
-			LogRecord rec = iter.next();
-			if (rec.txNumber() == txNum) {
-				if (txUnDoNextLSN != null) {
-					if (txUnDoNextLSN.compareTo(rec.getLSN()) != 1)
-						continue;
-				}
-				if (rec.op() == OP_START)
-					return;
-				else if (rec instanceof LogicalEndRecord) {
-
-					// Undo this Logical operation;
-					rec.undo(tx);
-					/*
-					 * Extract the logicalStartLSN form rec by casting it as a
-					 * LogicalEndRecord
-					 */
-					LogSeqNum logicalStartLSN = ((LogicalEndRecord) rec).getlogicalStartLSN();
-
-					/*
-					 * Save the Logical Start LSN to skip the log records
-					 * between the end record and the start record
-					 */
-					txUnDoNextLSN = logicalStartLSN;
-
-				} else
-					rec.undo(tx);
-			}
-		}
+		rollbackPartially(tx, Integer.MAX_VALUE);
 	}
 
 	void rollbackPartially(Transaction tx, int stepsInUndo) {
-		ReversibleIterator<LogRecord> iter = new LogRecordIterator();
-		LogSeqNum txUnDoNextLSN = null;
-		while (iter.hasNext() && stepsInUndo >= 0) {
-			LogRecord rec = iter.next();
+		UndoChainReader reader = new UndoChainReader();
+		LogSeqNum lsn = lastLsn;
+		while (lsn != null && stepsInUndo >= 0) {
+			LogRecord rec = reader.read(lsn);
 			stepsInUndo--;
-			if (rec.txNumber() == txNum) {
+			if (rec.op() == OP_START)
+				return;
+			else if (rec instanceof LogicalEndRecord) {
 
-				if (txUnDoNextLSN != null) {
-					if (txUnDoNextLSN.compareTo(rec.getLSN()) != 1)
-						continue;
-				}
-				if (rec.op() == OP_START)
-					return;
-				else if (rec instanceof LogicalEndRecord) {
+				// Undo this Logical operation;
+				rec.undo(tx);
 
-					rec.undo(tx);
+				/*
+				 * Skip the log records between the end record and the start
+				 * record, including the start record
+				 */
+				LogSeqNum logicalStartLSN = ((LogicalEndRecord) rec).getlogicalStartLSN();
+				lsn = reader.read(logicalStartLSN).getPrevLSN();
 
-					LogSeqNum logicalStartLSN = ((LogicalEndRecord) rec).getlogicalStartLSN();
+			} else if (rec instanceof CompesationLogRecord) {
 
-					txUnDoNextLSN = logicalStartLSN;
+				// Skip the records which have been rolled back
+				LogSeqNum undoNextLSN = ((CompesationLogRecord) rec).getUndoNextLSN();
+				lsn = reader.read(undoNextLSN).getPrevLSN();
 
-				} else
-					rec.undo(tx);
+			} else {
+				rec.undo(tx);
+				lsn = rec.getPrevLSN();
 			}
 		}
 	}
 
 	/**
-	 * Does a complete database recovery. The method iterates through the log
-	 * records. Whenever it finds a log record for an unfinished transaction, it
-	 * calls {@link LogRecord#undo(Transaction)} on that record. The method
-	 * stops iterating forward when it encounters a CHECKPOINT record and finds
-	 * all the transactions which were executing when the checkpoint took place,
-	 * or when the end of the log is reached. The method then iterates backward
-	 * and redoes all finished transactions. TODO fix comments...
+	 * Does a complete database recovery. The method first analyzes the log
+	 * backward and redoes the history forward, as described in
+	 * {@link #analyzeAndRedo(Transaction)}. It then iterates through the log
+	 * records backward again. Whenever it finds a log record for an unfinished
+	 * transaction, it calls {@link LogRecord#undo(Transaction)} on that record,
+	 * until the start records of all the unfinished transactions are found.
+	 * <p>
+	 * The unfinished transactions modifying different tables and indexes are
+	 * undone in parallel. Each group of the ones sharing a table or an index
+	 * goes to a worker, which undoes their records in the order they are met,
+	 * and compensates them with its own transaction.
 	 */
 	void recoverSystem(Transaction tx) {
-		Set<Long> finishedTxs = new HashSet<Long>();
-		Set<Long> unCompletedTxs = new HashSet<Long>();
-
-		List<Long> txsOnCheckpointing = null;
-		ReversibleIterator<LogRecord> iter = new LogRecordIterator();
-		/*
-		 * analyze phase: Find the earliest unfinished txNum
-		 */
-		// analyze phase
-		while (iter.hasNext()) {
-			LogRecord rec = iter.next();
-
-			int op = rec.op();
-			if (op == OP_CHECKPOINT) {
-				// Since we flush all dirtyPage at checkpoint, therefore no need
-				// to find the start record of active txNum
-				txsOnCheckpointing = ((CheckpointRecord) rec).activeTxNums();
-				for (long acTxn : txsOnCheckpointing) {
-					// txNum give us info of possible unFinshedTxs,
-					// Check if those weren't in finishedTxs, and add it to the
-					// uncompletedTxs
-					if (!finishedTxs.contains(acTxn))
-						unCompletedTxs.add(acTxn);
-				}
-				// Start Redo From checkpoint
-				break;
-			}
-
-			if (op == OP_COMMIT) {
-				finishedTxs.add(rec.txNumber());
-			} else if (op == OP_ROLLBACK) {
-				finishedTxs.add(rec.txNumber());
-			} else if (op == OP_START && !finishedTxs.contains(rec.txNumber())) {
-				unCompletedTxs.add(rec.txNumber());
-			}
-
-		}
-
-		finishedTxs = null;
-		/*
-		 * redo phase: Repeating History
-		 */
-
-		while (iter.hasPrevious()) {
-			LogRecord rec = iter.previous();
-
-			rec.redo(tx);
-
-		}
+		Set<Long> unCompletedTxs = analyzeAndRedo(tx);
 
 		// remove the recovery tx from unCompletedTxs set
 		unCompletedTxs.remove(tx.getTransactionNumber());
+		compTxLastLsns = new HashMap<Long, LogSeqNum>();
+
+		Map<Long, Integer> groups = RECOVERY_WORKERS > 1 ? groupLosers(unCompletedTxs, loserResources) : null;
+		RecoveryWorkers workers = groups == null ? null : startUndoWorkers(groups);
 
-		iter = new LogRecordIterator();
+		ReversibleIterator<LogRecord> iter = new LogRecordIterator();
 		/*
 		 * undo phase: undo all actions performed by the active txs during last
 		 * crash
@@ -408,6 +462,11 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 			int op = rec.op();
 			if (!unCompletedTxs.contains(rec.txNumber()) || op == OP_COMMIT || op == OP_ROLLBACK)
 				continue;
+
+			// The first record met is the last one of the transaction, which
+			// the compensation records will follow
+			if (!compTxLastLsns.containsKey(rec.txNumber()))
+				compTxLastLsns.put(rec.txNumber(), rec.getLSN());
 			/*
 			 * Use UnDoNextLSN to skip unnecessary physical record which have
 			 * been redo its undo by CLR or records have been rolled back
@@ -422,7 +481,7 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 			else if (rec instanceof LogicalEndRecord) {
 
 				// Undo this Logical operation;
-				rec.undo(tx);
+				undo(rec, tx, workers, groups);
 				/*
 				 * Extract the logicalStartLSN form rec by casting it as a
 				 * LogicalEndRecord
@@ -447,35 +506,110 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 				 */
 				txUnDoNextLSN.put(rec.txNumber(), undoNextLSN);
 			} else
-				rec.undo(tx);
+				undo(rec, tx, workers, groups);
 
 			if (unCompletedTxs.size() == 0)
 				break;
 
 		}
+
+		if (workers != null)
+			workers.finish();
 	}
 
 	void recoverSystemPartially(Transaction tx, int stepsInUndo) {
+		Set<Long> unCompletedTxs = analyzeAndRedo(tx);
+
+		unCompletedTxs.remove(tx.getTransactionNumber());
+		compTxLastLsns = new HashMap<Long, LogSeqNum>();
+
+		ReversibleIterator<LogRecord> iter = new LogRecordIterator();
+		/*
+		 * undo phase: undo all actions performed by the active txs during last
+		 * crash
+		 */
+
+		while (iter.hasNext() && stepsInUndo >= 0) {
+			LogRecord rec = iter.next();
+			// System.out.println(rec.getLSN() + rec.toString());
+			stepsInUndo--;
+			int op = rec.op();
+			if (!unCompletedTxs.contains(rec.txNumber()) || op == OP_COMMIT || op == OP_ROLLBACK)
+				continue;
+
+			// The first record met is the last one of the transaction, which
+			// the compensation records will follow
+			if (!compTxLastLsns.containsKey(rec.txNumber()))
+				compTxLastLsns.put(rec.txNumber(), rec.getLSN());
+
+			if (txUnDoNextLSN.containsKey(rec.txNumber())) {
+				if (txUnDoNextLSN.get(rec.txNumber()).compareTo(rec.getLSN()) != 1)
+					continue;
+			}
+			if (op == OP_START)
+				unCompletedTxs.remove(rec.txNumber());
+			else if (rec instanceof LogicalEndRecord) {
+
+				rec.undo(tx);
+
+				LogSeqNum logicalStartLSN = ((LogicalEndRecord) rec).getlogicalStartLSN();
+
+				txUnDoNextLSN.put(rec.txNumber(), logicalStartLSN);
+
+			} else if (rec instanceof CompesationLogRecord) {
+
+				LogSeqNum undoNextLSN = ((CompesationLogRecord) rec).getUndoNextLSN();
+
+				txUnDoNextLSN.put(rec.txNumber(), undoNextLSN);
+			} else
+				rec.undo(tx);
+
+			if (unCompletedTxs.size() == 0)
+				break;
+
+		}
+	}
+
+	/**
+	 * Does the analysis and redo phases of a recovery. The analysis iterates
+	 * through the log records backward, finding the transactions that were
+	 * not finished, until it meets the last CHECKPOINT record and then the
+	 * redo LSN the record keeps, before which all the changes are on disk.
+	 * The method then iterates forward and redoes all the records from there,
+	 * which repeats the history of both finished and unfinished transactions.
+	 * <p>
+	 * The records modifying pages are dispatched to the workers by their
+	 * blocks, so the records of a page are redone in order by one worker,
+	 * while different pages are redone in parallel. A record is skipped if the
+	 * page already has its LSN or a later one.
+	 * 
+	 * @return the transactions that were not finished
+	 */
+	private Set<Long> analyzeAndRedo(Transaction tx) {
 		Set<Long> finishedTxs = new HashSet<Long>();
 		Set<Long> unCompletedTxs = new HashSet<Long>();
+		loserLastLsns = new HashMap<Long, LogSeqNum>();
+		loserResources = new HashMap<Long, Set<String>>();
 
-		List<Long> txsOnCheckpointing = null;
+		LogSeqNum redoLsn = null;
 		ReversibleIterator<LogRecord> iter = new LogRecordIterator();
 		/*
-		 * analyze phase: Find the earliest unfinished txNum
+		 * analyze phase: Find the unfinished txs and where to redo from
 		 */
 		while (iter.hasNext()) {
 			LogRecord rec = iter.next();
 
 			int op = rec.op();
-			if (op == OP_CHECKPOINT) {
-				txsOnCheckpointing = ((CheckpointRecord) rec).activeTxNums();
-				for (long acTxn : txsOnCheckpointing) {
-
+			if (op == OP_CHECKPOINT && redoLsn == null) {
+				// The buffers are not flushed at checkpointing, so the
+				// changes from the redo LSN on have to be redone, and the
+				// start records of the active txs have to be found
+				CheckpointRecord ckpt = (CheckpointRecord) rec;
+				for (long acTxn : ckpt.activeTxNums()) {
 					if (!finishedTxs.contains(acTxn))
 						unCompletedTxs.add(acTxn);
 				}
-				break;
+				redoLsn = ckpt.redoLsn();
 			}
 
 			if (op == OP_COMMIT) {
@@ -486,61 +620,339 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 				unCompletedTxs.add(rec.txNumber());
 			}
 
+			// The records of a transaction not finished yet are met after
+			// its last one, which is met first
+			long txNum = rec.txNumber();
+			if (op != OP_CHECKPOINT && !finishedTxs.contains(txNum)) {
+				if (!loserLastLsns.containsKey(txNum))
+					loserLastLsns.put(txNum, rec.getLSN());
+				if (rec instanceof PageLogRecord) {
+					Set<String> resources = loserResources.get(txNum);
+					if (resources == null) {
+						resources = new HashSet<String>();
+						loserResources.put(txNum, resources);
+					}
+					resources.add(resourceOf(((PageLogRecord) rec).block()));
+				}
+			}
+
+			if (redoLsn != null && rec.getLSN().compareTo(redoLsn) <= 0)
+				break;
 		}
 
-		finishedTxs = null;
 		/*
 		 * redo phase: Repeating History
 		 */
-
+		RecoveryWorkers workers = null;
+		if (RECOVERY_WORKERS > 1) {
+			// The workers only fix the pages, which needs no locks and no logs
+			Transaction[] txs = new Transaction[RECOVERY_WORKERS];
+			for (int i = 0; i < txs.length; i++)
+				txs[i] = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, true);
+			workers = new RecoveryWorkers(txs, true);
+		}
 		while (iter.hasPrevious()) {
 			LogRecord rec = iter.previous();
 
-			rec.redo(tx);
+			if (redoLsn != null && rec.getLSN().compareTo(redoLsn) < 0)
+				continue;
+			/*
+			 * Only the page records change anything when redone. The headers
+			 * of the record files and the pages of the indices are logged as
+			 * set-value and index page records, so they are dispatched by
+			 * their blocks like the others. The remaining records, including
+			 * the logical end records of the record files and the indices,
+			 * redo nothing, so it is safe to redo them here ahead of the page
+			 * records still queued on the workers. A record which redoes
+			 * anything off the pages must wait for the workers first.
+			 */
+			if (workers != null && rec instanceof PageLogRecord)
+				workers.dispatch(((PageLogRecord) rec).block().hashCode() & Integer.MAX_VALUE, rec);
+			else
+				rec.redo(tx);
+		}
+		if (workers != null)
+			workers.finish();
 
+		return unCompletedTxs;
+	}
+
+	/**
+	 * Groups the specified unfinished transactions by the resources they
+	 * modified, so that the ones modifying the same table or index are in the
+	 * same group.
+	 * 
+	 * @return the group of each transaction, or null if they cannot be undone
+	 *         in parallel
+	 */
+	static Map<Long, Integer> groupLosers(Set<Long> txs, Map<Long, Set<String>> txResources) {
+		// Union-find over the transactions, linked by their resources
+		Map<Long, Long> parents = new HashMap<Long, Long>();
+		Map<String, Long> owners = new HashMap<String, Long>();
+		for (long txNum : txs) {
+			parents.put(txNum, txNum);
+			Set<String> resources = txResources.get(txNum);
+			if (resources == null)
+				continue;
+			for (String res : resources) {
+				if (CATALOG_FILES.contains(res))
+					return null;
+				Long owner = owners.get(res);
+				if (owner == null)
+					owners.put(res, txNum);
+				else
+					parents.put(findRoot(parents, txNum), findRoot(parents, owner));
+			}
 		}
 
-		unCompletedTxs.remove(tx.getTransactionNumber());
+		Map<Long, Integer> rootGroups = new HashMap<Long, Integer>();
+		Map<Long, Integer> groups = new HashMap<Long, Integer>();
+		for (long txNum : txs) {
+			long root = findRoot(parents, txNum);
+			Integer group = rootGroups.get(root);
+			if (group == null) {
+				group = rootGroups.size();
+				rootGroups.put(root, group);
+			}
+			groups.put(txNum, group);
+		}
+		return rootGroups.size() > 1 ? groups : null;
+	}
 
-		iter = new LogRecordIterator();
-		/*
-		 * undo phase: undo all actions performed by the active txs during last
-		 * crash
-		 */
+	private static long findRoot(Map<Long, Long> parents, long txNum) {
+		long root = txNum;
+		while (parents.get(root) != root)
+			root = parents.get(root);
+		parents.put(txNum, root);
+		return root;
+	}
 
-		while (iter.hasNext() && stepsInUndo >= 0) {
-			LogRecord rec = iter.next();
-			// System.out.println(rec.getLSN() + rec.toString());
-			stepsInUndo--;
-			int op = rec.op();
-			if (!unCompletedTxs.contains(rec.txNumber()) || op == OP_COMMIT || op == OP_ROLLBACK)
-				continue;
+	/**
+	 * Starts the workers undoing the specified groups of the unfinished
+	 * transactions. The transactions of the workers are numbered after the
+	 * unfinished ones, so that their records are not mistaken for each other.
+	 */
+	private RecoveryWorkers startUndoWorkers(Map<Long, Integer> groups) {
+		int numOfGroups = new HashSet<Integer>(groups.values()).size();
+		Transaction[] txs = new Transaction[Math.min(RECOVERY_WORKERS, numOfGroups)];
+		long txNum = Math.max(VanillaDb.txMgr().getNextTxNum(), Collections.max(groups.keySet()) + 1);
+		for (int i = 0; i < txs.length; i++) {
+			txs[i] = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false, txNum + i);
+			txs[i].recoveryMgr().compTxLastLsns = new HashMap<Long, LogSeqNum>(loserLastLsns);
+		}
+		return new RecoveryWorkers(txs, false);
+	}
 
-			if (txUnDoNextLSN.containsKey(rec.txNumber())) {
-				if (txUnDoNextLSN.get(rec.txNumber()).compareTo(rec.getLSN()) != 1)
-					continue;
+	private static void undo(LogRecord rec, Transaction tx, RecoveryWorkers workers, Map<Long, Integer> groups) {
+		if (workers == null)
+			rec.undo(tx);
+		else
+			workers.dispatch(groups.get(rec.txNumber()), rec);
+	}
+
+	/**
+	 * Returns the name of the resource the specified block belongs to, which
+	 * is the file of a table, or the leaf file of a B-tree index, whose
+	 * directory is modified along with the leaves.
+	 */
+	private static String resourceOf(BlockId blk) {
+		String fileName = blk.fileName();
+		if (fileName.endsWith(BTREE_DIR_POSTFIX))
+			return BTreeLeaf.getFileName(
+					fileName.substring(0, fileName.length() - BTREE_DIR_POSTFIX.length()));
+		return fileName;
+	}
+
+	/**
+	 * Writes a start record, which begins a new chain of the log records of
+	 * this transaction.
+	 */
+	private void logStart() {
+		undoBuffer.clear();
+		lastLsn = null;
+		startLsn = append(new StartRecord(txNum));
+	}
+
+	/**
+	 * Writes the specified log record, and links it to the chain of its
+	 * transaction.
+	 */
+	private LogSeqNum append(LogRecord rec) {
+		LogSeqNum lsn = rec.writeToLog();
+		if (rec.txNumber() == txNum) {
+			lastLsn = lsn;
+			undoBuffer.put(lsn, rec);
+		} else
+			compTxLastLsns.put(rec.txNumber(), lsn);
+		return lsn;
+	}
+
+	/**
+	 * Returns the LSN of the last log record of the specified transaction,
+	 * which is either this transaction or one compensated by it.
+	 */
+	private LogSeqNum lastLsnOf(long txNum) {
+		if (txNum == this.txNum)
+			return lastLsn;
+		LogSeqNum lsn = compTxLastLsns == null ? null : compTxLastLsns.get(txNum);
+		return lsn == null ? LogSeqNum.DEFAULT_VALUE : lsn;
+	}
+
+	/**
+	 * Reads the log records of the chain of this transaction, from the undo
+	 * buffer if they are still there, or else from the log file, where the
+	 * chain usually stays in the same block for a while.
+	 */
+	private class UndoChainReader {
+		private Page page;
+		private long blkNum = -1;
+
+		LogRecord read(LogSeqNum lsn) {
+			LogRecord rec = undoBuffer.get(lsn);
+			if (rec != null)
+				return rec;
+
+			if (page == null)
+				page = new Page();
+			BasicLogRecord basicRec;
+			if (lsn.blkNum() == blkNum)
+				basicRec = new BasicLogRecord(page, lsn);
+			else {
+				basicRec = VanillaDb.logMgr().read(lsn, page);
+				blkNum = lsn.blkNum();
 			}
-			if (op == OP_START)
-				unCompletedTxs.remove(rec.txNumber());
-			else if (rec instanceof LogicalEndRecord) {
+			return LogRecordIterator.toLogRecord(basicRec);
+		}
+	}
 
-				rec.undo(tx);
+	/**
+	 * The workers of a recovery. Each of them redoes or undoes the records
+	 * dispatched to it in order, with its own transaction, which is committed
+	 * once all the records are done.
+	 */
+	private static class RecoveryWorkers {
+		private final RecoveryWorker[] workers;
+		private final CountDownLatch finished;
+
+		RecoveryWorkers(Transaction[] txs, boolean isRedo) {
+			workers = new RecoveryWorker[txs.length];
+			finished = new CountDownLatch(txs.length);
+			for (int i = 0; i < txs.length; i++) {
+				workers[i] = new RecoveryWorker(i, txs[i], isRedo, finished);
+				VanillaDb.taskMgr().runTask(workers[i]);
+			}
+		}
 
-				LogSeqNum logicalStartLSN = ((LogicalEndRecord) rec).getlogicalStartLSN();
+		/**
+		 * Dispatches the record to the worker of the specified key. The
+		 * records of the same key are done in the order they are dispatched.
+		 */
+		void dispatch(int key, LogRecord rec) {
+			workers[key % workers.length].dispatch(rec);
+		}
 
-				txUnDoNextLSN.put(rec.txNumber(), logicalStartLSN);
+		/**
+		 * Waits for the workers to finish the records dispatched so far.
+		 */
+		void finish() {
+			for (RecoveryWorker worker : workers)
+				worker.close();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					finished.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
 
-			} else if (rec instanceof CompesationLogRecord) {
+			for (RecoveryWorker worker : workers)
+				if (worker.failure != null)
+					throw worker.failure;
+		}
+	}
 
-				LogSeqNum undoNextLSN = ((CompesationLogRecord) rec).getUndoNextLSN();
+	private static class RecoveryWorker extends Task {
+		private static final int BATCH_SIZE = 128, QUEUE_SIZE = 64;
+
+		private final int id;
+		private final Transaction tx;
+		private final boolean isRedo;
+		private final CountDownLatch finished;
+		private final BlockingQueue<List<LogRecord>> queue = new ArrayBlockingQueue<List<LogRecord>>(QUEUE_SIZE);
+		// Only accessed by the dispatching thread
+		private List<LogRecord> batch = new ArrayList<LogRecord>(BATCH_SIZE);
+		// Read after the worker finishes
+		private RuntimeException failure;
+
+		RecoveryWorker(int id, Transaction tx, boolean isRedo, CountDownLatch finished) {
+			this.id = id;
+			this.tx = tx;
+			this.isRedo = isRedo;
+			this.finished = finished;
+		}
 
-				txUnDoNextLSN.put(rec.txNumber(), undoNextLSN);
-			} else
-				rec.undo(tx);
+		@Override
+		public void run() {
+			Thread.currentThread().setName("Recovery-Worker-" + id);
+			try {
+				List<LogRecord> recs;
+				while (!(recs = queue.take()).isEmpty()) {
+					// Keep taking the records after a failure, so that the
+					// dispatching thread is not blocked
+					if (failure != null)
+						continue;
+					try {
+						for (LogRecord rec : recs) {
+							if (isRedo)
+								rec.redo(tx);
+							else
+								rec.undo(tx);
+						}
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+				}
+				if (failure == null)
+					tx.commit();
+			} catch (InterruptedException e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("the recovery worker " + id + " is interrupted");
+				failure = new RuntimeException("the recovery worker is interrupted", e);
+			} finally {
+				finished.countDown();
+			}
+		}
 
-			if (unCompletedTxs.size() == 0)
-				break;
+		void dispatch(LogRecord rec) {
+			batch.add(rec);
+			if (batch.size() == BATCH_SIZE) {
+				put(batch);
+				batch = new ArrayList<LogRecord>(BATCH_SIZE);
+			}
+		}
 
+		void close() {
+			if (!batch.isEmpty())
+				put(batch);
+			put(Collections.<LogRecord>emptyList());
+		}
+
+		private void put(List<LogRecord> recs) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					queue.put(recs);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
 	}
 
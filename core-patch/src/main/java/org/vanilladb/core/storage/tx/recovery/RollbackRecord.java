@@ -33,15 +33,19 @@ import org.vanilladb.core.storage.tx.Transaction;
 class RollbackRecord implements LogRecord {
 	private long txNum;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
 	/**
 	 * Creates a new rollback log record for the specified transaction.
 	 * 
 	 * @param txNum
 	 *            the ID of the specified transaction
+	 * @param prevLsn
+	 *            the LSN of the previous log record of the transaction
 	 */
-	public RollbackRecord(long txNum) {
+	public RollbackRecord(long txNum, LogSeqNum prevLsn) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.lsn = null;
 	}
 
@@ -53,6 +57,7 @@ class RollbackRecord implements LogRecord {
 	 */
 	public RollbackRecord(BasicLogRecord rec) {
 		this.txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		lsn = rec.getLSN();
 	}
 
@@ -66,7 +71,8 @@ class RollbackRecord implements LogRecord {
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 	}
 
 	@Override
@@ -105,6 +111,8 @@ class RollbackRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		return rec;
 	}
 
@@ -113,4 +121,9 @@ class RollbackRecord implements LogRecord {
 
 		return lsn;
 	}
+
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
 }
@@ -34,7 +34,7 @@ import org.vanilladb.core.storage.log.BasicLogRecord;
 import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 
-class SetValueRecord implements LogRecord {
+class SetValueRecord implements LogRecord, PageLogRecord {
 	private long txNum;
 	private int offset;
 	private Type type;
@@ -42,12 +42,15 @@ class SetValueRecord implements LogRecord {
 	private Constant newVal;
 	private BlockId blk;
 	private LogSeqNum lsn;
+	private LogSeqNum prevLsn;
 
 	/**
 	 * Creates a new setval log record.
 	 * 
 	 * @param txNum
 	 *            the ID of the specified transaction
+	 * @param prevLsn
+	 *            the LSN of the previous log record of the transaction
 	 * @param blk
 	 *            the block containing the value
 	 * @param offset
@@ -57,8 +60,9 @@ class SetValueRecord implements LogRecord {
 	 * @param newVal
 	 *            the new value
 	 */
-	public SetValueRecord(long txNum, BlockId blk, int offset, Constant val, Constant newVal) {
+	public SetValueRecord(long txNum, LogSeqNum prevLsn, BlockId blk, int offset, Constant val, Constant newVal) {
 		this.txNum = txNum;
+		this.prevLsn = prevLsn;
 		this.blk = blk;
 		this.offset = offset;
 		this.type = val.getType();
@@ -77,6 +81,7 @@ class SetValueRecord implements LogRecord {
 	 */
 	public SetValueRecord(BasicLogRecord rec) {
 		txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		prevLsn = new LogSeqNum((Long) rec.nextVal(BIGINT).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		blk = new BlockId((String) rec.nextVal(VARCHAR).asJavaVal(), (Long) rec.nextVal(BIGINT).asJavaVal());
 		offset = (Integer) rec.nextVal(INTEGER).asJavaVal();
 		int sqlType = (Integer) rec.nextVal(INTEGER).asJavaVal();
@@ -99,7 +104,8 @@ class SetValueRecord implements LogRecord {
 	public LogSeqNum writeToLog() {
 
 		List<Constant> rec = buildRecord();
-		return logMgr.append(rec.toArray(new Constant[rec.size()]));
+		lsn = logMgr.append(rec.toArray(new Constant[rec.size()]));
+		return lsn;
 
 	}
 
@@ -113,6 +119,11 @@ class SetValueRecord implements LogRecord {
 		return txNum;
 	}
 
+	@Override
+	public BlockId block() {
+		return blk;
+	}
+
 	@Override
 	public String toString() {
 		return "<SETVAL " + op() + " " + txNum + " " + blk + " " + offset + " " + type + " " + val + " " + newVal + ">";
@@ -121,7 +132,8 @@ class SetValueRecord implements LogRecord {
 	/**
 	 * Replaces the specified data value with the value saved in the log record.
 	 * The method pins a buffer to the specified block, calls setInt to restore
-	 * the saved value (using a dummy LSN), and unpins the buffer.
+	 * the saved value (using the LSN of the compensation record), and unpins
+	 * the buffer.
 	 * 
 	 * @see LogRecord#undo(Transaction)
 	 */
@@ -129,11 +141,17 @@ class SetValueRecord implements LogRecord {
 	public void undo(Transaction tx) {
 		Buffer buff = tx.bufferMgr().pin(blk);
 		
-		LogSeqNum lsn = tx.recoveryMgr().logSetValClr(this.txNum, buff, offset, val, this.lsn);
-		VanillaDb.logMgr().flush(lsn);
-		
-		buff.setVal(offset, val, tx.getTransactionNumber(), null);
+		LogSeqNum lsn;
+		buff.lockFlushing();
+		try {
+			lsn = tx.recoveryMgr().logSetValClr(this.txNum, buff, offset, val, this.lsn);
+			buff.setVal(offset, val, tx.getTransactionNumber(), lsn);
+		} finally {
+			buff.unlockFlushing();
+		}
 		tx.bufferMgr().unpin(buff);
+		if (lsn != null)
+			VanillaDb.logMgr().flush(lsn);
 		// Note that UndoNextLSN should be set to this log record's lsn in order
 		// to let RecoveryMgr to skip this log record. Since this record should
 		// be undo by the Clr append there.
@@ -146,14 +164,17 @@ class SetValueRecord implements LogRecord {
 	/**
 	 * Replaces the specified data value with the new value saved in the log
 	 * record. The method pins a buffer to the specified block, calls setInt to
-	 * restore the saved value (using a dummy LSN), and unpins the buffer.
+	 * restore the saved value (using the LSN of this record), and unpins the
+	 * buffer. The page is skipped if it already has the LSN of this record or
+	 * a later one, which means the change has been written with it.
 	 * 
 	 * @see LogRecord#redo(Transaction)
 	 */
 	@Override
 	public void redo(Transaction tx) {
 		Buffer buff = tx.bufferMgr().pin(blk);
-		buff.setVal(offset, newVal, tx.getTransactionNumber(), null);
+		if (lsn.compareTo(buff.lastLsn()) > 0)
+			buff.setVal(offset, newVal, tx.getTransactionNumber(), lsn);
 		tx.bufferMgr().unpin(buff);
 	}
 
@@ -162,6 +183,8 @@ class SetValueRecord implements LogRecord {
 		List<Constant> rec = new LinkedList<Constant>();
 		rec.add(new IntegerConstant(op()));
 		rec.add(new BigIntConstant(txNum));
+		rec.add(new BigIntConstant(prevLsn.blkNum()));
+		rec.add(new BigIntConstant(prevLsn.offset()));
 		rec.add(new VarcharConstant(blk.fileName()));
 		rec.add(new BigIntConstant(blk.number()));
 		rec.add(new IntegerConstant(offset));
@@ -177,4 +200,9 @@ class SetValueRecord implements LogRecord {
 		return lsn;
 	}
 
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return prevLsn;
+	}
+
 }
@@ -108,4 +108,12 @@ class StartRecord implements LogRecord {
 	public LogSeqNum getLSN() {
 		return lsn;
 	}
+
+	/**
+	 * Returns null, because a start record begins the chain of its transaction.
+	 */
+	@Override
+	public LogSeqNum getPrevLSN() {
+		return null;
+	}
 }
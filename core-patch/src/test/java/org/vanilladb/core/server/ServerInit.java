@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vanilladb.core.storage.file.FileMgr;
+
+/**
+ * Initializes the database the tests run on. The system can only be
+ * initialized once in a JVM, so all the test classes share the same database,
+ * which is created anew by the first of them.
+ */
+public class ServerInit {
+	public static final String CONFIG_FILE_PROPERTY = "org.vanilladb.core.config.file";
+	public static final String TEST_DB_NAME = "vanilladb_testdb";
+
+	static {
+		// Use the properties of the tests unless told otherwise
+		if (System.getProperty(CONFIG_FILE_PROPERTY) == null)
+			System.setProperty(CONFIG_FILE_PROPERTY, "target/test-classes/org/vanilladb/core/vanilladb.properties");
+	}
+
+	/**
+	 * Initializes the system on a new test database, unless it is initialized
+	 * already.
+	 */
+	public static void init() {
+		if (VanillaDb.isInited())
+			return;
+		deleteDb(TEST_DB_NAME);
+		VanillaDb.init(TEST_DB_NAME);
+	}
+
+	/**
+	 * Deletes the database of the specified name, along with its log files.
+	 *
+	 * @param dbName
+	 *            the name of the database
+	 */
+	public static void deleteDb(String dbName) {
+		deleteDir(new File(FileMgr.DB_FILES_DIR, dbName));
+		deleteDir(new File(FileMgr.LOG_FILES_DIR, dbName));
+	}
+
+	/**
+	 * Runs the main method of the specified class in a new JVM, which loads
+	 * the properties of the tests with some of them overridden. This is for
+	 * the settings that are loaded once in a JVM.
+	 *
+	 * @param mainCls
+	 *            the class to run
+	 * @param arg
+	 *            the argument to the main method
+	 * @param overrides
+	 *            the overriding properties, each in the form of "key=value"
+	 * @return the exit status of the new JVM
+	 */
+	public static int runInNewJvm(Class<?> mainCls, String arg, String... overrides)
+			throws IOException, InterruptedException {
+		File config = File.createTempFile("vanilladb", ".properties");
+		config.deleteOnExit();
+		InputStream in = new FileInputStream(System.getProperty(CONFIG_FILE_PROPERTY));
+		OutputStream out = new FileOutputStream(config);
+		try {
+			byte[] buf = new byte[4096];
+			for (int n = in.read(buf); n > 0; n = in.read(buf))
+				out.write(buf, 0, n);
+			// The later ones win
+			for (String override : overrides)
+				out.write(("\n" + override).getBytes("UTF-8"));
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.add("-D" + CONFIG_FILE_PROPERTY + "=" + config.getPath());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(mainCls.getName());
+		cmd.add(arg);
+		return new ProcessBuilder(cmd).inheritIO().start().waitFor();
+	}
+
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		dir.delete();
+	}
+}
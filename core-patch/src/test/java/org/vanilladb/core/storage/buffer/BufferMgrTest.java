@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Tests the buffer manager on small pools, which are set up in another JVM
+ * since the pools are created once in a JVM.
+ */
+public class BufferMgrTest {
+	private static final String POOLS_DB = ServerInit.TEST_DB_NAME + "_pools";
+	private static final String DEADLOCK = "deadlock", POOL_SIZE = "pool-size";
+	private static final String SMALL_FILE = "buffermgrtest_small.tbl", LARGE_FILE = "buffermgrtest_large.tbl";
+	private static final int DEFAULT_SIZE = 64, SMALL_SIZE = 2, LARGE_SIZE = 2 * DEFAULT_SIZE;
+	private static final long WAIT_TIME = 500, JOIN_TIMEOUT = 10000;
+
+	private static final PageFormatter EMPTY_FORMATTER = new PageFormatter() {
+		@Override
+		public void format(Buffer buf) {
+			// do nothing
+		}
+	};
+
+	/**
+	 * Runs a test on small pools in this JVM, and exits with 0 if it
+	 * succeeds.
+	 */
+	public static void main(String[] args) {
+		int status = 0;
+		try {
+			ServerInit.deleteDb(POOLS_DB);
+			VanillaDb.init(POOLS_DB);
+
+			if (args[0].equals(DEADLOCK))
+				checkDeadlockVictim();
+			else if (args[0].equals(POOL_SIZE))
+				checkPinsUpToPoolSize();
+			else
+				throw new IllegalArgumentException("unknown test: " + args[0]);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			status = 1;
+		}
+		Runtime.getRuntime().halt(status);
+	}
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+	}
+
+	@Test
+	public void testDeadlockVictim() throws Exception {
+		assertEquals("the deadlock test failed", 0, runInNewJvm(DEADLOCK));
+	}
+
+	@Test
+	public void testPinsUpToPoolSize() throws Exception {
+		assertEquals("the pool size test failed", 0, runInNewJvm(POOL_SIZE));
+	}
+
+	/**
+	 * Two transactions wait for each other's buffers of a full pool. The
+	 * younger one is aborted, and the older one gets the buffer released by
+	 * the rollback.
+	 */
+	private static void checkDeadlockVictim() throws Exception {
+		Transaction older = newTx(), younger = newTx();
+		older.bufferMgr().pinNew(SMALL_FILE, EMPTY_FORMATTER);
+		younger.bufferMgr().pinNew(SMALL_FILE, EMPTY_FORMATTER);
+
+		AtomicReference<Throwable> olderFailure = new AtomicReference<Throwable>();
+		AtomicReference<Throwable> youngerFailure = new AtomicReference<Throwable>();
+		Thread olderThread = pinNewInThread(older, olderFailure);
+		olderThread.start();
+		olderThread.join(WAIT_TIME);
+		assertTrue("the pool is not full", olderThread.isAlive());
+		Thread youngerThread = pinNewInThread(younger, youngerFailure);
+		youngerThread.start();
+
+		youngerThread.join(JOIN_TIMEOUT);
+		assertFalse("the deadlock is not broken", youngerThread.isAlive());
+		assertTrue(youngerFailure.get() instanceof BufferAbortException);
+		assertTrue("the older one is aborted", olderThread.isAlive());
+
+		younger.rollback();
+		olderThread.join(JOIN_TIMEOUT);
+		assertFalse("the older one is stuck", olderThread.isAlive());
+		assertNull(olderFailure.get());
+		older.rollback();
+	}
+
+	/**
+	 * A transaction can pin all buffers of a pool larger than the default
+	 * one, and is aborted only when it would wait for itself.
+	 */
+	private static void checkPinsUpToPoolSize() {
+		Transaction tx = newTx();
+		for (int i = 0; i < LARGE_SIZE; i++)
+			assertNotNull(tx.bufferMgr().pinNew(LARGE_FILE, EMPTY_FORMATTER));
+		try {
+			tx.bufferMgr().pinNew(LARGE_FILE, EMPTY_FORMATTER);
+			fail("the transaction waits for itself");
+		} catch (BufferAbortException e) {
+			// expected
+		}
+		tx.rollback();
+	}
+
+	private static Thread pinNewInThread(final Transaction tx, final AtomicReference<Throwable> failure) {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tx.bufferMgr().pinNew(SMALL_FILE, EMPTY_FORMATTER);
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		});
+	}
+
+	private static int runInNewJvm(String test) throws Exception {
+		String pools = BufferPools.class.getName();
+		return ServerInit.runInNewJvm(BufferMgrTest.class, test,
+				BufferMgr.class.getName() + ".BUFFER_POOL_SIZE=" + DEFAULT_SIZE,
+				pools + ".POOLS=small,large",
+				pools + ".small.SIZE=" + SMALL_SIZE,
+				pools + ".small.FILES=" + SMALL_FILE,
+				pools + ".large.SIZE=" + LARGE_SIZE,
+				pools + ".large.FILES=" + LARGE_FILE);
+	}
+
+	private static Transaction newTx() {
+		return VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+	}
+}
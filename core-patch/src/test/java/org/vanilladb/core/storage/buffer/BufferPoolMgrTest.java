@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.file.io.IoAllocator;
+
+public class BufferPoolMgrTest {
+	private static final String RACE_FILE = "bufferpoolmgrtest_race.tbl";
+	private static final int POOL_SIZE = 4, NUM_OF_BLOCKS = 16, NUM_OF_THREADS = 8, NUM_OF_PINS = 20000;
+	private static final long JOIN_TIMEOUT = 60000;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+	}
+
+	/**
+	 * A claimed buffer cannot be pinned without the swap lock, and a pinned
+	 * buffer cannot be claimed. Pinning with the swap lock drops the claim.
+	 */
+	@Test
+	public void testClaimExcludesPins() {
+		Buffer buff = new Buffer(0, new AtomicInteger(), IoAllocator.newIoBuffer(Page.BLOCK_SIZE));
+		assertTrue(buff.tryClaim());
+		assertFalse(buff.tryClaim());
+		assertEquals(-1, buff.tryPin());
+		assertFalse(buff.isPinned());
+		buff.releaseClaim();
+
+		assertEquals(1, buff.tryPin());
+		assertFalse("a pinned buffer is claimed", buff.tryClaim());
+		assertEquals(0, buff.unpin());
+
+		assertTrue(buff.tryClaim());
+		assertEquals(1, buff.pin());
+		// The claim was dropped by the pin
+		buff.releaseClaim();
+		assertEquals(2, buff.tryPin());
+		assertEquals(1, buff.unpin());
+		assertEquals(0, buff.unpin());
+		assertTrue(buff.tryClaim());
+	}
+
+	/**
+	 * Threads pin random blocks of a file larger than the pool, so the hits
+	 * pinned without locks race with the replacements. Every pinned buffer
+	 * must hold the requested block, with the contents of that block.
+	 */
+	@Test
+	public void testPinRacingReplacement() throws Exception {
+		final BufferPoolMgr pool = new BufferPoolMgr("claim-race-test", POOL_SIZE, ClockPolicy.class);
+		final AtomicInteger nextBlkNum = new AtomicInteger();
+		PageFormatter numbering = new PageFormatter() {
+			@Override
+			public void format(Buffer buf) {
+				// The blocks are appended in order, since the file is locked
+				buf.setVal(0, new IntegerConstant(nextBlkNum.getAndIncrement()));
+			}
+		};
+		for (int i = 0; i < NUM_OF_BLOCKS; i++)
+			pool.unpin(pool.pinNew(RACE_FILE, numbering));
+		assertEquals(POOL_SIZE, pool.available());
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[NUM_OF_THREADS];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ThreadLocalRandom random = ThreadLocalRandom.current();
+						for (int n = 0; n < NUM_OF_PINS && failure.get() == null; n++) {
+							int blkNum = random.nextInt(NUM_OF_BLOCKS);
+							BlockId blk = new BlockId(RACE_FILE, blkNum);
+							Buffer buff = pool.pin(blk);
+							// All the buffers are pinned by the others
+							if (buff == null) {
+								Thread.yield();
+								continue;
+							}
+							try {
+								assertEquals(blk, buff.block());
+								assertEquals(new IntegerConstant(blkNum), buff.getVal(0, Type.INTEGER));
+							} finally {
+								pool.unpin(buff);
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join(JOIN_TIMEOUT);
+			assertFalse("a thread is stuck", thread.isAlive());
+		}
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(POOL_SIZE, pool.available());
+	}
+}
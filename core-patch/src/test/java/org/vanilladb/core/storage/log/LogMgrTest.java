@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.vanilladb.core.sql.Type.INTEGER;
+import static org.vanilladb.core.sql.Type.VARCHAR;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.tx.recovery.ReversibleIterator;
+
+public class LogMgrTest {
+	private static final long JOIN_TIMEOUT = 60000;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+	}
+
+	/**
+	 * Checks that a thread returns from a group flush only after its record
+	 * is on disk, whether it leads the group or follows it.
+	 */
+	@Test
+	public void testConcurrentFlush() throws Exception {
+		final String fileName = "LogMgrTest_flush.log";
+		final LogMgr logMgr = newLogMgr(fileName);
+		final int numOfThreads = 16, numOfFlushes = 500;
+		final CyclicBarrier start = new CyclicBarrier(numOfThreads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread[] threads = new Thread[numOfThreads];
+		for (int i = 0; i < numOfThreads; i++) {
+			final int id = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Page page = new Page();
+						start.await();
+						for (int seq = 0; seq < numOfFlushes; seq++) {
+							LogSeqNum lsn = logMgr.append(new Constant[] { new IntegerConstant(id),
+									new IntegerConstant(seq) });
+							logMgr.flush(lsn);
+
+							// The block after the header holds the first
+							// block of a new log
+							page.read(new BlockId(fileName, lsn.blkNum() + 1));
+							BasicLogRecord rec = new BasicLogRecord(page, lsn);
+							assertEquals(new IntegerConstant(id), rec.nextVal(INTEGER));
+							assertEquals(new IntegerConstant(seq), rec.nextVal(INTEGER));
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		join(threads);
+		logMgr.close();
+		assertNull(failure.get());
+	}
+
+	/**
+	 * Appends records of various sizes from many threads, which keeps
+	 * switching the pages of the log buffer, and checks that every record is
+	 * in the log at its LSN, in the order of the LSNs, also after the log is
+	 * opened again.
+	 */
+	@Test
+	public void testConcurrentAppend() throws Exception {
+		final String fileName = "LogMgrTest_append.log";
+		final LogMgr logMgr = newLogMgr(fileName);
+		final int numOfThreads = 8, numOfRecords = 20000;
+		final LogSeqNum[][] lsns = new LogSeqNum[numOfThreads][numOfRecords];
+		final CyclicBarrier start = new CyclicBarrier(numOfThreads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread[] threads = new Thread[numOfThreads];
+		for (int i = 0; i < numOfThreads; i++) {
+			final int id = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Random random = new Random(id);
+						start.await();
+						for (int seq = 0; seq < numOfRecords; seq++) {
+							char[] padding = new char[random.nextInt(60)];
+							Arrays.fill(padding, 'x');
+							LogSeqNum lsn = logMgr.append(new Constant[] { new IntegerConstant(id),
+									new IntegerConstant(seq), new VarcharConstant(new String(padding)) });
+							lsns[id][seq] = lsn;
+							if (random.nextInt(20) == 0)
+								logMgr.flush(lsn);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		join(threads);
+		assertNull(failure.get());
+		checkRecords(logMgr, lsns, numOfThreads * numOfRecords);
+		logMgr.close();
+
+		// The records are read back from the file
+		LogMgr reopened = new LogMgr(fileName);
+		try {
+			checkRecords(reopened, lsns, numOfThreads * numOfRecords);
+			LogSeqNum lsn = reopened.append(new Constant[] { new IntegerConstant(-1), new IntegerConstant(-1),
+					new VarcharConstant("") });
+			BasicLogRecord last = reopened.iterator().next();
+			assertEquals(lsn, last.getLSN());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	/**
+	 * Checks that the records appended before the log manager is closed are
+	 * on disk, and that the background writer stops.
+	 */
+	@Test
+	public void testClose() throws Exception {
+		final String fileName = "LogMgrTest_close.log";
+		final int numOfRecords = 2000;
+		int writers = countThreads("Log-Writer");
+		LogMgr logMgr = newLogMgr(fileName);
+		LogSeqNum[][] lsns = new LogSeqNum[1][numOfRecords];
+		for (int seq = 0; seq < numOfRecords; seq++)
+			lsns[0][seq] = logMgr.append(new Constant[] { new IntegerConstant(0), new IntegerConstant(seq),
+					new VarcharConstant("") });
+		logMgr.close();
+
+		long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+		while (countThreads("Log-Writer") > writers && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("the writer keeps running", writers, countThreads("Log-Writer"));
+
+		LogMgr reopened = new LogMgr(fileName);
+		try {
+			checkRecords(reopened, lsns, numOfRecords);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	/**
+	 * Checks that the log has exactly the specified records, which are
+	 * returned backward in the order of their LSNs and can be iterated
+	 * forward again.
+	 */
+	private static void checkRecords(LogMgr logMgr, LogSeqNum[][] lsns, int numOfRecords) {
+		ReversibleIterator<BasicLogRecord> iter = logMgr.iterator();
+		LogSeqNum prev = null;
+		int count = 0;
+		while (iter.hasNext()) {
+			BasicLogRecord rec = iter.next();
+			int id = (Integer) rec.nextVal(INTEGER).asJavaVal();
+			int seq = (Integer) rec.nextVal(INTEGER).asJavaVal();
+			rec.nextVal(VARCHAR);
+			assertEquals(lsns[id][seq], rec.getLSN());
+			if (prev != null)
+				assertTrue(rec.getLSN().compareTo(prev) < 0);
+			prev = rec.getLSN();
+			count++;
+		}
+		assertEquals(numOfRecords, count);
+
+		count = 0;
+		while (iter.hasPrevious()) {
+			iter.previous();
+			count++;
+		}
+		assertEquals(numOfRecords, count);
+	}
+
+	private static LogMgr newLogMgr(String fileName) {
+		if (VanillaDb.fileMgr().exists(fileName))
+			VanillaDb.fileMgr().delete(fileName);
+		return new LogMgr(fileName);
+	}
+
+	/**
+	 * Counts the threads running a task under the specified name. A thread
+	 * of the task manager keeps the name of its last task, so only the
+	 * threads that are still in a task of the log manager are counted.
+	 */
+	private static int countThreads(String name) {
+		int count = 0;
+		for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+			if (!entry.getKey().getName().equals(name))
+				continue;
+			for (StackTraceElement frame : entry.getValue())
+				if (frame.getClassName().startsWith(LogMgr.class.getName())) {
+					count++;
+					break;
+				}
+		}
+		return count;
+	}
+
+	private static void join(Thread[] threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join(JOIN_TIMEOUT);
+			assertFalse("a thread is stuck", thread.isAlive());
+		}
+	}
+}
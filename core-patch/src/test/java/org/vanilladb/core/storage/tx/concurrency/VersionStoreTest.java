@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.concurrency.VersionStore.Snapshot;
+
+public class VersionStoreTest {
+	private static final int OFFSET = 4;
+	// Created after the properties are loaded, which the types of the
+	// constants read
+	private static Constant oldVal, newVal;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+		oldVal = new IntegerConstant(1);
+		newVal = new IntegerConstant(2);
+	}
+
+	/**
+	 * A snapshot reader sees the before-image of an uncommitted writer, and
+	 * keeps seeing it after the writer commits, while a later snapshot sees
+	 * the new value.
+	 */
+	@Test
+	public void testSnapshotOfUncommittedWriter() {
+		VersionStore store = VersionStore.getStore();
+		RecordId rid = new RecordId(new BlockId("versionstoretest.tbl", 0), 0);
+		Transaction writer = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+		store.addVersion(writer.getTransactionNumber(), rid, Collections.singletonMap(OFFSET, oldVal));
+
+		Snapshot before = store.beginSnapshot();
+		assertEquals(oldVal, before.read(rid, OFFSET, newVal));
+
+		// What the listener does once the writer commits
+		store.onTxCommit(writer);
+		assertEquals(oldVal, before.read(rid, OFFSET, newVal));
+		Snapshot after = store.beginSnapshot();
+		assertEquals(newVal, after.read(rid, OFFSET, newVal));
+
+		store.endSnapshot(before);
+		store.endSnapshot(after);
+		writer.rollback();
+	}
+
+	/**
+	 * The versions of an aborted writer are skipped, since the slot has been
+	 * restored to the before-image already.
+	 */
+	@Test
+	public void testSnapshotOfAbortedWriter() {
+		VersionStore store = VersionStore.getStore();
+		RecordId rid = new RecordId(new BlockId("versionstoretest.tbl", 0), 1);
+		Transaction writer = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+		store.addVersion(writer.getTransactionNumber(), rid, Collections.singletonMap(OFFSET, oldVal));
+
+		Snapshot snapshot = store.beginSnapshot();
+		store.onTxRollback(writer);
+		writer.rollback();
+		Constant restored = new IntegerConstant(3);
+		assertEquals(restored, snapshot.read(rid, OFFSET, restored));
+		store.endSnapshot(snapshot);
+	}
+}
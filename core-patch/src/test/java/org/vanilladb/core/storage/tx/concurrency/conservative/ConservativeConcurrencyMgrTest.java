@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency.conservative;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.PrimaryKey;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.TransactionMgr;
+import org.vanilladb.core.storage.tx.concurrency.conservative.ConservativeLockTable.LockType;
+
+/**
+ * Tests the multi-granularity locking, which is switched on in another JVM
+ * since the properties are loaded once in a JVM.
+ */
+public class ConservativeConcurrencyMgrTest {
+	private static final String MGL_DB = ServerInit.TEST_DB_NAME + "_mgl";
+	private static final String ESCALATION = "escalation", UNBOOKED_ACCESS = "unbooked-access";
+	private static final int THRESHOLD = 2;
+	private static final long WAIT_TIME = 200, JOIN_TIMEOUT = 10000;
+
+	/**
+	 * Runs a test with multi-granularity locking in this JVM, and exits with
+	 * 0 if it succeeds.
+	 */
+	public static void main(String[] args) {
+		int status = 0;
+		try {
+			ServerInit.deleteDb(MGL_DB);
+			VanillaDb.init(MGL_DB);
+			TransactionMgr.serialConcurMgrCls = ConservativeConcurrencyMgr.class;
+			assertTrue(ConservativeConcurrencyMgr.MULTI_GRANULARITY_LOCKING);
+			assertEquals(THRESHOLD, ConservativeConcurrencyMgr.ESCALATION_THRESHOLD);
+
+			if (args[0].equals(ESCALATION))
+				checkEscalation();
+			else if (args[0].equals(UNBOOKED_ACCESS))
+				checkUnbookedAccess();
+			else
+				throw new IllegalArgumentException("unknown test: " + args[0]);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			status = 1;
+		}
+		Runtime.getRuntime().halt(status);
+	}
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+	}
+
+	@Test
+	public void testEscalation() throws Exception {
+		assertEquals("the escalation test failed", 0, runInNewJvm(ESCALATION));
+	}
+
+	@Test
+	public void testUnbookedAccess() throws Exception {
+		assertEquals("the unbooked access test failed", 0, runInNewJvm(UNBOOKED_ACCESS));
+	}
+
+	/**
+	 * The keys of a table are booked with an intention lock on the table up
+	 * to the threshold, and are replaced by a lock on the whole table above
+	 * it.
+	 */
+	private static void checkEscalation() {
+		Transaction tx = newTx();
+		ConservativeConcurrencyMgr ccMgr = (ConservativeConcurrencyMgr) tx.concurrencyMgr();
+
+		Map<Object, LockType> bookings = ccMgr.registerKeys(keys("t1", THRESHOLD), null, null, null);
+		assertEquals(THRESHOLD + 1, bookings.size());
+		assertEquals(LockType.IS_LOCK, bookings.get("t1"));
+
+		bookings = ccMgr.registerKeys(keys("t2", THRESHOLD + 1), null, null, null);
+		assertEquals(Collections.singletonMap((Object) "t2", LockType.S_LOCK), bookings);
+
+		bookings = ccMgr.registerKeys(keys("t3", 1), keys("t3", THRESHOLD + 1), null, null);
+		assertEquals(Collections.singletonMap((Object) "t3", LockType.X_LOCK), bookings);
+
+		// The keys of an escalated table are covered for reading only
+		assertTrue(ccMgr.registerKeys(keys("t2", 1), null, null, null).isEmpty());
+		bookings = ccMgr.registerKeys(null, keys("t2", 1), null, null);
+		assertEquals(2, bookings.size());
+		assertEquals(LockType.SIX_LOCK, bookings.get("t2"));
+		tx.rollback();
+	}
+
+	/**
+	 * A transaction reading a table it did not book waits for the one which
+	 * locks the whole table.
+	 */
+	private static void checkUnbookedAccess() throws Exception {
+		Transaction writer = newTx();
+		ConservativeConcurrencyMgr writerMgr = (ConservativeConcurrencyMgr) writer.concurrencyMgr();
+		writerMgr.bookKeys(null, null, null, Collections.singleton("t4"));
+		writerMgr.acquireBookedLocks();
+
+		final Transaction reader = newTx();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reader.concurrencyMgr().readFile("t4.tbl");
+			}
+		});
+		thread.start();
+		thread.join(WAIT_TIME);
+		assertTrue("the reader does not wait", thread.isAlive());
+
+		writer.rollback();
+		thread.join(JOIN_TIMEOUT);
+		assertFalse("the reader is stuck", thread.isAlive());
+		reader.rollback();
+	}
+
+	private static int runInNewJvm(String test) throws Exception {
+		String cls = ConservativeConcurrencyMgr.class.getName();
+		return ServerInit.runInNewJvm(ConservativeConcurrencyMgrTest.class, test,
+				cls + ".MULTI_GRANULARITY_LOCKING=true", cls + ".ESCALATION_THRESHOLD=" + THRESHOLD);
+	}
+
+	private static Transaction newTx() {
+		return VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+	}
+
+	private static List<PrimaryKey> keys(String tblName, int count) {
+		List<PrimaryKey> keys = new ArrayList<PrimaryKey>();
+		for (int id = 0; id < count; id++) {
+			Map<String, Constant> vals = new HashMap<String, Constant>();
+			vals.put("id", new IntegerConstant(id));
+			keys.add(new PrimaryKey(tblName, vals));
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency.conservative;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.storage.tx.concurrency.conservative.ConservativeLockTable.LockType;
+
+public class ConservativeLockTableTest {
+	private static final long WAIT_TIME = 200, JOIN_TIMEOUT = 10000;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+	}
+
+	/**
+	 * A release hands the lock over to the next run of compatible booked
+	 * requests only, and the exclusive request behind them waits until all
+	 * of them are released, even though it started waiting first.
+	 */
+	@Test
+	public void testHandOffOrder() throws Exception {
+		ConservativeLockTable lockTbl = new ConservativeLockTable("hand-off-test");
+		Object obj = "hand-off";
+		lockTbl.requestLock(obj, 1, LockType.X_LOCK);
+		lockTbl.requestLock(obj, 2, LockType.S_LOCK);
+		lockTbl.requestLock(obj, 3, LockType.S_LOCK);
+		lockTbl.requestLock(obj, 4, LockType.X_LOCK);
+		lockTbl.xLock(obj, 1);
+
+		List<Long> granted = Collections.synchronizedList(new ArrayList<Long>());
+		Thread writer = lockInThread(lockTbl, obj, 4, LockType.X_LOCK, granted);
+		assertWaiting(writer);
+		Thread reader1 = lockInThread(lockTbl, obj, 2, LockType.S_LOCK, granted);
+		assertWaiting(reader1);
+		Thread reader2 = lockInThread(lockTbl, obj, 3, LockType.S_LOCK, granted);
+		assertWaiting(reader2);
+
+		lockTbl.release(obj, 1, LockType.X_LOCK);
+		reader1.join(JOIN_TIMEOUT);
+		reader2.join(JOIN_TIMEOUT);
+		assertFalse("the readers are not woken up", reader1.isAlive() || reader2.isAlive());
+		assertEquals(new HashSet<Long>(Arrays.asList(2L, 3L)), new HashSet<Long>(granted));
+		writer.join(WAIT_TIME);
+		assertTrue("the writer overtakes the readers", writer.isAlive());
+
+		lockTbl.release(obj, 2, LockType.S_LOCK);
+		writer.join(WAIT_TIME);
+		assertTrue("the writer overtakes a reader", writer.isAlive());
+		lockTbl.release(obj, 3, LockType.S_LOCK);
+		writer.join(JOIN_TIMEOUT);
+		assertFalse("the writer is not woken up", writer.isAlive());
+		assertEquals(Long.valueOf(4), granted.get(2));
+		lockTbl.release(obj, 4, LockType.X_LOCK);
+	}
+
+	/**
+	 * A release does not hand the lock over to a request booked behind a
+	 * conflicting one, even if the one ahead has not come for the lock yet.
+	 */
+	@Test
+	public void testHandOffKeepsBookingOrder() throws Exception {
+		checkBookingOrder(LockType.X_LOCK);
+		checkBookingOrder(LockType.SIX_LOCK);
+	}
+
+	/**
+	 * A request which was not booked waits for the booked ones ahead, even
+	 * though nobody holds the lock yet, and gets the lock handed over once
+	 * they are granted.
+	 */
+	@Test
+	public void testUnbookedWaitsForBooked() throws Exception {
+		ConservativeLockTable lockTbl = new ConservativeLockTable("unbooked-test");
+		Object obj = "unbooked";
+		lockTbl.requestLock(obj, 1, LockType.S_LOCK);
+
+		List<Long> granted = Collections.synchronizedList(new ArrayList<Long>());
+		Thread unbooked = lockInThread(lockTbl, obj, 2, LockType.S_LOCK, granted);
+		assertWaiting(unbooked);
+
+		lockTbl.sLock(obj, 1);
+		unbooked.join(JOIN_TIMEOUT);
+		assertFalse("the unbooked request is not woken up", unbooked.isAlive());
+		assertEquals(Arrays.asList(2L), granted);
+		lockTbl.release(obj, 1, LockType.S_LOCK);
+		lockTbl.release(obj, 2, LockType.S_LOCK);
+	}
+
+	/**
+	 * The lockers of an object are reclaimed once nobody holds or requests
+	 * it, and are reused for another object of the stripe without any
+	 * holder or request left from before. The commit LSN stamped on a
+	 * reclaimed object is kept by its stripe.
+	 */
+	@Test
+	public void testIdleLockersAreRecycled() throws Exception {
+		ConservativeLockTable lockTbl = new ConservativeLockTable("recycling-test");
+		// More objects of the same stripe than the lockers kept for reuse
+		int numOfObjs = 20;
+		List<Object> objs = new ArrayList<Object>();
+		for (int i = 0; i < numOfObjs; i++)
+			objs.add(1 + i * lockTbl.numOfStripes());
+		for (int i = 0; i < numOfObjs; i++) {
+			lockTbl.requestLock(objs.get(i), i, LockType.S_LOCK);
+			lockTbl.sLock(objs.get(i), i);
+			lockTbl.isLock(objs.get(i), numOfObjs);
+		}
+		assertEquals(numOfObjs, lockTbl.numOfLockedObjects());
+		for (int i = 0; i < numOfObjs; i++) {
+			lockTbl.release(objs.get(i), i, LockType.S_LOCK);
+			lockTbl.release(objs.get(i), numOfObjs, LockType.IS_LOCK);
+		}
+		assertEquals(0, lockTbl.numOfLockedObjects());
+
+		LogSeqNum commitLsn = new LogSeqNum(3, 5);
+		Object obj = 1 + numOfObjs * lockTbl.numOfStripes();
+		List<Long> granted = Collections.synchronizedList(new ArrayList<Long>());
+		Thread writer = lockInThread(lockTbl, obj, 100, LockType.X_LOCK, granted);
+		writer.join(JOIN_TIMEOUT);
+		assertFalse("the reused lockers are still held", writer.isAlive());
+		Thread reader = lockInThread(lockTbl, obj, 101, LockType.S_LOCK, granted);
+		assertWaiting(reader);
+
+		lockTbl.release(obj, 100, LockType.X_LOCK, commitLsn);
+		reader.join(JOIN_TIMEOUT);
+		assertFalse("the reader is not woken up", reader.isAlive());
+		lockTbl.release(obj, 101, LockType.S_LOCK);
+		assertEquals(0, lockTbl.numOfLockedObjects());
+		assertEquals(commitLsn, lockTbl.sLock(obj, 102));
+		lockTbl.release(obj, 102, LockType.S_LOCK);
+	}
+
+	private static void checkBookingOrder(LockType aheadMode) throws Exception {
+		ConservativeLockTable lockTbl = new ConservativeLockTable("booking-order-test");
+		Object obj = "booking-order";
+		lockTbl.requestLock(obj, 1, LockType.X_LOCK);
+		lockTbl.requestLock(obj, 2, aheadMode);
+		lockTbl.requestLock(obj, 3, LockType.S_LOCK);
+		lockTbl.xLock(obj, 1);
+
+		List<Long> granted = Collections.synchronizedList(new ArrayList<Long>());
+		Thread reader = lockInThread(lockTbl, obj, 3, LockType.S_LOCK, granted);
+		assertWaiting(reader);
+		lockTbl.release(obj, 1, LockType.X_LOCK);
+		assertWaiting(reader);
+
+		lockTbl.lock(obj, 2, aheadMode);
+		lockTbl.release(obj, 2, aheadMode);
+		reader.join(JOIN_TIMEOUT);
+		assertFalse("the reader is not woken up", reader.isAlive());
+		assertEquals(Arrays.asList(3L), granted);
+		lockTbl.release(obj, 3, LockType.S_LOCK);
+	}
+
+	private static Thread lockInThread(final ConservativeLockTable lockTbl, final Object obj,
+			final long txNum, final LockType type, final List<Long> granted) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				lockTbl.lock(obj, txNum, type);
+				granted.add(txNum);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static void assertWaiting(Thread thread) throws InterruptedException {
+		thread.join(WAIT_TIME);
+		assertTrue("the lock is granted too early", thread.isAlive());
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency.conservative;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.PrimaryKey;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.TransactionMgr;
+
+public class ConservativeSchedulerTest {
+	private static final String TBL = "scheduler_test";
+	private static Class<?> oldConcurMgrCls;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+		// The scheduler creates serializable transactions
+		oldConcurMgrCls = TransactionMgr.serialConcurMgrCls;
+		TransactionMgr.serialConcurMgrCls = ConservativeConcurrencyMgr.class;
+	}
+
+	@AfterClass
+	public static void finish() {
+		TransactionMgr.serialConcurMgrCls = oldConcurMgrCls;
+	}
+
+	@Test
+	public void testScheduleInTxNumOrder() {
+		ConservativeScheduler scheduler = ConservativeScheduler.getScheduler();
+		Collection<PrimaryKey> keys = Collections.singleton(key(1));
+		Transaction tx1 = scheduler.schedule(false, null, keys);
+		Transaction tx2 = scheduler.schedule(false, null, keys);
+		assertTrue(tx1.getTransactionNumber() < tx2.getTransactionNumber());
+
+		// The first one booked comes first
+		((ConservativeConcurrencyMgr) tx1.concurrencyMgr()).acquireBookedLocks();
+		tx1.commit();
+		((ConservativeConcurrencyMgr) tx2.concurrencyMgr()).acquireBookedLocks();
+		tx2.commit();
+	}
+
+	/**
+	 * A procedure whose bookings are rejected never gets its transaction, so
+	 * the scheduler has to finish it.
+	 */
+	@Test
+	public void testRejectedAdmissionIsRolledBack() {
+		assumeFalse(ConservativeConcurrencyMgr.MULTI_GRANULARITY_LOCKING);
+		int activeTxs = VanillaDb.txMgr().getActiveTxCount();
+		try {
+			// Booking tables needs multi-granularity locking
+			ConservativeScheduler.getScheduler().schedule(false, null,
+					Collections.singleton(key(2)), null, Collections.singleton(TBL));
+			fail("the admission should be rejected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(activeTxs, VanillaDb.txMgr().getActiveTxCount());
+	}
+
+	private static PrimaryKey key(int id) {
+		Map<String, Constant> vals = new HashMap<String, Constant>();
+		vals.put("id", new IntegerConstant(id));
+		return new PrimaryKey(TBL, vals);
+	}
+}
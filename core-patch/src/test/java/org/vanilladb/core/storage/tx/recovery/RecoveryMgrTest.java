@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.vanilladb.core.sql.Type.INTEGER;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_CHECKPOINT;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.storage.metadata.TableMgr;
+import org.vanilladb.core.storage.record.RecordFile;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.tx.Transaction;
+
+public class RecoveryMgrTest {
+	private static final String ID = "id", VAL = "val";
+	private static final String CHECKPOINT_DB = ServerInit.TEST_DB_NAME + "_checkpoint";
+	private static final String PARALLEL_UNDO_DB = ServerInit.TEST_DB_NAME + "_parallel_undo";
+	private static final String CATALOG_UNDO_DB = ServerInit.TEST_DB_NAME + "_catalog_undo";
+	private static final String CRASH = "-crash", RECOVER = "-recover";
+	private static final String TBL1 = "recovery_test1", TBL2 = "recovery_test2", TBL3 = "recovery_test3";
+
+	/**
+	 * Runs a step of a test which needs a crash in this JVM, and exits with 0
+	 * if it succeeds.
+	 */
+	public static void main(String[] args) {
+		String step = args[0];
+		int status = 0;
+		try {
+			if (step.equals(CHECKPOINT_DB + CRASH))
+				crashAfterCheckpoint();
+			else if (step.equals(CHECKPOINT_DB + RECOVER))
+				checkRecoveryAfterCheckpoint();
+			else if (step.equals(PARALLEL_UNDO_DB + CRASH))
+				crashWithLosers(PARALLEL_UNDO_DB, false);
+			else if (step.equals(PARALLEL_UNDO_DB + RECOVER))
+				checkUndoOfLosers(PARALLEL_UNDO_DB);
+			else if (step.equals(CATALOG_UNDO_DB + CRASH))
+				crashWithLosers(CATALOG_UNDO_DB, true);
+			else if (step.equals(CATALOG_UNDO_DB + RECOVER))
+				checkUndoOfLosers(CATALOG_UNDO_DB);
+			else
+				throw new IllegalArgumentException("unknown step: " + step);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			status = 1;
+		}
+		// Halt without flushing anything, as a crash does
+		Runtime.getRuntime().halt(status);
+	}
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init();
+	}
+
+	/**
+	 * Rolls a transaction back in steps. The second step starts from the
+	 * compensation record written by the first one and undoes a logical
+	 * insertion, and the last step starts from the logical abort record
+	 * written by the second one.
+	 */
+	@Test
+	public void testPartialRollback() {
+		String tblName = "rollback_test";
+		Transaction tx = newTx();
+		createTable(tblName, tx);
+		RecordId rid1 = insert(tblName, 1, 0, tx);
+		RecordId rid2 = insert(tblName, 2, 0, tx);
+		tx.commit();
+
+		tx = newTx();
+		setVal(tblName, rid1, 10, tx);
+		RecordId rid3 = insert(tblName, 3, 30, tx);
+		setVal(tblName, rid2, 20, tx);
+
+		// Undo the last modification
+		tx.recoveryMgr().rollbackPartially(tx, 0);
+		assertEquals(10, getVal(tblName, rid1, tx));
+		assertEquals(0, getVal(tblName, rid2, tx));
+		assertEquals(30, getVal(tblName, rid3, tx));
+
+		// Skip the last modification by its compensation record, undo the
+		// two values of the inserted record, and then the insertion
+		tx.recoveryMgr().rollbackPartially(tx, 3);
+		assertEquals(2, count(tblName, tx));
+		assertEquals(10, getVal(tblName, rid1, tx));
+		assertEquals(0, getVal(tblName, rid2, tx));
+
+		// Skip the insertion by its logical abort record, and undo the rest
+		tx.rollback();
+
+		tx = newTx();
+		assertEquals(2, count(tblName, tx));
+		assertEquals(0, getVal(tblName, rid1, tx));
+		assertEquals(0, getVal(tblName, rid2, tx));
+		tx.commit();
+	}
+
+	/**
+	 * Crashes after a fuzzy checkpoint, which leaves a committed change in a
+	 * dirty page whose recLSN is before the checkpoint, along with a change
+	 * of a transaction active at the checkpoint. The recovery has to redo the
+	 * former from the redo LSN the checkpoint keeps, and undo the latter.
+	 */
+	@Test
+	public void testRecoveryAfterFuzzyCheckpoint() throws Exception {
+		crashAndRecover(CHECKPOINT_DB);
+	}
+
+	/**
+	 * Crashes with two unfinished transactions modifying different tables,
+	 * both of which the recovery rolls back.
+	 */
+	@Test
+	public void testParallelUndo() throws Exception {
+		crashAndRecover(PARALLEL_UNDO_DB);
+	}
+
+	/**
+	 * Crashes with two unfinished transactions modifying different tables,
+	 * one of which also creates a table. The recovery rolls back both, and
+	 * the created table is gone from the catalog.
+	 */
+	@Test
+	public void testSequentialUndoOfCatalog() throws Exception {
+		crashAndRecover(CATALOG_UNDO_DB);
+	}
+
+	/**
+	 * The unfinished transactions sharing a table or an index are undone by
+	 * the same worker, while the others are spread over the workers, unless
+	 * one of them modifies the catalog.
+	 */
+	@Test
+	public void testGroupingOfLosers() {
+		Set<Long> txs = new HashSet<Long>(Arrays.asList(1L, 2L, 3L, 4L));
+		Map<Long, Set<String>> resources = new HashMap<Long, Set<String>>();
+		resources.put(1L, resources("t1.tbl"));
+		resources.put(2L, resources("t2.tbl", "t2_idx.tbl"));
+		resources.put(3L, resources("t3.tbl", "t1.tbl"));
+		// The last one has nothing to undo but its start record
+
+		Map<Long, Integer> groups = RecoveryMgr.groupLosers(txs, resources);
+		assertNotNull("the losers are undone sequentially", groups);
+		assertEquals(txs, groups.keySet());
+		assertEquals(groups.get(1L), groups.get(3L));
+		assertNotEquals(groups.get(1L), groups.get(2L));
+		assertNotEquals(groups.get(1L), groups.get(4L));
+		assertNotEquals(groups.get(2L), groups.get(4L));
+
+		// A single group is undone sequentially
+		resources.put(4L, resources("t2.tbl", "t3.tbl"));
+		assertNull(RecoveryMgr.groupLosers(txs, resources));
+
+		// So is a catalog modification, even by a loser alone
+		resources.put(4L, resources(TableMgr.TCAT + ".tbl"));
+		assertNull(RecoveryMgr.groupLosers(txs, resources));
+	}
+
+	private static void crashAfterCheckpoint() {
+		VanillaDb.init(CHECKPOINT_DB);
+		Transaction tx = newTx();
+		createTable(TBL1, tx);
+		RecordId rid1 = insert(TBL1, 1, 0, tx);
+		RecordId rid2 = insert(TBL1, 2, 0, tx);
+		tx.commit();
+
+		// Committed, but only in the buffer
+		tx = newTx();
+		setVal(TBL1, rid1, 10, tx);
+		tx.commit();
+
+		// Active at the checkpoint
+		Transaction loser = newTx();
+		setVal(TBL1, rid2, 20, loser);
+
+		Transaction checkpointTx = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, true);
+		LogSeqNum recLsn = checkpointTx.bufferMgr().minRecLsn();
+		assertNotNull("no page is dirty", recLsn);
+		VanillaDb.txMgr().createCheckpoint(checkpointTx);
+		checkpointTx.commit();
+
+		CheckpointRecord ckpt = lastCheckpoint();
+		assertEquals(recLsn, ckpt.redoLsn());
+		assertTrue(ckpt.redoLsn().compareTo(ckpt.getLSN()) < 0);
+		assertTrue(ckpt.activeTxNums().contains(loser.getTransactionNumber()));
+	}
+
+	private static void checkRecoveryAfterCheckpoint() {
+		VanillaDb.init(CHECKPOINT_DB);
+		Transaction tx = newTx();
+		Map<Integer, Integer> vals = readAll(TBL1, tx);
+		tx.commit();
+
+		assertEquals(2, vals.size());
+		assertEquals(10, (int) vals.get(1));
+		assertEquals(0, (int) vals.get(2));
+	}
+
+	private static void crashWithLosers(String dbName, boolean modifiesCatalog) {
+		VanillaDb.init(dbName);
+		Transaction tx = newTx();
+		createTable(TBL1, tx);
+		createTable(TBL2, tx);
+		RecordId rid1 = insert(TBL1, 1, 0, tx);
+		RecordId rid2 = insert(TBL2, 1, 0, tx);
+		tx.commit();
+
+		// Both update a record and insert another, which is undone logically
+		Transaction loser1 = newTx();
+		setVal(TBL1, rid1, 10, loser1);
+		insert(TBL1, 2, 20, loser1);
+		Transaction loser2 = newTx();
+		setVal(TBL2, rid2, 10, loser2);
+		insert(TBL2, 2, 20, loser2);
+		if (modifiesCatalog)
+			createTable(TBL3, loser2);
+
+		// Flush the records of the losers
+		newTx().commit();
+	}
+
+	private static void checkUndoOfLosers(String dbName) {
+		VanillaDb.init(dbName);
+		Transaction tx = newTx();
+		for (String tblName : new String[] { TBL1, TBL2 }) {
+			Map<Integer, Integer> vals = readAll(tblName, tx);
+			assertEquals(1, vals.size());
+			assertEquals(0, (int) vals.get(1));
+		}
+		assertNull(VanillaDb.catalogMgr().getTableInfo(TBL3, tx));
+		tx.commit();
+	}
+
+	private static CheckpointRecord lastCheckpoint() {
+		LogRecordIterator iter = new LogRecordIterator();
+		while (iter.hasNext()) {
+			LogRecord rec = iter.next();
+			if (rec.op() == OP_CHECKPOINT)
+				return (CheckpointRecord) rec;
+		}
+		throw new AssertionError("no checkpoint");
+	}
+
+	/**
+	 * Runs the steps of the specified database crashing and recovering, each
+	 * in a new JVM.
+	 */
+	private static void crashAndRecover(String dbName) throws Exception {
+		ServerInit.deleteDb(dbName);
+		assertEquals("the crashed server failed", 0, runInNewJvm(dbName + CRASH));
+		assertEquals("the recovered server failed", 0, runInNewJvm(dbName + RECOVER));
+	}
+
+	private static int runInNewJvm(String step) throws Exception {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.add("-D" + ServerInit.CONFIG_FILE_PROPERTY + "=" + System.getProperty(ServerInit.CONFIG_FILE_PROPERTY));
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(RecoveryMgrTest.class.getName());
+		cmd.add(step);
+		return new ProcessBuilder(cmd).inheritIO().start().waitFor();
+	}
+
+	private static Set<String> resources(String... fileNames) {
+		return new HashSet<String>(Arrays.asList(fileNames));
+	}
+
+	private static Transaction newTx() {
+		return VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+	}
+
+	private static void createTable(String tblName, Transaction tx) {
+		Schema sch = new Schema();
+		sch.addField(ID, INTEGER);
+		sch.addField(VAL, INTEGER);
+		VanillaDb.catalogMgr().createTable(tblName, sch, tx);
+	}
+
+	private static RecordFile open(String tblName, Transaction tx) {
+		return VanillaDb.catalogMgr().getTableInfo(tblName, tx).open(tx, true);
+	}
+
+	private static RecordId insert(String tblName, int id, int val, Transaction tx) {
+		RecordFile rf = open(tblName, tx);
+		rf.insert();
+		rf.setVal(ID, new IntegerConstant(id));
+		rf.setVal(VAL, new IntegerConstant(val));
+		RecordId rid = rf.currentRecordId();
+		rf.close();
+		return rid;
+	}
+
+	private static void setVal(String tblName, RecordId rid, int val, Transaction tx) {
+		RecordFile rf = open(tblName, tx);
+		rf.moveToRecordId(rid);
+		rf.setVal(VAL, new IntegerConstant(val));
+		rf.close();
+	}
+
+	private static int getVal(String tblName, RecordId rid, Transaction tx) {
+		RecordFile rf = open(tblName, tx);
+		rf.moveToRecordId(rid);
+		Constant val = rf.getVal(VAL);
+		rf.close();
+		return (Integer) val.asJavaVal();
+	}
+
+	private static Map<Integer, Integer> readAll(String tblName, Transaction tx) {
+		Map<Integer, Integer> vals = new HashMap<Integer, Integer>();
+		RecordFile rf = open(tblName, tx);
+		rf.beforeFirst();
+		while (rf.next())
+			vals.put((Integer) rf.getVal(ID).asJavaVal(), (Integer) rf.getVal(VAL).asJavaVal());
+		rf.close();
+		return vals;
+	}
+
+	private static int count(String tblName, Transaction tx) {
+		RecordFile rf = open(tblName, tx);
+		rf.beforeFirst();
+		int count = 0;
+		while (rf.next())
+			count++;
+		rf.close();
+		return count;
+	}
+}